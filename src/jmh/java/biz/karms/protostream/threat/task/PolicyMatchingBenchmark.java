@@ -0,0 +1,132 @@
+package biz.karms.protostream.threat.task;
+
+import biz.karms.crc64java.CRC64;
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.protostream.threat.domain.Flag;
+import biz.karms.protostream.threat.domain.Threat;
+import biz.karms.protostream.threat.policy.CompiledPolicies;
+import biz.karms.protostream.threat.policy.PolicyMatcher;
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import biz.karms.sinkit.ioc.IoCClassificationType;
+import biz.karms.sinkit.resolver.Policy;
+import biz.karms.sinkit.resolver.Strategy;
+import biz.karms.sinkit.resolver.StrategyParams;
+import biz.karms.sinkit.resolver.StrategyType;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching of IoCs against a resolver's policies, the stream based {@link ReferencePolicyMatcher} versus
+ * {@link CompiledPolicies}.
+ * <p>
+ * mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=biz.karms.protostream.threat.task.PolicyMatchingBenchmark
+ *
+ * @author Michal Karm Babacek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PolicyMatchingBenchmark {
+
+    private static final String[] FEEDS = {"phishtank", "mfsk", "urlhaus", "hybrid", "openphish", "malwaredomains", "zeus", "ransomware"};
+
+    @Param({"100000"})
+    public int records;
+
+    @Param({"12"})
+    public int policies;
+
+    private List<BlacklistedRecord> blacklistedRecords;
+    private List<Policy> resolverPolicies;
+    private final ReferencePolicyMatcher referenceMatcher = new ReferencePolicyMatcher();
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final IoCClassificationType[] types = IoCClassificationType.values();
+        blacklistedRecords = new ArrayList<>(records);
+        for (int i = 0; i < records; i++) {
+            final HashMap<String, ImmutablePair<String, String>> sources = new HashMap<>();
+            final HashMap<String, HashMap<String, Integer>> accuracy = new HashMap<>();
+            for (int s = 0, count = 1 + random.nextInt(3); s < count; s++) {
+                final String feed = FEEDS[random.nextInt(FEEDS.length)];
+                sources.put(feed, new ImmutablePair<>(types[random.nextInt(types.length)].getLabel(), "id" + i));
+                final HashMap<String, Integer> feedAccuracy = new HashMap<>();
+                feedAccuracy.put("feed", random.nextInt(100));
+                accuracy.put(feed, feedAccuracy);
+            }
+            blacklistedRecords.add(new BlacklistedRecord("domain" + i + ".com", CRC64.getInstance().crc64BigInteger(("domain" + i + ".com").getBytes()),
+                    Calendar.getInstance(), sources, accuracy, false));
+        }
+
+        resolverPolicies = new ArrayList<>(policies);
+        for (int i = 0; i < policies; i++) {
+            final StrategyParams params = new StrategyParams();
+            params.setAudit(10 * (i % 8));
+            params.setTypes(i % 3 == 0 ? null : new HashSet<>(Arrays.asList(types[i % types.length], types[(i + 2) % types.length])));
+            final Strategy strategy = new Strategy();
+            strategy.setStrategyType(i % 4 == 3 ? StrategyType.drop : StrategyType.accuracy);
+            strategy.setStrategyParams(params);
+            final Policy policy = new Policy();
+            policy.setStrategy(strategy);
+            policy.setAccuracyFeeds(i % 2 == 0 ? null : new HashSet<>(Arrays.asList(FEEDS[i % FEEDS.length], FEEDS[(i + 3) % FEEDS.length])));
+            policy.setBlacklistedFeeds(new HashSet<>(Collections.singletonList(FEEDS[(i + 5) % FEEDS.length])));
+            resolverPolicies.add(policy);
+        }
+    }
+
+    @Benchmark
+    public int reference() {
+        int matched = 0;
+        for (BlacklistedRecord record : blacklistedRecords) {
+            final Threat threat = new Threat(record.getCrc64Hash().longValue());
+            threat.setAccuracy(IoCSnapshot.computeMaxAccuracy(record));
+            for (int policyIdx = 0; policyIdx < resolverPolicies.size(); policyIdx++) {
+                referenceMatcher.addFlagToThreatSlot(threat, record, policyIdx, resolverPolicies.get(policyIdx));
+            }
+            matched += threat.isSet() ? 1 : 0;
+        }
+        return matched;
+    }
+
+    @Benchmark
+    public int compiled() {
+        final PolicyMatcher matcher = CompiledPolicies.compile(resolverPolicies).matcher();
+        final Flag[] slots = new Flag[resolverPolicies.size()];
+        int matched = 0;
+        for (BlacklistedRecord record : blacklistedRecords) {
+            matched += matcher.match(record, IoCSnapshot.computeMaxAccuracy(record), slots) ? 1 : 0;
+        }
+        return matched;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PolicyMatchingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
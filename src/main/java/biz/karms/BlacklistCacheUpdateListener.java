@@ -0,0 +1,63 @@
+package biz.karms;
+
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryCreated;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryRemoved;
+import org.infinispan.client.hotrod.annotation.ClientCacheFailover;
+import org.infinispan.client.hotrod.annotation.ClientListener;
+import org.infinispan.client.hotrod.event.ClientCacheEntryCreatedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryRemovedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheFailoverEvent;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects keys of IoCs that were created, modified or removed in the blacklist cache.
+ * Values are not shipped with Hot Rod events, so the keeper fetches the current state of the collected keys itself.
+ *
+ * @author Michal Karm Babacek
+ */
+@ClientListener
+public class BlacklistCacheUpdateListener {
+
+    private static final Logger log = Logger.getLogger(BlacklistCacheUpdateListener.class.getName());
+
+    private final Set<String> changedKeys;
+    private final AtomicBoolean reconciliationRequired;
+
+    public BlacklistCacheUpdateListener(Set<String> changedKeys, AtomicBoolean reconciliationRequired) {
+        this.changedKeys = changedKeys;
+        this.reconciliationRequired = reconciliationRequired;
+    }
+
+    @ClientCacheEntryCreated
+    public void handleCreatedEvent(ClientCacheEntryCreatedEvent e) {
+        log.log(Level.FINEST, "Thread " + Thread.currentThread().getName() + ": IoC created: " + e.getKey());
+        changedKeys.add((String) e.getKey());
+    }
+
+    @ClientCacheEntryModified
+    public void handleModifiedEvent(ClientCacheEntryModifiedEvent e) {
+        log.log(Level.FINEST, "Thread " + Thread.currentThread().getName() + ": IoC modified: " + e.getKey());
+        changedKeys.add((String) e.getKey());
+    }
+
+    @ClientCacheEntryRemoved
+    public void handleRemovedEvent(ClientCacheEntryRemovedEvent e) {
+        log.log(Level.FINEST, "Thread " + Thread.currentThread().getName() + ": IoC removed: " + e.getKey());
+        changedKeys.add((String) e.getKey());
+    }
+
+    /**
+     * Events might have been lost while the listener was moved to another server, only a full reload is trustworthy then.
+     */
+    @ClientCacheFailover
+    public void handleFailover(ClientCacheFailoverEvent e) {
+        log.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Blacklist cache listener failed over, full IoC reconciliation required.");
+        reconciliationRequired.set(true);
+    }
+}
@@ -2,6 +2,8 @@ package biz.karms;
 
 import biz.karms.protostream.*;
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.threat.processing.ResolverPartitioner;
+import biz.karms.protostream.threat.processing.ResolverWorkQueue;
 import biz.karms.sinkit.ejb.cache.annotations.SinkitCacheName;
 import org.apache.commons.lang3.StringUtils;
 
@@ -76,6 +78,14 @@ public class Dump2Proto {
     private static final long D2P_RESOLVER_CACHE_LISTENER_GENERATOR_INTERVAL_S = Integer.parseInt(System.getProperty("D2P_RESOLVER_CACHE_LISTENER_GENERATOR_INTERVAL_S", "0"));
     private static final int D2P_RESOLVER_CACHE_BATCH_SIZE_S = Integer.parseInt(System.getProperty("D2P_RESOLVER_CACHE_BATCH_SIZE_S", "20"));
 
+    /**
+     * Time budget of a generator run, 0 for its interval, a resolver generator stops taking resolvers once it is exceeded.
+     * Runs whose time slot passed while the previous run was still going on are SKIP-ped, COALESCE-d into one
+     * or, moreover, RESUME the resolver sweep where it stopped. Each generator can override both, see {@link #schedule}.
+     */
+    private static final long D2P_GENERATOR_BUDGET_S = Integer.parseInt(System.getProperty("D2P_GENERATOR_BUDGET_S", "0"));
+    private static final String D2P_GENERATOR_OVERRUN = System.getProperty("D2P_GENERATOR_OVERRUN", "COALESCE");
+
     /**
      * Cache backup, IoC dumper
      */
@@ -124,6 +134,7 @@ public class Dump2Proto {
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(10);
     private final ScheduledExecutorService priorityScheduler = Executors.newScheduledThreadPool(5);
     private final ScheduledExecutorService iocKeeperScheduler = Executors.newScheduledThreadPool(1);
+    private final ScheduledExecutorService leaseScheduler = Executors.newScheduledThreadPool(1);
 
     /**
      * Used to send HTTP notifications to a REST API
@@ -143,9 +154,12 @@ public class Dump2Proto {
     private final ScheduledFuture<?> allCustomlistGeneratorHandle;
     private final ScheduledFuture<?> iocDumperHandle;
     private final ScheduledFuture<?> iocKeeperHandle;
+    private final ScheduledFuture<?> resolverPartitionerHandle;
 
-    private final ConcurrentLinkedDeque<Integer> resolverIDs;
-    private final ConcurrentLinkedDeque<Integer> clientIDs;
+    /**
+     * Resolvers waiting for export, shared by both resolver generators
+     */
+    private final ResolverWorkQueue resolverWorkQueue = new ResolverWorkQueue();
 
     private static class ShutdownHook extends Thread {
         private final MyCacheManagerProvider myCacheManagerProvider;
@@ -175,19 +189,26 @@ public class Dump2Proto {
         Runtime.getRuntime().addShutdownHook(jvmShutdownHook);
 
         if (ENABLE_CACHE_LISTENERS) {
-            resolverIDs = new ConcurrentLinkedDeque<>();
-            clientIDs = new ConcurrentLinkedDeque<>();
             myCacheManagerProvider.getCacheManagerForIndexableCaches().getCache(SinkitCacheName.resolver_configuration.name())
-                    .addClientListener(new ResolverCacheUpdateListener(resolverIDs));
+                    .addClientListener(new ResolverCacheUpdateListener(resolverWorkQueue));
             myCacheManagerProvider.getCacheManagerForIndexableCaches().getCache(SinkitCacheName.end_user_configuration.name())
-                    .addClientListener(new EndUserCacheUpdateListener(clientIDs));
-        } else {
-            resolverIDs = null;
-            clientIDs = null;
+                    .addClientListener(new EndUserCacheUpdateListener(resolverWorkQueue));
         }
 
         final IoCKeeper ioCKeeper = IoCKeeper.getIoCKeeper(myCacheManagerProvider.getCacheManager());
 
+        // leases are renewed regardless of runs, so that they do not move between them
+        final ResolverPartitioner resolverPartitioner = ResolverPartitioner.create(myCacheManagerProvider.getCacheManager());
+        if (resolverPartitioner != null) {
+            this.resolverPartitionerHandle = leaseScheduler
+                    .scheduleAtFixedRate(
+                            resolverPartitioner,
+                            0,
+                            Math.max(1, ResolverPartitioner.D2P_RESOLVER_LEASE_TTL_S / 3), SECONDS);
+        } else {
+            this.resolverPartitionerHandle = null;
+        }
+
         this.iocKeeperHandle = iocKeeperScheduler
                 .scheduleAtFixedRate(
                         ioCKeeper,
@@ -195,15 +216,17 @@ public class Dump2Proto {
                         D2P_IOC_REFRESH_INTERVAL_S, SECONDS);
 
         if (D2P_RESOLVER_CACHE_LISTENER_GENERATOR_INTERVAL_S > 0) {
-            this.resolverCacheListenerGeneratorHandle = priorityScheduler
-                    .scheduleAtFixedRate(
+            this.resolverCacheListenerGeneratorHandle = schedule(priorityScheduler, "D2P_RESOLVER_CACHE_LISTENER_GENERATOR",
                             new ResolverThreatsGenerator(
                                     myCacheManagerProvider.getCacheManagerForIndexableCaches(),
                                     D2P_RESOLVER_CACHE_BATCH_SIZE_S,
-                                    resolverIDs,
-                                    clientIDs,
+                                    resolverWorkQueue,
+                                    // without listeners there are no changes to wait for, it sweeps as it always has
+                                    ENABLE_CACHE_LISTENERS ? ResolverWorkQueue.Lane.CHANGED : ResolverWorkQueue.Lane.SWEEP,
                                     notificationExecutor,
-                                    ioCKeeper),
+                                    ioCKeeper,
+                                    resolverPartitioner,
+                                    false),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
                             D2P_RESOLVER_CACHE_LISTENER_GENERATOR_INTERVAL_S, SECONDS);
         } else {
@@ -211,15 +234,16 @@ public class Dump2Proto {
         }
 
         if (D2P_RESOLVER_CACHE_GENERATOR_INTERVAL_S > 0) {
-            this.resolverCacheGeneratorHandle = scheduler
-                    .scheduleAtFixedRate(
+            this.resolverCacheGeneratorHandle = schedule(scheduler, "D2P_RESOLVER_CACHE_GENERATOR",
                             new ResolverThreatsGenerator(
                                     myCacheManagerProvider.getCacheManagerForIndexableCaches(),
                                     D2P_RESOLVER_CACHE_BATCH_SIZE_S,
-                                    null,
-                                    null,
+                                    resolverWorkQueue,
+                                    ResolverWorkQueue.Lane.SWEEP,
                                     notificationExecutor,
-                                    ioCKeeper),
+                                    ioCKeeper,
+                                    resolverPartitioner,
+                                    ENABLE_CACHE_LISTENERS && D2P_RESOLVER_CACHE_LISTENER_GENERATOR_INTERVAL_S > 0),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
                             D2P_RESOLVER_CACHE_GENERATOR_INTERVAL_S, SECONDS);
         } else {
@@ -227,8 +251,8 @@ public class Dump2Proto {
         }
 
         if (D2P_IOC_DUMPER_INTERVAL_S > 0) {
-            this.iocDumperHandle = scheduler
-                    .scheduleAtFixedRate(new IoCDumper(ioCKeeper),
+            this.iocDumperHandle = schedule(scheduler, "D2P_IOC_DUMPER",
+                            new IoCDumper(ioCKeeper),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
                             D2P_IOC_DUMPER_INTERVAL_S, SECONDS);
         } else {
@@ -236,8 +260,8 @@ public class Dump2Proto {
         }
 
         if (D2P_ALL_IOC_GENERATOR_INTERVAL_S > 0) {
-            this.allIocWithCustomlistGeneratorHandle = scheduler
-                    .scheduleAtFixedRate(new IoCWithCustomProtostreamGenerator(
+            this.allIocWithCustomlistGeneratorHandle = schedule(scheduler, "D2P_ALL_IOC_GENERATOR",
+                            new IoCWithCustomProtostreamGenerator(
                                     myCacheManagerProvider.getCacheManagerForIndexableCaches(),
                                     IoCWithCustomProtostreamGenerator.SCOPE.ALL,
                                     ioCKeeper),
@@ -248,8 +272,8 @@ public class Dump2Proto {
         }
 
         if (D2P_CUSTOMLIST_GENERATOR_INTERVAL_S > 0) {
-            this.customListGeneratorHandle = scheduler
-                    .scheduleAtFixedRate(new CustomlistProtostreamGenerator(myCacheManagerProvider.getCacheManagerForIndexableCaches()),
+            this.customListGeneratorHandle = schedule(scheduler, "D2P_CUSTOMLIST_GENERATOR",
+                            new CustomlistProtostreamGenerator(myCacheManagerProvider.getCacheManagerForIndexableCaches()),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
                             D2P_CUSTOMLIST_GENERATOR_INTERVAL_S, SECONDS);
         } else {
@@ -257,8 +281,8 @@ public class Dump2Proto {
         }
 
         if (D2P_IOC_GENERATOR_INTERVAL_S > 0) {
-            this.iocGeneratorHandle = scheduler
-                    .scheduleAtFixedRate(new IocProtostreamGenerator(myCacheManagerProvider.getCacheManagerForIndexableCaches(), ioCKeeper),
+            this.iocGeneratorHandle = schedule(scheduler, "D2P_IOC_GENERATOR",
+                            new IocProtostreamGenerator(myCacheManagerProvider.getCacheManagerForIndexableCaches(), ioCKeeper),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
                             D2P_IOC_GENERATOR_INTERVAL_S, SECONDS);
         } else {
@@ -266,8 +290,8 @@ public class Dump2Proto {
         }
 
         if (D2P_WHITELIST_GENERATOR_INTERVAL_S > 0) {
-            this.whitelistGeneratorHandle = scheduler
-                    .scheduleAtFixedRate(new WhitelistProtostreamGenerator(myCacheManagerProvider.getWhitelistCache()),
+            this.whitelistGeneratorHandle = schedule(scheduler, "D2P_WHITELIST_GENERATOR",
+                            new WhitelistProtostreamGenerator(myCacheManagerProvider.getWhitelistCache()),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
                             D2P_WHITELIST_GENERATOR_INTERVAL_S, SECONDS);
         } else {
@@ -275,8 +299,7 @@ public class Dump2Proto {
         }
 
         if (D2P_ALL_CUSTOMLIST_GENERATOR_INTERVAL_S > 0) {
-            this.allCustomlistGeneratorHandle = scheduler
-                    .scheduleAtFixedRate(
+            this.allCustomlistGeneratorHandle = schedule(scheduler, "D2P_ALL_CUSTOMLIST_GENERATOR",
                             new IoCWithCustomProtostreamGenerator(myCacheManagerProvider.getCacheManagerForIndexableCaches(),
                                     IoCWithCustomProtostreamGenerator.SCOPE.CUSTOM_LISTS_ONLY, ioCKeeper),
                             (new Random()).nextInt((MAX_DELAY_BEFORE_START_S - MIN_DELAY_BEFORE_START_S) + 1) + MIN_DELAY_BEFORE_START_S,
@@ -286,6 +309,20 @@ public class Dump2Proto {
         }
     }
 
+    /**
+     * Schedules the generator guarded by its budget D2P_..._BUDGET_S and overrun policy D2P_..._OVERRUN,
+     * e.g. D2P_RESOLVER_CACHE_GENERATOR_BUDGET_S, defaulting to D2P_GENERATOR_BUDGET_S and D2P_GENERATOR_OVERRUN
+     */
+    private static ScheduledFuture<?> schedule(final ScheduledExecutorService scheduler, final String generator, final Runnable task,
+                                               final long initialDelay, final long period, final TimeUnit unit) {
+        final GuardedRun guardedRun = new GuardedRun(generator, task,
+                Integer.parseInt(System.getProperty(generator + "_BUDGET_S", String.valueOf(D2P_GENERATOR_BUDGET_S))),
+                GuardedRun.OverrunPolicy.valueOf(System.getProperty(generator + "_OVERRUN", D2P_GENERATOR_OVERRUN).toUpperCase()));
+        log.info("Thread " + Thread.currentThread().getName() + ": " + generator + " every " + period + " " + unit
+                + ", overrun policy " + guardedRun.getPolicy());
+        return guardedRun.scheduleAtFixedRate(scheduler, initialDelay, period, unit);
+    }
+
     public void cancelAll() {
         if (iocGeneratorHandle != null) {
             iocGeneratorHandle.cancel(true);
@@ -309,6 +346,9 @@ public class Dump2Proto {
         if (iocDumperHandle != null) {
             iocDumperHandle.cancel(true);
         }
+        if (resolverPartitionerHandle != null) {
+            resolverPartitionerHandle.cancel(true);
+        }
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
@@ -1,12 +1,14 @@
 package biz.karms;
 
+import biz.karms.protostream.threat.processing.ResolverWorkQueue;
 import org.infinispan.client.hotrod.annotation.ClientCacheEntryCreated;
 import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
+import org.infinispan.client.hotrod.annotation.ClientCacheEntryRemoved;
 import org.infinispan.client.hotrod.annotation.ClientListener;
 import org.infinispan.client.hotrod.event.ClientCacheEntryCreatedEvent;
 import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
+import org.infinispan.client.hotrod.event.ClientCacheEntryRemovedEvent;
 
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,22 +20,28 @@ public class EndUserCacheUpdateListener {
 
     private static final Logger log = Logger.getLogger(EndUserCacheUpdateListener.class.getName());
 
-    private final ConcurrentLinkedDeque<Integer> clientIDs;
+    private final ResolverWorkQueue workQueue;
 
-    public EndUserCacheUpdateListener(ConcurrentLinkedDeque<Integer> clientIDs) {
-        this.clientIDs = clientIDs;
+    public EndUserCacheUpdateListener(ResolverWorkQueue workQueue) {
+        this.workQueue = workQueue;
     }
 
     @ClientCacheEntryCreated
     public void handleCreatedEvent(ClientCacheEntryCreatedEvent e) {
         log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": End user configuration created: " + e.getKey());
-        clientIDs.push(Integer.parseInt(((String) e.getKey()).split(":")[0]));
+        workQueue.offerClient(Integer.parseInt(((String) e.getKey()).split(":")[0]));
     }
 
     @ClientCacheEntryModified
     public void handleModifiedEvent(ClientCacheEntryModifiedEvent e) {
         log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": End user configuration modified: " + e.getKey());
-        clientIDs.push(Integer.parseInt(((String) e.getKey()).split(":")[0]));
+        workQueue.offerClient(Integer.parseInt(((String) e.getKey()).split(":")[0]));
+    }
+
+    @ClientCacheEntryRemoved
+    public void handleRemovedEvent(ClientCacheEntryRemovedEvent e) {
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": End user configuration removed: " + e.getKey());
+        workQueue.offerClient(Integer.parseInt(((String) e.getKey()).split(":")[0]));
     }
 
 }
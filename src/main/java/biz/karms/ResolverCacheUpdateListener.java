@@ -1,12 +1,12 @@
 package biz.karms;
 
+import biz.karms.protostream.threat.processing.ResolverWorkQueue;
 import org.infinispan.client.hotrod.annotation.ClientCacheEntryCreated;
 import org.infinispan.client.hotrod.annotation.ClientCacheEntryModified;
 import org.infinispan.client.hotrod.annotation.ClientListener;
 import org.infinispan.client.hotrod.event.ClientCacheEntryCreatedEvent;
 import org.infinispan.client.hotrod.event.ClientCacheEntryModifiedEvent;
 
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,22 +18,22 @@ public class ResolverCacheUpdateListener {
 
     private static final Logger log = Logger.getLogger(ResolverCacheUpdateListener.class.getName());
 
-    private final ConcurrentLinkedDeque<Integer> resolverIDs;
+    private final ResolverWorkQueue workQueue;
 
-    public ResolverCacheUpdateListener(ConcurrentLinkedDeque<Integer> resolverIDs) {
-        this.resolverIDs = resolverIDs;
+    public ResolverCacheUpdateListener(ResolverWorkQueue workQueue) {
+        this.workQueue = workQueue;
     }
 
     @ClientCacheEntryCreated
     public void handleCreatedEvent(ClientCacheEntryCreatedEvent e) {
         log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Resolver created: " + e.getKey());
-        resolverIDs.push((Integer) e.getKey());
+        workQueue.offer((Integer) e.getKey(), ResolverWorkQueue.Lane.CHANGED);
     }
 
     @ClientCacheEntryModified
     public void handleModifiedEvent(ClientCacheEntryModifiedEvent e) {
         log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Resolver modified: " + e.getKey());
-        resolverIDs.push((Integer) e.getKey());
+        workQueue.offer((Integer) e.getKey(), ResolverWorkQueue.Lane.CHANGED);
     }
 
 }
@@ -0,0 +1,153 @@
+package biz.karms.protostream;
+
+import lombok.Getter;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Scheduled generator with a time budget per run and a policy for runs whose time slot passed while the previous run
+ * was still going on, which {@link ScheduledExecutorService#scheduleAtFixedRate} would otherwise all run back-to-back.
+ * <p>
+ * A {@link Budgeted} generator gets the deadline of the run and stops at it, others are just reported to be over budget.
+ * Durations of runs are recorded in {@link RunStatistics}.
+ *
+ * @author Michal Karm Babacek
+ */
+public class GuardedRun implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(GuardedRun.class.getName());
+
+    /**
+     * What happens to runs whose time slot has passed meanwhile
+     */
+    public enum OverrunPolicy {
+        /**
+         * Missed slots are skipped, the next run waits for its slot. A budgeted generator drops work left over.
+         */
+        SKIP,
+        /**
+         * Missed slots coalesce into a single run right away. A budgeted generator keeps work left over and adds new.
+         */
+        COALESCE,
+        /**
+         * Missed slots coalesce into a single run right away. A budgeted generator continues with the work left over
+         * before it starts anything new.
+         */
+        RESUME
+    }
+
+    /**
+     * Generator which stops once its deadline is exceeded
+     */
+    public interface Budgeted extends Runnable {
+        void run(Deadline deadline);
+
+        @Override
+        default void run() {
+            run(Deadline.NONE);
+        }
+    }
+
+    /**
+     * Deadline of a single run and the policy for the work left over once it is exceeded
+     */
+    public static class Deadline {
+
+        public static final Deadline NONE = new Deadline(0, OverrunPolicy.COALESCE, null);
+
+        private final long endNanos;
+        @Getter
+        private final OverrunPolicy policy;
+        private final LongSupplier nanoClock;
+
+        public Deadline(final long endNanos, final OverrunPolicy policy, final LongSupplier nanoClock) {
+            this.endNanos = endNanos;
+            this.policy = policy;
+            this.nanoClock = nanoClock;
+        }
+
+        public boolean isExceeded() {
+            return nanoClock != null && nanoClock.getAsLong() - endNanos >= 0;
+        }
+    }
+
+    private final String name;
+    private final Runnable task;
+    private final long budgetNanos;
+    @Getter
+    private final OverrunPolicy policy;
+    @Getter
+    private final RunStatistics statistics = new RunStatistics();
+    private final LongSupplier nanoClock;
+
+    // runs of a periodic task never overlap and each one happens-before the next one
+    private long originNanos;
+    private long periodNanos;
+    private long slots;
+    private long lastEndNanos;
+    private boolean lastCatchingUp;
+
+    /**
+     * @param name    name of the generator in the log
+     * @param task    the generator
+     * @param budgetS time budget of a run, 0 for the interval
+     * @param policy  what happens to missed runs
+     */
+    public GuardedRun(final String name, final Runnable task, final long budgetS, final OverrunPolicy policy) {
+        this(name, task, TimeUnit.SECONDS.toNanos(budgetS), policy, System::nanoTime);
+    }
+
+    GuardedRun(final String name, final Runnable task, final long budgetNanos, final OverrunPolicy policy, final LongSupplier nanoClock) {
+        this.name = name;
+        this.task = Objects.requireNonNull(task, "Task cannot be null");
+        this.budgetNanos = budgetNanos;
+        this.policy = Objects.requireNonNull(policy, "Overrun policy cannot be null");
+        this.nanoClock = nanoClock;
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(final ScheduledExecutorService scheduler, final long initialDelay, final long period, final TimeUnit unit) {
+        setSchedule(nanoClock.getAsLong() + unit.toNanos(initialDelay), unit.toNanos(period));
+        return scheduler.scheduleAtFixedRate(this, initialDelay, period, unit);
+    }
+
+    void setSchedule(final long originNanos, final long periodNanos) {
+        this.originNanos = originNanos;
+        this.periodNanos = periodNanos;
+    }
+
+    @Override
+    public void run() {
+        final long start = nanoClock.getAsLong();
+        // the slot this run was scheduled for, a slot which passed during the previous run is a catch up
+        final boolean catchingUp = slots > 0 && originNanos + slots * periodNanos - lastEndNanos < 0;
+        slots++;
+        if (catchingUp && (policy == OverrunPolicy.SKIP || lastCatchingUp)) {
+            statistics.recordSkipped();
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + name + " missed its slot, skipping...");
+            return;
+        }
+        lastCatchingUp = catchingUp;
+        final long budget = budgetNanos > 0 ? budgetNanos : periodNanos;
+        try {
+            if (task instanceof Budgeted && budget > 0) {
+                ((Budgeted) task).run(new Deadline(start + budget, policy, nanoClock));
+            } else {
+                task.run();
+            }
+        } finally {
+            lastEndNanos = nanoClock.getAsLong();
+            final long duration = lastEndNanos - start;
+            final boolean isOverBudget = budget > 0 && duration > budget;
+            statistics.recordRun(TimeUnit.NANOSECONDS.toMillis(duration), isOverBudget);
+            logger.log(isOverBudget ? Level.WARNING : Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + name + " run took "
+                    + TimeUnit.NANOSECONDS.toMillis(duration) + " ms" + (isOverBudget ? ", over its budget of " + TimeUnit.NANOSECONDS.toMillis(budget) + " ms" : "")
+                    + ", " + statistics);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package biz.karms.protostream;
 
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.ioc.IoCSnapshot;
 import biz.karms.protostream.ioc.marshallers.*;
 import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -9,15 +10,17 @@ import org.infinispan.protostream.ProtobufUtil;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.protostream.config.Configuration;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,19 +36,42 @@ public class IoCDumper implements Runnable {
 
     private final IoCKeeper ioCKeeper;
 
-    private static final String iocDumpFilePath = GENERATED_PROTOFILES_DIRECTORY + "/iocdump.bin";
-    private static final String iocDumpFilePathTmp = GENERATED_PROTOFILES_DIRECTORY + "/iocdump.bin.tmp";
-    private static final String iocDumpFileMd5 = GENERATED_PROTOFILES_DIRECTORY + "/iocdump.bin.md5";
-    private static final String iocDumpFileMd5Tmp = GENERATED_PROTOFILES_DIRECTORY + "/iocdump.bin.md5.tmp";
+    /**
+     * md5 of the last written dump, the snapshot fingerprint does not cover all fields of the dumped records
+     */
+    private String dumpedMd5 = null;
+
+    public static final String IOC_DUMP_FILE_NAME = "iocdump.bin";
+    public static final String iocDumpFilePath = GENERATED_PROTOFILES_DIRECTORY + "/" + IOC_DUMP_FILE_NAME;
     public static final String BLACKLISTED_RECORD_PROTOBUF = "/sinkitprotobuf/blacklisted_record.proto";
 
+    private final Path iocDumpFilePathP;
+    private final Path iocDumpFilePathTmpP;
+    private final Path iocDumpFileMd5P;
+    private final Path iocDumpFileMd5TmpP;
+
     public IoCDumper(final IoCKeeper ioCKeeper) {
+        this(ioCKeeper, Paths.get(GENERATED_PROTOFILES_DIRECTORY));
+    }
+
+    public IoCDumper(final IoCKeeper ioCKeeper, final Path directory) {
         this.ioCKeeper = ioCKeeper;
+        this.iocDumpFilePathP = directory.resolve(IOC_DUMP_FILE_NAME);
+        this.iocDumpFilePathTmpP = directory.resolve(IOC_DUMP_FILE_NAME + ".tmp");
+        this.iocDumpFileMd5P = directory.resolve(IOC_DUMP_FILE_NAME + ".md5");
+        this.iocDumpFileMd5TmpP = directory.resolve(IOC_DUMP_FILE_NAME + ".md5.tmp");
     }
 
     @Override
     public void run() {
-        final List<BlacklistedRecord> iocs = new LinkedList<>(ioCKeeper.getBlacklistedRecords());
+        final IoCSnapshot snapshot = ioCKeeper.getSnapshot();
+        final Optional<Collection<BlacklistedRecord>> records = snapshot.getRecords();
+        if (!records.isPresent()) {
+            log.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": IoC snapshot store does not keep BlacklistedRecords, IoC dump is not supported with it. Skipping this iteration.");
+            return;
+        }
+        // ArrayList, that is the type BlacklistedRecordListMarshaller is registered for
+        final List<BlacklistedRecord> iocs = new ArrayList<>(records.get());
 
         if (iocs.isEmpty()) {
             log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": IoCKeeper holds no IoCs, probably not ready yet. Skipping this iteration.");
@@ -54,40 +80,66 @@ public class IoCDumper implements Runnable {
 
         // Serialization fo tiles
         long start = System.currentTimeMillis();
-        final SerializationContext ctx = ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
+        final SerializationContext ctx;
         try {
-            ctx.registerProtoFiles(FileDescriptorSource.fromResources(BLACKLISTED_RECORD_PROTOBUF));
+            ctx = newSerializationContext();
         } catch (IOException e) {
-            log.log(Level.SEVERE, "Not found " + D2P_CACHE_PROTOBUF + ". Cannot recover, quitting task.", e);
+            log.log(Level.SEVERE, "Not found " + BLACKLISTED_RECORD_PROTOBUF + ". Cannot recover, quitting task.", e);
             return;
         }
-        ctx.registerMarshaller(new TypeIocIDMarshaller());
-        ctx.registerMarshaller(new NameNumberMarshaller());
-        ctx.registerMarshaller(new SourceMarshaller());
-        ctx.registerMarshaller(new AccuracyMarshaller());
-        ctx.registerMarshaller(new BlacklistedRecordMarshaller());
-        ctx.registerMarshaller(new BlacklistedRecordListMarshaller());
 
-        Path iocDumpFilePathTmpP = Paths.get(iocDumpFilePathTmp);
-        Path iocDumpFilePathP = Paths.get(iocDumpFilePath);
+        final byte[] dump;
+        try {
+            dump = ProtobufUtil.toByteArray(ctx, iocs);
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "IOCDump: failed protobuffer serialization.", e);
+            return;
+        }
+        final String md5 = DigestUtils.md5Hex(dump);
+        if (md5.equals(dumpedMd5) && Files.isRegularFile(iocDumpFilePathP)) {
+            // the dump is verified as current, warm start judges its age by mtime
+            try {
+                Files.setLastModifiedTime(iocDumpFilePathP, FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": IOCDump: failed to touch " + iocDumpFilePathP + ".", e);
+            }
+            log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": IoC snapshot generation " + snapshot.getGeneration() + " dumps the same as the dumped one. Skipping this iteration.");
+            return;
+        }
         try (SeekableByteChannel s = Files.newByteChannel(iocDumpFilePathTmpP, options, attr)) {
-            s.write(ProtobufUtil.toByteBuffer(ctx, iocs));
-            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFilePathTmp + " written.");
+            s.write(ByteBuffer.wrap(dump));
+            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFilePathTmpP + " written.");
         } catch (IOException e) {
             log.log(Level.SEVERE, "IOCDump: failed protobuffer serialization.", e);
         }
-        try (FileInputStream fis = new FileInputStream(new File(iocDumpFilePathTmp))) {
-            Files.write(Paths.get(iocDumpFileMd5Tmp), DigestUtils.md5Hex(fis).getBytes());
-            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFileMd5Tmp + " written.");
+        try {
+            Files.write(iocDumpFileMd5TmpP, md5.getBytes());
+            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFileMd5TmpP + " written.");
             // There is a race condition when we swap files while REST API is reading them...
             Files.move(iocDumpFilePathTmpP, iocDumpFilePathP, REPLACE_EXISTING);
-            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFilePathTmp + " moved to " + iocDumpFilePath + ".");
-            Files.move(Paths.get(iocDumpFileMd5Tmp), Paths.get(iocDumpFileMd5), REPLACE_EXISTING);
-            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFileMd5Tmp + " moved to " + iocDumpFileMd5 + ".");
+            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFilePathTmpP + " moved to " + iocDumpFilePathP + ".");
+            Files.move(iocDumpFileMd5TmpP, iocDumpFileMd5P, REPLACE_EXISTING);
+            log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: " + iocDumpFileMd5TmpP + " moved to " + iocDumpFileMd5P + ".");
+            dumpedMd5 = md5;
         } catch (IOException e) {
             log.log(Level.SEVERE, "IOCDump: failed protofile manipulation.", e);
         }
 
         log.info("Thread " + Thread.currentThread().getName() + ": IOCDump: Serialization took: " + (System.currentTimeMillis() - start) + " ms.");
     }
+
+    /**
+     * Context the IoC dump is written with, {@link IoCKeeper} reads the dump back with it on warm start.
+     */
+    public static SerializationContext newSerializationContext() throws IOException {
+        final SerializationContext ctx = ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
+        ctx.registerProtoFiles(FileDescriptorSource.fromResources(BLACKLISTED_RECORD_PROTOBUF));
+        ctx.registerMarshaller(new TypeIocIDMarshaller());
+        ctx.registerMarshaller(new NameNumberMarshaller());
+        ctx.registerMarshaller(new SourceMarshaller());
+        ctx.registerMarshaller(new AccuracyMarshaller());
+        ctx.registerMarshaller(new BlacklistedRecordMarshaller());
+        ctx.registerMarshaller(new BlacklistedRecordListMarshaller());
+        return ctx;
+    }
 }
@@ -1,11 +1,12 @@
 package biz.karms.protostream;
 
 import biz.karms.cache.annotations.SinkitCacheName;
+import biz.karms.protostream.ioc.IoCCursor;
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.ioc.IoCSnapshot;
 import biz.karms.protostream.marshallers.ActionMarshaller;
 import biz.karms.protostream.marshallers.CoreCacheMarshaller;
 import biz.karms.protostream.marshallers.SinkitCacheEntryMarshaller;
-import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
 import biz.karms.sinkit.ejb.cache.pojo.CustomList;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -28,11 +29,13 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import static biz.karms.Dump2Proto.*;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -50,6 +53,12 @@ public class IoCWithCustomProtostreamGenerator implements Runnable {
 
     private final SCOPE scope;
 
+    /**
+     * Fingerprint of the IoC snapshot and the hashed custom list domains the last ALL file was generated from
+     */
+    private Long generatedIoCFingerprint = null;
+    private Set<String> generatedCustomLists = null;
+
     public enum SCOPE {
         // Expensive
         ALL,
@@ -76,7 +85,8 @@ public class IoCWithCustomProtostreamGenerator implements Runnable {
          */
         if (scope == SCOPE.ALL) {
 
-            if (ioCKeeper.getBlacklistedRecords().isEmpty()) {
+            final IoCSnapshot snapshot = ioCKeeper.getSnapshot();
+            if (snapshot.isEmpty()) {
                 log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": IoCKeeper holds no IoCs, probably not ready yet. Skipping this iteration.");
                 return;
             }
@@ -92,8 +102,19 @@ public class IoCWithCustomProtostreamGenerator implements Runnable {
                 }
             });
 
-            iocWithCustom.putAll(ioCKeeper.getBlacklistedRecords().stream().unordered().filter(e -> !e.getPresentOnWhiteList())
-                    .collect(Collectors.toMap(BlacklistedRecord::getBlackListedDomainOrIP, s -> Action.CHECK)));
+            // all custom list domains are CHECK, the domains are the whole content
+            final Set<String> customLists = new HashSet<>(iocWithCustom.keySet());
+            if (Objects.equals(generatedIoCFingerprint, snapshot.getFingerprint()) && customLists.equals(generatedCustomLists)) {
+                log.info("Thread " + Thread.currentThread().getName() + ": IoCWithCustom: Neither IoCs (generation " + snapshot.getGeneration() + ") nor custom lists changed since the last run. Skipping this iteration.");
+                return;
+            }
+
+            final IoCCursor ioc = snapshot.cursor();
+            while (ioc.next()) {
+                if (!ioc.isPresentOnWhiteList()) {
+                    iocWithCustom.put(ioc.getBlackListedDomainOrIP(), Action.CHECK);
+                }
+            }
 
 
             final SerializationContext ctx = ProtobufUtil.newSerializationContext(new Configuration.Builder().build());
@@ -122,6 +143,8 @@ public class IoCWithCustomProtostreamGenerator implements Runnable {
                 // There is a race condition when we swap files while REST API is reading them...
                 Files.move(iocWithCustomFilePathTmpP, iocWithCustomFilePathP, REPLACE_EXISTING);
                 Files.move(Paths.get(iocWithCustomFileMd5Tmp), Paths.get(iocWithCustomFileMd5), REPLACE_EXISTING);
+                generatedIoCFingerprint = snapshot.getFingerprint();
+                generatedCustomLists = customLists;
             } catch (IOException e) {
                 log.severe("IoCWithCustom: failed protofile manipulation.");
                 e.printStackTrace();
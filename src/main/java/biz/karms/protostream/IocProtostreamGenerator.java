@@ -1,7 +1,9 @@
 package biz.karms.protostream;
 
 import biz.karms.cache.annotations.SinkitCacheName;
+import biz.karms.protostream.ioc.IoCCursor;
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.ioc.IoCSnapshot;
 import biz.karms.protostream.marshallers.ActionMarshaller;
 import biz.karms.protostream.marshallers.CoreCacheMarshaller;
 import biz.karms.protostream.marshallers.SinkitCacheEntryMarshaller;
@@ -44,6 +46,13 @@ public class IocProtostreamGenerator implements Runnable {
 
     private final RemoteCacheManager cacheManagerForIndexableCaches;
 
+    /**
+     * Fingerprint of the IoC snapshot and the rules the last files were generated from, rules are just hundreds of records
+     */
+    private Long generatedIoCFingerprint = null;
+    private Map<Integer, Set<String>> generatedCustIdFeedUidsSink = null;
+    private Map<Integer, Set<String>> generatedCustIdFeedUidsLog = null;
+
     private static final String iocListFilePath = GENERATED_PROTOFILES_DIRECTORY + "/ioclist.bin";
     private static final String iocListFilePathTmp = GENERATED_PROTOFILES_DIRECTORY + "/ioclist.bin.tmp";
     private static final String iocListFileMd5 = GENERATED_PROTOFILES_DIRECTORY + "/ioclist.bin.md5";
@@ -57,7 +66,8 @@ public class IocProtostreamGenerator implements Runnable {
     @Override
     public void run() {
 
-        if (ioCKeeper.getBlacklistedRecords().isEmpty()) {
+        final IoCSnapshot snapshot = ioCKeeper.getSnapshot();
+        if (snapshot.isEmpty()) {
             log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": IoCKeeper holds no IoCs, probably not ready yet. Skipping this iteration.");
             return;
         }
@@ -89,13 +99,21 @@ public class IocProtostreamGenerator implements Runnable {
         log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: Will process IoCs for " + custIdFeedUidsLog.size() + " customer Log ids.");
         log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: FeedUids lookup took " + (System.currentTimeMillis() - start) + " ms.");
 
+        if (Objects.equals(generatedIoCFingerprint, snapshot.getFingerprint()) && custIdFeedUidsSink.equals(generatedCustIdFeedUidsSink)
+                && custIdFeedUidsLog.equals(generatedCustIdFeedUidsLog)) {
+            log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: Neither IoCs (generation " + snapshot.getGeneration() + ") nor rules changed since the last run. Skipping this iteration.");
+            return;
+        }
+
         // final List<String> feeduids = results.stream().map(Rule::getSources).collect(Collectors.toList()).stream().map(Map::keySet).flatMap(Set::stream).collect(Collectors.toList());
         final Map<Integer, Map<String, Action>> preparedHashes = new HashMap<>();
 
-        ioCKeeper.getBlacklistedRecords().stream().unordered().forEach(v -> {
-            String k = v.getBlackListedDomainOrIP();
-            if (!v.getPresentOnWhiteList()) {
-                v.getSources().keySet().forEach(feeduid -> {
+        final IoCCursor ioc = snapshot.cursor();
+        while (ioc.next()) {
+            if (!ioc.isPresentOnWhiteList()) {
+                final String k = ioc.getBlackListedDomainOrIP();
+                for (int sourceIdx = 0; sourceIdx < ioc.getSourceCount(); sourceIdx++) {
+                    final String feeduid = snapshot.getFeeds().get(ioc.getSourceFeed(sourceIdx));
                     custIdFeedUidsLog.entrySet().stream().filter(e -> e.getValue().contains(feeduid)).forEach(found -> {
                         if (preparedHashes.containsKey(found.getKey())) {
                             preparedHashes.get(found.getKey()).put(k, Action.LOG);
@@ -114,10 +132,9 @@ public class IocProtostreamGenerator implements Runnable {
                             preparedHashes.put(found.getKey(), newHashes);
                         }
                     });
-                });
+                }
             }
-
-        });
+        }
 
         // Serialization fo tiles
         start = System.currentTimeMillis();
@@ -134,6 +151,7 @@ public class IocProtostreamGenerator implements Runnable {
         ctx.registerMarshaller(new ActionMarshaller());
 
         final AtomicInteger workCounter = new AtomicInteger(1);
+        final AtomicInteger failures = new AtomicInteger(0);
         preparedHashes.forEach((k, v) -> {
             log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: processing Ioc data file for serialization " + workCounter.getAndIncrement() + "/" + preparedHashes.size() + ", customer id: " + k);
             Path iocListFilePathTmpP = Paths.get(iocListFilePathTmp + k);
@@ -142,6 +160,7 @@ public class IocProtostreamGenerator implements Runnable {
                 s.write(ProtobufUtil.toByteBuffer(ctx, v));
                 log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: " + iocListFilePathTmp + k + " written.");
             } catch (IOException e) {
+                failures.incrementAndGet();
                 log.severe("IOCListProtostreamGenerator: failed protobuffer serialization for customer id " + k);
                 e.printStackTrace();
             }
@@ -154,10 +173,16 @@ public class IocProtostreamGenerator implements Runnable {
                 Files.move(Paths.get(iocListFileMd5Tmp + k), Paths.get(iocListFileMd5 + k), REPLACE_EXISTING);
                 log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: " + iocListFileMd5Tmp + k + " moved to " + iocListFileMd5 + k + ".");
             } catch (IOException e) {
+                failures.incrementAndGet();
                 log.severe("IOCListProtostreamGenerator: failed protofile manipulation for customer id " + k);
                 e.printStackTrace();
             }
         });
+        if (failures.get() == 0) {
+            generatedIoCFingerprint = snapshot.getFingerprint();
+            generatedCustIdFeedUidsSink = custIdFeedUidsSink;
+            generatedCustIdFeedUidsLog = custIdFeedUidsLog;
+        }
         log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: Serialization of ioc lists took: " + (System.currentTimeMillis() - start) + " ms.");
         long overallTimeSpent = (System.currentTimeMillis() - overallStart);
         log.info("Thread " + Thread.currentThread().getName() + ": IOCListProtostreamGenerator: All IoC processing took " + overallTimeSpent + " ms.");
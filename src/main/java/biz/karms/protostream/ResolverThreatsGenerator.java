@@ -1,57 +1,94 @@
 package biz.karms.protostream;
 
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.protostream.threat.processing.ResolverPartitioner;
 import biz.karms.protostream.threat.processing.ResolverThreatsProcessor;
+import biz.karms.protostream.threat.processing.ResolverWorkQueue;
 import org.infinispan.client.hotrod.RemoteCacheManager;
 
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.BitSet;
+import java.util.Objects;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ResolverThreatsGenerator implements Runnable {
+/**
+ * Exports resolvers taken from the shared {@link ResolverWorkQueue}: the full sweep queues all resolvers and takes from
+ * all lanes, the listener driven generator takes changed resolvers only. Changed resolvers are taken first by both.
+ */
+public class ResolverThreatsGenerator implements GuardedRun.Budgeted {
 
     private static final Logger logger = Logger.getLogger(ResolverThreatsGenerator.class.getName());
 
     private RemoteCacheManager remoteCacheManagerForIndexableCaches;
     private int batchSize;
-    private final ConcurrentLinkedDeque<Integer> resolverIDs;
-    private final ConcurrentLinkedDeque<Integer> clientIDs;
+    private final ResolverWorkQueue workQueue;
+    private final ResolverWorkQueue.Lane lowestLane;
     private final ThreadPoolExecutor notificationExecutor;
     private final IoCKeeper ioCKeeper;
+    private final ResolverPartitioner partitioner;
+    // changed resolvers are exported by the listener driven generator, the sweep does not have to wait for them
+    private final boolean isChangedLaneDrained;
+    // IoC fingerprint of the last complete sweep over all resolvers
+    private Long processedFingerprint;
+    // buckets held during the last complete sweep, if partitioned
+    private BitSet processedBuckets;
 
     public ResolverThreatsGenerator(RemoteCacheManager remoteCacheManagerForIndexableCaches,
-                                    int batchSize, ConcurrentLinkedDeque<Integer> resolverIDs,
-                                    ConcurrentLinkedDeque<Integer> clientIDs, ThreadPoolExecutor notificationExecutor, IoCKeeper ioCKeeper) {
+                                    int batchSize, ResolverWorkQueue workQueue,
+                                    ResolverWorkQueue.Lane lowestLane, ThreadPoolExecutor notificationExecutor, IoCKeeper ioCKeeper,
+                                    ResolverPartitioner partitioner, boolean isChangedLaneDrained) {
         this.remoteCacheManagerForIndexableCaches = remoteCacheManagerForIndexableCaches;
         this.batchSize = batchSize;
-        this.resolverIDs = resolverIDs;
-        this.clientIDs = clientIDs;
+        this.workQueue = Objects.requireNonNull(workQueue, "Work queue cannot be null");
+        this.lowestLane = Objects.requireNonNull(lowestLane, "Lane cannot be null");
         this.notificationExecutor = notificationExecutor;
         this.ioCKeeper = ioCKeeper;
+        this.partitioner = partitioner;
+        this.isChangedLaneDrained = isChangedLaneDrained;
     }
 
     @Override
-    public void run() {
-        if ((resolverIDs != null && resolverIDs.isEmpty()) && (clientIDs != null && clientIDs.isEmpty())) {
+    public void run(final GuardedRun.Deadline deadline) {
+        // Resolver and end user configuration changes arrive as IDs when listeners are on, a full sweep only has to catch up with IoCs
+        final boolean fullSweep = lowestLane == ResolverWorkQueue.Lane.SWEEP;
+        if (!fullSweep && !workQueue.hasWork(lowestLane)) {
             logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": There are no recently changed resolvers, skipping...");
             return;
         }
 
-        if (ioCKeeper.getBlacklistedRecords().isEmpty()) {
+        final IoCSnapshot snapshot = ioCKeeper.getSnapshot();
+        if (snapshot.isEmpty()) {
             logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": IoCKeeper holds no IoCs, probably not ready yet. Skipping this iteration.");
             return;
         }
 
-        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Starting exporting resolvers' cache data...");
+        // changes no other generator exports and buckets taken over from another instance have to be swept even if IoCs
+        // have not changed, such sweeps rely on the fingerprint index to skip the unchanged exports
+        if (fullSweep && isChangedLaneDrained && !workQueue.hasWork(ResolverWorkQueue.Lane.CHANGED) && Objects.equals(processedFingerprint, snapshot.getFingerprint())
+                && (partitioner == null || partitioner.getHeld().equals(processedBuckets))) {
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": IoCs have not changed since the last export (generation " + snapshot.getGeneration() + "), skipping...");
+            return;
+        }
+
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Starting exporting resolvers' cache data, " + workQueue + "...");
         long start = System.currentTimeMillis();
-        final boolean isAllProcessed = new ResolverThreatsProcessor(
+        final BitSet buckets = partitioner != null ? partitioner.getHeld() : null;
+        final ResolverThreatsProcessor processor = new ResolverThreatsProcessor(
                 remoteCacheManagerForIndexableCaches,
                 batchSize,
-                resolverIDs,
-                clientIDs,
+                workQueue,
+                lowestLane,
                 notificationExecutor,
-                ioCKeeper).process();
+                ioCKeeper);
+        processor.setPartitioner(partitioner);
+        processor.setDeadline(deadline);
+        final boolean isAllProcessed = processor.process();
+        if (fullSweep && isAllProcessed) {
+            processedFingerprint = snapshot.getFingerprint();
+            processedBuckets = buckets;
+        }
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Exporting of resolvers' cache data has finished " + (isAllProcessed ? "successfully" : "unsuccessfully") + " in " + (System.currentTimeMillis() - start) + " ms.");
     }
 }
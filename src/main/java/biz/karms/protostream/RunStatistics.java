@@ -0,0 +1,76 @@
+package biz.karms.protostream;
+
+import java.util.Arrays;
+
+/**
+ * Durations of the runs of a scheduled generator, to size its interval and budget from data rather than guesses.
+ * Percentiles are computed from the last {@value #WINDOW} runs, the rest since the start.
+ *
+ * @author Michal Karm Babacek
+ */
+public class RunStatistics {
+
+    static final int WINDOW = 100;
+
+    private final long[] window = new long[WINDOW];
+    private long runs;
+    private long skipped;
+    private long overBudget;
+    private long lastMs;
+    private long minMs = Long.MAX_VALUE;
+    private long maxMs;
+    private long totalMs;
+
+    public synchronized void recordRun(final long durationMs, final boolean isOverBudget) {
+        window[(int) (runs % WINDOW)] = durationMs;
+        runs++;
+        if (isOverBudget) {
+            overBudget++;
+        }
+        lastMs = durationMs;
+        minMs = Math.min(minMs, durationMs);
+        maxMs = Math.max(maxMs, durationMs);
+        totalMs += durationMs;
+    }
+
+    public synchronized void recordSkipped() {
+        skipped++;
+    }
+
+    public synchronized long getRuns() {
+        return runs;
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized long getOverBudget() {
+        return overBudget;
+    }
+
+    public synchronized long getMeanMs() {
+        return runs == 0 ? 0 : totalMs / runs;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return duration not exceeded by the given percentage of the recent runs, 0 if there were none
+     */
+    public synchronized long getPercentileMs(final int percentile) {
+        final int size = (int) Math.min(runs, WINDOW);
+        if (size == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(window, size);
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(size * percentile / 100.0) - 1)];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RunStatistics(runs=" + runs + ", skipped=" + skipped + ", overBudget=" + overBudget + ", lastMs=" + lastMs
+                + ", minMs=" + (runs == 0 ? 0 : minMs) + ", meanMs=" + getMeanMs() + ", p50Ms=" + getPercentileMs(50)
+                + ", p95Ms=" + getPercentileMs(95) + ", maxMs=" + maxMs + ")";
+    }
+}
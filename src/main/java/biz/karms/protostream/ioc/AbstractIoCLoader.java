@@ -0,0 +1,81 @@
+package biz.karms.protostream.ioc;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs units of a load, i.e. bulks or segments, with several of them in flight at once.
+ * <p>
+ * Units are submitted as results are consumed, so at most parallelism units are being fetched or waiting to be
+ * consumed at any time. A failed unit is retried on its own. Hot Rod 8.2 has no async bulk operations, so the blocking
+ * calls run on a pool of parallelism threads. Results are always consumed on the calling thread.
+ *
+ * @author Michal Karm Babacek
+ */
+abstract class AbstractIoCLoader {
+
+    private static final Logger log = Logger.getLogger(AbstractIoCLoader.class.getName());
+
+    private final int parallelism;
+    private final int retries;
+    private final long retryDelayMs;
+
+    AbstractIoCLoader(final int parallelism, final int retries, final long retryDelayMs) {
+        this.parallelism = Math.max(1, parallelism);
+        this.retries = Math.max(0, retries);
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    /**
+     * @param units    number of units
+     * @param unit     creates the fetch of the unit with the given index, the fetch is called again on retry
+     * @param consumer consumes fetched units
+     */
+    <T> void fetchUnits(final int units, final IntFunction<Callable<T>> unit, final Consumer<T> consumer) {
+        if (units == 0) {
+            return;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, units));
+        try {
+            final CompletionService<T> completionService = new ExecutorCompletionService<>(executor);
+            int submitted = 0;
+            for (int completed = 0; completed < units; completed++) {
+                while (submitted < units && submitted - completed < parallelism) {
+                    final int unitIdx = submitted++;
+                    final Callable<T> fetch = unit.apply(unitIdx);
+                    completionService.submit(() -> withRetries(fetch, unitIdx));
+                }
+                consumer.accept(completionService.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fetching IoCs.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to fetch IoCs.", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private <T> T withRetries(final Callable<T> fetch, final int unitIdx) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return fetch.call();
+            } catch (RuntimeException e) {
+                if (attempt >= retries) {
+                    throw e;
+                }
+                log.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": " + getClass().getSimpleName() + ": Unit " + unitIdx + " failed, attempt " + (attempt + 1) + "/" + (retries + 1) + ", retrying.", e);
+                Thread.sleep(retryDelayMs * (attempt + 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package biz.karms.protostream.ioc;
+
+/**
+ * Generation id, feed index, crc64 ordering of rows and content fingerprint shared by snapshot implementations.
+ * <p>
+ * The fingerprint is a sum of per IoC hashes over crc64, max accuracy, whitelist flag and feed/type names of sources,
+ * i.e. over everything the generators read. It does not depend on the order of IoCs nor on dictionary ids, so two
+ * snapshots loaded separately from the same cache content have the same fingerprint.
+ *
+ * @author Michal Karm Babacek
+ */
+abstract class AbstractIoCSnapshot implements IoCSnapshot {
+
+    private volatile long generation = 0;
+    private volatile IoCFeedIndex feedIndex = null;
+
+    @Override
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Set by {@link IoCKeeper} once, before the snapshot is published.
+     */
+    void setGeneration(final long generation) {
+        this.generation = generation;
+    }
+
+    @Override
+    public IoCFeedIndex getFeedIndex() {
+        return feedIndex;
+    }
+
+    /**
+     * Set by {@link IoCKeeper} before the snapshot is published.
+     */
+    void setFeedIndex(final IoCFeedIndex feedIndex) {
+        this.feedIndex = feedIndex;
+    }
+
+    /**
+     * @param crc64 crc64 of rows
+     * @param size  number of rows
+     * @return rows ascending by crc64 compared as unsigned, null if they already are
+     */
+    static int[] crc64Order(final long[] crc64, final int size) {
+        boolean sorted = true;
+        for (int row = 1; row < size && sorted; row++) {
+            sorted = Long.compareUnsigned(crc64[row - 1], crc64[row]) <= 0;
+        }
+        if (sorted) {
+            return null;
+        }
+        // sign flipped keys sort as signed longs the way the unsigned keys compare
+        final long[] keys = new long[size];
+        final long[] rows = new long[size];
+        for (int row = 0; row < size; row++) {
+            keys[row] = crc64[row] ^ Long.MIN_VALUE;
+            rows[row] = row;
+        }
+        IoCRowIndex.sort(keys, rows, 0, size - 1);
+        final int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) rows[i];
+        }
+        return order;
+    }
+
+    static long sourceHash(final String feed, final String type) {
+        return mix(feed.hashCode() * 31L + type.hashCode());
+    }
+
+    static long rowHash(final long crc64, final int maxAccuracy, final boolean presentOnWhiteList, final long sourcesHash) {
+        long hash = mix(crc64);
+        hash = mix(hash ^ (maxAccuracy * 2L + (presentOnWhiteList ? 1 : 0)));
+        return mix(hash + sourcesHash);
+    }
+
+    /**
+     * MurmurHash3 finalizer
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
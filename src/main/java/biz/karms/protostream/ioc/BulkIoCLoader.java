@@ -0,0 +1,69 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.infinispan.client.hotrod.Flag;
+import org.infinispan.client.hotrod.RemoteCache;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches IoCs by keys in bulks with several getAll calls in flight at once.
+ * <p>
+ * The key list is partitioned once into views, nothing is copied until a bulk is fetched.
+ *
+ * @author Michal Karm Babacek
+ */
+public class BulkIoCLoader extends AbstractIoCLoader implements IoCLoader {
+
+    private static final Logger log = Logger.getLogger(BulkIoCLoader.class.getName());
+
+    private final int bulkSize;
+
+    public BulkIoCLoader(final int bulkSize, final int parallelism, final int retries, final long retryDelayMs) {
+        super(parallelism, retries, retryDelayMs);
+        this.bulkSize = bulkSize;
+    }
+
+    @Override
+    public IoCSnapshot load(final RemoteCache<String, BlacklistedRecord> cache, final IoCSnapshotStore store) {
+        final long start = System.currentTimeMillis();
+        final List<String> iocKeys = new ArrayList<>(cache.withFlags(Flag.SKIP_CACHE_LOAD).keySet());
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Fetching: There are " + iocKeys.size() + " ioc keys to get data for. Ioc keys retrieval took " + (System.currentTimeMillis() - start) + " ms.");
+        final IoCSnapshot.Builder builder = store.newBuilder(iocKeys.size());
+        boolean isFetched = false;
+        try {
+            fetch(cache, iocKeys, builder::add);
+            isFetched = true;
+        } finally {
+            if (!isFetched) {
+                // a failed load must not leave a partial mapped snapshot behind
+                builder.abort();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Fetches IoCs of the given keys. Keys not present in the cache are not passed to the consumer.
+     * The consumer is always called from the calling thread.
+     */
+    public void fetch(final RemoteCache<String, BlacklistedRecord> cache, final List<String> keys, final BiConsumer<String, BlacklistedRecord> consumer) {
+        final int bulks = (keys.size() % bulkSize == 0) ? keys.size() / bulkSize : keys.size() / bulkSize + 1;
+        final long start = System.currentTimeMillis();
+        fetchUnits(bulks, iteration -> () -> {
+            final long startBulk = System.currentTimeMillis();
+            final List<String> bulkOfKeys = keys.subList(iteration * bulkSize, Math.min(keys.size(), (iteration + 1) * bulkSize));
+            // getAll on the cache - a very expensive call
+            final Map<String, BlacklistedRecord> bulk = cache.withFlags(Flag.SKIP_CACHE_LOAD).getAll(new HashSet<>(bulkOfKeys));
+            log.fine("Thread " + Thread.currentThread().getName() + ": fetchBlacklistedRecord: Retrieved bulk " + iteration + " in " + (System.currentTimeMillis() - startBulk) + " ms.");
+            return bulk;
+        }, bulk -> bulk.forEach(consumer));
+        log.info("Thread " + Thread.currentThread().getName() + ": fetchBlacklistedRecord: All " + bulks + " bulks retrieved in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+}
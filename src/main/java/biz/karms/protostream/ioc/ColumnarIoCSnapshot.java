@@ -0,0 +1,306 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Snapshot storing IoCs in primitive array columns instead of {@link BlacklistedRecord} objects.
+ * <p>
+ * A row is the crc64 as long, the precomputed max accuracy, the whitelist flag and the key as UTF-8 bytes.
+ * Sources are stored as (feed id, type id) pairs, row i owns pairs sourceOffsets[i] to sourceOffsets[i + 1].
+ * Each row also keeps its content hash, the snapshot fingerprint is their sum. Rows are ascending by crc64.
+ * The listing date and the per feed accuracy breakdown are not kept, nothing downstream of the keeper reads them.
+ *
+ * @author Michal Karm Babacek
+ */
+public class ColumnarIoCSnapshot extends AbstractIoCSnapshot {
+
+    private final int size;
+    private final long[] crc64;
+    private final int[] maxAccuracy;
+    private final long[] rowHash;
+    private final BitSet presentOnWhiteList;
+    private final byte[] keys;
+    private final int[] keyOffsets;
+    private final int[] sourceOffsets;
+    private final int[] sourceFeeds;
+    private final int[] sourceTypes;
+    private final IoCDictionary feeds;
+    private final IoCDictionary types;
+    private final long fingerprint;
+
+    private ColumnarIoCSnapshot(final Builder builder) {
+        this.size = builder.size;
+        this.crc64 = new long[size];
+        this.maxAccuracy = new int[size];
+        this.rowHash = new long[size];
+        this.presentOnWhiteList = new BitSet(size);
+        this.keys = new byte[builder.keyOffsets[size]];
+        this.keyOffsets = new int[size + 1];
+        this.sourceOffsets = new int[size + 1];
+        this.sourceFeeds = new int[builder.sourceOffsets[size]];
+        this.sourceTypes = new int[builder.sourceOffsets[size]];
+        // the builder's rows are trimmed and put in crc64 order at once, patched rows come unordered at the end
+        final int[] order = crc64Order(builder.crc64, size);
+        for (int row = 0; row < size; row++) {
+            final int from = order == null ? row : order[row];
+            crc64[row] = builder.crc64[from];
+            maxAccuracy[row] = builder.maxAccuracy[from];
+            rowHash[row] = builder.rowHash[from];
+            presentOnWhiteList.set(row, builder.presentOnWhiteList.get(from));
+            final int keyLength = builder.keyOffsets[from + 1] - builder.keyOffsets[from];
+            System.arraycopy(builder.keys, builder.keyOffsets[from], keys, keyOffsets[row], keyLength);
+            keyOffsets[row + 1] = keyOffsets[row] + keyLength;
+            final int sourceCount = builder.sourceOffsets[from + 1] - builder.sourceOffsets[from];
+            System.arraycopy(builder.sourceFeeds, builder.sourceOffsets[from], sourceFeeds, sourceOffsets[row], sourceCount);
+            System.arraycopy(builder.sourceTypes, builder.sourceOffsets[from], sourceTypes, sourceOffsets[row], sourceCount);
+            sourceOffsets[row + 1] = sourceOffsets[row] + sourceCount;
+        }
+        this.feeds = builder.feeds;
+        this.types = builder.types;
+        long fingerprint = 0;
+        for (int row = 0; row < size; row++) {
+            fingerprint += rowHash[row];
+        }
+        this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IoCCursor cursor() {
+        return new ColumnarCursor(null, 0, size);
+    }
+
+    @Override
+    public IoCCursor cursor(final int[] rows) {
+        return new ColumnarCursor(rows, 0, rows.length);
+    }
+
+    @Override
+    public IoCCursor cursor(final int fromRow, final int toRow) {
+        return new ColumnarCursor(null, fromRow, Math.min(toRow, size));
+    }
+
+    @Override
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public long getHeapBytes() {
+        return 8L * crc64.length + 4L * maxAccuracy.length + 8L * rowHash.length + presentOnWhiteList.size() / 8
+                + keys.length + 4L * keyOffsets.length + 4L * sourceOffsets.length + 4L * sourceFeeds.length + 4L * sourceTypes.length;
+    }
+
+    @Override
+    public IoCDictionary getFeeds() {
+        return feeds;
+    }
+
+    @Override
+    public IoCDictionary getTypes() {
+        return types;
+    }
+
+    @Override
+    public Optional<Collection<BlacklistedRecord>> getRecords() {
+        return Optional.empty();
+    }
+
+    @Override
+    public IoCSnapshot patch(final Set<String> changedKeys, final Map<String, BlacklistedRecord> changed) {
+        // Keys are compared as bytes, no String is decoded for the millions of unchanged rows
+        final Set<ByteBuffer> skipped = new HashSet<>(changedKeys.size() * 4 / 3 + 1);
+        changedKeys.forEach(key -> skipped.add(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))));
+
+        final Builder builder = new Builder(size + changed.size(), feeds.copy(), types.copy());
+        for (int row = 0; row < size; row++) {
+            if (!skipped.contains(ByteBuffer.wrap(keys, keyOffsets[row], keyOffsets[row + 1] - keyOffsets[row]))) {
+                builder.copyRow(this, row);
+            }
+        }
+        changed.forEach(builder::add);
+        return builder.build();
+    }
+
+    public static class Builder implements IoCSnapshot.Builder {
+        private final IoCDictionary feeds;
+        private final IoCDictionary types;
+        private int size = 0;
+        private long[] crc64;
+        private int[] maxAccuracy;
+        private long[] rowHash;
+        private final BitSet presentOnWhiteList = new BitSet();
+        private byte[] keys;
+        private int[] keyOffsets;
+        private int[] sourceOffsets;
+        private int[] sourceFeeds;
+        private int[] sourceTypes;
+
+        public Builder(final int expectedSize) {
+            this(expectedSize, new IoCDictionary(), new IoCDictionary());
+        }
+
+        Builder(final int expectedSize, final IoCDictionary feeds, final IoCDictionary types) {
+            final int capacity = Math.max(expectedSize, 16);
+            this.feeds = feeds;
+            this.types = types;
+            this.crc64 = new long[capacity];
+            this.maxAccuracy = new int[capacity];
+            this.rowHash = new long[capacity];
+            // md5 hex keys are the common case
+            this.keys = new byte[capacity * 32];
+            this.keyOffsets = new int[capacity + 1];
+            this.sourceOffsets = new int[capacity + 1];
+            this.sourceFeeds = new int[capacity * 2];
+            this.sourceTypes = new int[capacity * 2];
+        }
+
+        @Override
+        public void add(final String key, final BlacklistedRecord record) {
+            ensureRowCapacity();
+            crc64[size] = record.getCrc64Hash().longValue();
+            maxAccuracy[size] = IoCSnapshot.computeMaxAccuracy(record);
+            presentOnWhiteList.set(size, Boolean.TRUE.equals(record.getPresentOnWhiteList()));
+            final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            appendKey(keyBytes, 0, keyBytes.length);
+            int sourceIdx = sourceOffsets[size];
+            long sourcesHash = 0;
+            if (record.getSources() != null) {
+                ensureSourceCapacity(sourceIdx + record.getSources().size());
+                for (Map.Entry<String, ImmutablePair<String, String>> source : record.getSources().entrySet()) {
+                    sourceFeeds[sourceIdx] = feeds.intern(source.getKey());
+                    sourceTypes[sourceIdx] = types.intern(source.getValue().getLeft());
+                    sourcesHash += sourceHash(source.getKey(), source.getValue().getLeft());
+                    sourceIdx++;
+                }
+            }
+            rowHash[size] = rowHash(crc64[size], maxAccuracy[size], presentOnWhiteList.get(size), sourcesHash);
+            sourceOffsets[++size] = sourceIdx;
+        }
+
+        /**
+         * Copies a row as is, the snapshot must share dictionary ids with this builder.
+         */
+        void copyRow(final ColumnarIoCSnapshot snapshot, final int row) {
+            ensureRowCapacity();
+            crc64[size] = snapshot.crc64[row];
+            maxAccuracy[size] = snapshot.maxAccuracy[row];
+            rowHash[size] = snapshot.rowHash[row];
+            presentOnWhiteList.set(size, snapshot.presentOnWhiteList.get(row));
+            appendKey(snapshot.keys, snapshot.keyOffsets[row], snapshot.keyOffsets[row + 1] - snapshot.keyOffsets[row]);
+            final int from = snapshot.sourceOffsets[row];
+            final int count = snapshot.sourceOffsets[row + 1] - from;
+            final int sourceIdx = sourceOffsets[size];
+            ensureSourceCapacity(sourceIdx + count);
+            System.arraycopy(snapshot.sourceFeeds, from, sourceFeeds, sourceIdx, count);
+            System.arraycopy(snapshot.sourceTypes, from, sourceTypes, sourceIdx, count);
+            sourceOffsets[++size] = sourceIdx + count;
+        }
+
+        @Override
+        public IoCSnapshot build() {
+            return new ColumnarIoCSnapshot(this);
+        }
+
+        private void appendKey(final byte[] src, final int from, final int length) {
+            final int keyIdx = keyOffsets[size];
+            if (keyIdx + length > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keyIdx + length));
+            }
+            System.arraycopy(src, from, keys, keyIdx, length);
+            keyOffsets[size + 1] = keyIdx + length;
+        }
+
+        private void ensureRowCapacity() {
+            if (size == crc64.length) {
+                final int capacity = crc64.length * 2;
+                crc64 = Arrays.copyOf(crc64, capacity);
+                maxAccuracy = Arrays.copyOf(maxAccuracy, capacity);
+                rowHash = Arrays.copyOf(rowHash, capacity);
+                keyOffsets = Arrays.copyOf(keyOffsets, capacity + 1);
+                sourceOffsets = Arrays.copyOf(sourceOffsets, capacity + 1);
+            }
+        }
+
+        private void ensureSourceCapacity(final int required) {
+            if (required > sourceFeeds.length) {
+                final int capacity = Math.max(sourceFeeds.length * 2, required);
+                sourceFeeds = Arrays.copyOf(sourceFeeds, capacity);
+                sourceTypes = Arrays.copyOf(sourceTypes, capacity);
+            }
+        }
+    }
+
+    private class ColumnarCursor implements IoCCursor {
+        // null for a range of rows
+        private final int[] rows;
+        private final int end;
+        private int position;
+        private int row = -1;
+
+        ColumnarCursor(final int[] rows, final int from, final int to) {
+            this.rows = rows;
+            this.position = from - 1;
+            this.end = to;
+        }
+
+        @Override
+        public boolean next() {
+            if (++position >= end) {
+                return false;
+            }
+            row = rows == null ? position : rows[position];
+            return true;
+        }
+
+        @Override
+        public String getBlackListedDomainOrIP() {
+            return new String(keys, keyOffsets[row], keyOffsets[row + 1] - keyOffsets[row], StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long getCrc64() {
+            return crc64[row];
+        }
+
+        @Override
+        public int getMaxAccuracy() {
+            return maxAccuracy[row];
+        }
+
+        @Override
+        public boolean isPresentOnWhiteList() {
+            return presentOnWhiteList.get(row);
+        }
+
+        @Override
+        public int getSourceCount() {
+            return sourceOffsets[row + 1] - sourceOffsets[row];
+        }
+
+        @Override
+        public int getSourceFeed(final int sourceIdx) {
+            return sourceFeeds[sourceOffsets[row] + sourceIdx];
+        }
+
+        @Override
+        public int getSourceType(final int sourceIdx) {
+            return sourceTypes[sourceOffsets[row] + sourceIdx];
+        }
+    }
+}
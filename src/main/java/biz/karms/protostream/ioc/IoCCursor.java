@@ -0,0 +1,46 @@
+package biz.karms.protostream.ioc;
+
+/**
+ * Forward only view over the IoCs of a {@link IoCSnapshot}. The cursor is positioned before the first IoC,
+ * {@link #next()} has to be called before the accessors are used. The accessors describe the current IoC only,
+ * no object per IoC is created.
+ * <p>
+ * Feeds and types are returned as ids of {@link IoCSnapshot#getFeeds()} and {@link IoCSnapshot#getTypes()}.
+ *
+ * @author Michal Karm Babacek
+ */
+public interface IoCCursor {
+
+    /**
+     * @return false if there are no more IoCs
+     */
+    boolean next();
+
+    String getBlackListedDomainOrIP();
+
+    /**
+     * @return crc64 hash, unsigned 64 bit value stored in a long
+     */
+    long getCrc64();
+
+    /**
+     * @return max sum of accuracies of a single feed
+     */
+    int getMaxAccuracy();
+
+    boolean isPresentOnWhiteList();
+
+    int getSourceCount();
+
+    /**
+     * @param sourceIdx 0 to {@link #getSourceCount()} exclusive
+     * @return feed id
+     */
+    int getSourceFeed(int sourceIdx);
+
+    /**
+     * @param sourceIdx 0 to {@link #getSourceCount()} exclusive
+     * @return IoC type id
+     */
+    int getSourceType(int sourceIdx);
+}
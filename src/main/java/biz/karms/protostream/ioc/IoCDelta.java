@@ -0,0 +1,103 @@
+package biz.karms.protostream.ioc;
+
+import java.util.Arrays;
+
+/**
+ * Difference between two snapshot generations keyed by crc64.
+ * <p>
+ * An IoC is changed if its max accuracy, whitelist flag or feed/type sources differ, i.e. if anything the generators
+ * read differs. All three arrays are sorted ascending as signed longs and must not be modified. The current state
+ * of added and changed IoCs is read from the snapshot of {@link #getToGeneration()}.
+ *
+ * @author Michal Karm Babacek
+ */
+public class IoCDelta {
+
+    private final long fromGeneration;
+    private final long toGeneration;
+    private final long[] added;
+    private final long[] removed;
+    private final long[] changed;
+
+    private IoCDelta(final long fromGeneration, final long toGeneration, final long[] added, final long[] removed, final long[] changed) {
+        this.fromGeneration = fromGeneration;
+        this.toGeneration = toGeneration;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    public static IoCDelta between(final IoCSnapshot from, final IoCSnapshot to) {
+        return between(IoCRowIndex.of(from), from.getGeneration(), IoCRowIndex.of(to), to.getGeneration());
+    }
+
+    /**
+     * Merges the two sorted indexes in a single pass.
+     */
+    static IoCDelta between(final IoCRowIndex from, final long fromGeneration, final IoCRowIndex to, final long toGeneration) {
+        long[] added = new long[16];
+        long[] removed = new long[16];
+        long[] changed = new long[16];
+        int addedSize = 0;
+        int removedSize = 0;
+        int changedSize = 0;
+        int i = 0;
+        int j = 0;
+        while (i < from.size || j < to.size) {
+            if (j == to.size || (i < from.size && from.crc64[i] < to.crc64[j])) {
+                removed = append(removed, removedSize++, from.crc64[i++]);
+            } else if (i == from.size || to.crc64[j] < from.crc64[i]) {
+                added = append(added, addedSize++, to.crc64[j++]);
+            } else {
+                if (from.rowHash[i] != to.rowHash[j]) {
+                    changed = append(changed, changedSize++, to.crc64[j]);
+                }
+                i++;
+                j++;
+            }
+        }
+        return new IoCDelta(fromGeneration, toGeneration,
+                Arrays.copyOf(added, addedSize), Arrays.copyOf(removed, removedSize), Arrays.copyOf(changed, changedSize));
+    }
+
+    private static long[] append(long[] array, final int size, final long value) {
+        if (size == array.length) {
+            array = Arrays.copyOf(array, size * 2);
+        }
+        array[size] = value;
+        return array;
+    }
+
+    public long getFromGeneration() {
+        return fromGeneration;
+    }
+
+    public long getToGeneration() {
+        return toGeneration;
+    }
+
+    public long[] getAdded() {
+        return added;
+    }
+
+    public long[] getRemoved() {
+        return removed;
+    }
+
+    public long[] getChanged() {
+        return changed;
+    }
+
+    public int size() {
+        return added.length + removed.length + changed.length;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IoCDelta " + fromGeneration + " -> " + toGeneration + ": " + added.length + " added, " + removed.length + " removed, " + changed.length + " changed";
+    }
+}
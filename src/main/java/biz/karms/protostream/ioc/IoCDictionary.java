@@ -0,0 +1,62 @@
+package biz.karms.protostream.ioc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns feed names and IoC type labels to small int ids, so as snapshots can store them in int columns.
+ * <p>
+ * Not thread safe. A dictionary is filled while its snapshot is being built and it is read only afterwards,
+ * builders of the next snapshot work on a {@link #copy()}.
+ *
+ * @author Michal Karm Babacek
+ */
+public class IoCDictionary {
+
+    public static final int NOT_FOUND = -1;
+
+    private final List<String> values;
+    private final Map<String, Integer> ids;
+
+    public IoCDictionary() {
+        this.values = new ArrayList<>();
+        this.ids = new HashMap<>();
+    }
+
+    private IoCDictionary(final IoCDictionary other) {
+        this.values = new ArrayList<>(other.values);
+        this.ids = new HashMap<>(other.ids);
+    }
+
+    public int intern(final String value) {
+        final Integer id = ids.get(value);
+        if (id != null) {
+            return id;
+        }
+        values.add(value);
+        ids.put(value, values.size() - 1);
+        return values.size() - 1;
+    }
+
+    /**
+     * @return id of the value or {@link #NOT_FOUND} if no IoC in the snapshot references it
+     */
+    public int lookup(final String value) {
+        final Integer id = ids.get(value);
+        return id == null ? NOT_FOUND : id;
+    }
+
+    public String get(final int id) {
+        return values.get(id);
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public IoCDictionary copy() {
+        return new IoCDictionary(this);
+    }
+}
@@ -0,0 +1,96 @@
+package biz.karms.protostream.ioc;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Inverted index from feed to the IoCs listed by it, so as a consumer interested in a few feeds visits just their
+ * IoCs with {@link IoCSnapshot#cursor(int[])} instead of the whole snapshot.
+ * <p>
+ * Postings are row positions in {@link IoCSnapshot#cursor()} order, ascending, one int array per feed id of
+ * {@link IoCSnapshot#getFeeds()}. A row is listed once per feed, a feed is listed once per row.
+ *
+ * @author Michal Karm Babacek
+ */
+public class IoCFeedIndex {
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private final IoCDictionary feeds;
+    private final int[][] postings;
+
+    private IoCFeedIndex(final IoCDictionary feeds, final int[][] postings) {
+        this.feeds = feeds;
+        this.postings = postings;
+    }
+
+    static IoCFeedIndex of(final IoCSnapshot snapshot) {
+        final IoCDictionary feeds = snapshot.getFeeds();
+        // two passes, exact sized postings instead of growing arrays for millions of rows
+        final int[] counts = new int[feeds.size()];
+        IoCCursor cursor = snapshot.cursor();
+        while (cursor.next()) {
+            for (int i = 0; i < cursor.getSourceCount(); i++) {
+                counts[cursor.getSourceFeed(i)]++;
+            }
+        }
+        final int[][] postings = new int[feeds.size()][];
+        for (int feed = 0; feed < postings.length; feed++) {
+            postings[feed] = new int[counts[feed]];
+        }
+        Arrays.fill(counts, 0);
+        cursor = snapshot.cursor();
+        int row = 0;
+        while (cursor.next()) {
+            for (int i = 0; i < cursor.getSourceCount(); i++) {
+                final int feed = cursor.getSourceFeed(i);
+                postings[feed][counts[feed]++] = row;
+            }
+            row++;
+        }
+        return new IoCFeedIndex(feeds, postings);
+    }
+
+    /**
+     * @param feed feed name
+     * @return positions of rows listed by the feed, must not be modified
+     */
+    public int[] positions(final String feed) {
+        final int id = feeds.lookup(feed);
+        return id == IoCDictionary.NOT_FOUND ? NO_ROWS : postings[id];
+    }
+
+    /**
+     * @param feedNames feed names, unknown ones are ignored
+     * @return ascending positions of rows listed by any of the feeds, each row once
+     */
+    public int[] positions(final Collection<String> feedNames) {
+        int total = 0;
+        for (String feed : feedNames) {
+            total += positions(feed).length;
+        }
+        final int[] rows = new int[total];
+        int size = 0;
+        for (String feed : feedNames) {
+            final int[] feedRows = positions(feed);
+            System.arraycopy(feedRows, 0, rows, size, feedRows.length);
+            size += feedRows.length;
+        }
+        Arrays.sort(rows);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || rows[unique - 1] != rows[i]) {
+                rows[unique++] = rows[i];
+            }
+        }
+        return unique == rows.length ? rows : Arrays.copyOf(rows, unique);
+    }
+
+    public long getHeapBytes() {
+        long bytes = 0;
+        for (int[] feedRows : postings) {
+            bytes += 16 + 4L * feedRows.length;
+        }
+        return bytes;
+    }
+}
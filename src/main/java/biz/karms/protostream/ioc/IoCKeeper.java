@@ -1,19 +1,44 @@
 package biz.karms.protostream.ioc;
 
+import biz.karms.BlacklistCacheUpdateListener;
+import biz.karms.protostream.IoCDumper;
 import biz.karms.sinkit.ejb.cache.annotations.SinkitCacheName;
 import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
-import org.infinispan.client.hotrod.Flag;
 import org.infinispan.client.hotrod.RemoteCache;
 import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.protostream.ProtobufUtil;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+
+import static biz.karms.Dump2Proto.GENERATED_PROTOFILES_DIRECTORY;
 
 /**
  * Keeps millions of records about IoCs so as the logic of the
  * generator does not need to update each time it needs them.
+ * <p>
+ * With D2P_IOC_KEEPER_USE_LISTENER enabled, only the first run loads the whole blacklist cache. Subsequent runs
+ * fetch just the keys reported by {@link BlacklistCacheUpdateListener} and patch the snapshot. A full reload
+ * is still done every D2P_IOC_RECONCILIATION_INTERVAL_S and after a listener failover to catch missed events.
+ * <p>
+ * D2P_IOC_SNAPSHOT_STORE selects how the snapshot is held, see {@link IoCSnapshotStore}.
+ * <p>
+ * With D2P_IOC_WARM_START enabled, the first run publishes IoCs from the last {@link IoCDumper} file as generation 0
+ * before loading them from Hot Rod, so generators do not wait for the first full load after a restart.
+ * <p>
+ * A snapshot estimated above D2P_IOC_HEAP_BUDGET_MB is spilled to a {@link MappedIoCSnapshot}. Subsequent loads then
+ * go to a mapped file directly, the IoC count rarely shrinks.
+ * <p>
+ * With D2P_IOC_DELTA enabled, each published generation comes with an {@link IoCDelta} against the previous one.
+ * <p>
+ * With D2P_IOC_FEED_INDEX enabled, each published snapshot comes with an {@link IoCFeedIndex}.
  *
  * @author Michal Karm Babacek
  */
@@ -25,9 +50,81 @@ public class IoCKeeper implements Runnable {
 
     private static final int MAX_BULK_SIZE = 15_000;
 
-    private volatile Collection<BlacklistedRecord> blacklistedRecords = Collections.emptyList();
+    /**
+     * Event driven incremental refresh
+     */
+    private static final boolean D2P_IOC_KEEPER_USE_LISTENER = Boolean.parseBoolean(System.getProperty("D2P_IOC_KEEPER_USE_LISTENER", "False"));
+
+    /**
+     * cca 6 hours, i.e. 21600s, full reload that catches events lost by the listener
+     */
+    private static final long D2P_IOC_RECONCILIATION_INTERVAL_S = Integer.parseInt(System.getProperty("D2P_IOC_RECONCILIATION_INTERVAL_S", "21600"));
+
+    /**
+     * records, columnar or mapped
+     */
+    private static final IoCSnapshotStore D2P_IOC_SNAPSHOT_STORE = IoCSnapshotStore.valueOf(System.getProperty("D2P_IOC_SNAPSHOT_STORE", IoCSnapshotStore.records.name()));
+
+    /**
+     * Number of getAll bulks fetched concurrently
+     */
+    private static final int D2P_IOC_FETCH_PARALLELISM = Integer.parseInt(System.getProperty("D2P_IOC_FETCH_PARALLELISM", "4"));
+
+    /**
+     * How many times a failed bulk is retried before the whole refresh fails
+     */
+    private static final int D2P_IOC_FETCH_RETRIES = Integer.parseInt(System.getProperty("D2P_IOC_FETCH_RETRIES", "3"));
+
+    /**
+     * bulks: keySet and getAll by keys, segments: remote iteration segment by segment
+     */
+    private static final String D2P_IOC_LOAD_STRATEGY = System.getProperty("D2P_IOC_LOAD_STRATEGY", "bulks");
+
+    /**
+     * Start with IoCs from iocdump.bin written by IoCDumper
+     */
+    private static final boolean D2P_IOC_WARM_START = Boolean.parseBoolean(System.getProperty("D2P_IOC_WARM_START", "False"));
+
+    /**
+     * cca 1 day, i.e. 86400s, older iocdump.bin is not used for warm start
+     */
+    private static final long D2P_IOC_WARM_START_MAX_AGE_S = Integer.parseInt(System.getProperty("D2P_IOC_WARM_START_MAX_AGE_S", "86400"));
+
+    /**
+     * Compute {@link IoCDelta} between consecutive generations, costs two longs per IoC
+     */
+    private static final boolean D2P_IOC_DELTA = Boolean.parseBoolean(System.getProperty("D2P_IOC_DELTA", "False"));
+
+    /**
+     * Heap the snapshot may take, 0 for no limit
+     */
+    private static final long D2P_IOC_HEAP_BUDGET_MB = Integer.parseInt(System.getProperty("D2P_IOC_HEAP_BUDGET_MB", "0"));
+
+    /**
+     * Build {@link IoCFeedIndex} for each snapshot, costs an int per IoC source
+     */
+    private static final boolean D2P_IOC_FEED_INDEX = Boolean.parseBoolean(System.getProperty("D2P_IOC_FEED_INDEX", "False"));
+
+    private static final int STREAM_BATCH_SIZE = 1_000;
+
+    private final BulkIoCLoader bulkIoCLoader = new BulkIoCLoader(MAX_BULK_SIZE, D2P_IOC_FETCH_PARALLELISM, D2P_IOC_FETCH_RETRIES, 1000);
+    private final IoCLoader ioCLoader = "segments".equals(D2P_IOC_LOAD_STRATEGY)
+            ? new SegmentStreamingIoCLoader(STREAM_BATCH_SIZE, D2P_IOC_FETCH_PARALLELISM, D2P_IOC_FETCH_RETRIES, 1000)
+            : bulkIoCLoader;
+
+    private volatile IoCSnapshot snapshot = RecordIoCSnapshot.EMPTY;
+    private long generation = 0;
+    private IoCRowIndex rowIndex = IoCRowIndex.EMPTY;
+    private volatile IoCDelta delta = null;
     private static IoCKeeper ioCKeeper = null;
 
+    private final Set<String> changedKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean reconciliationRequired = new AtomicBoolean(true);
+    private boolean listenerRegistered = false;
+    private long lastFullLoad = 0;
+    private boolean warmStartAttempted = false;
+    private boolean spilled = false;
+
     private IoCKeeper(final RemoteCacheManager remoteCacheManager) {
         ioCKeeper = this;
         this.remoteCacheManager = remoteCacheManager;
@@ -40,34 +137,166 @@ public class IoCKeeper implements Runnable {
         return ioCKeeper;
     }
 
-    public Collection<BlacklistedRecord> getBlacklistedRecords() {
-        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Thread " + Thread.currentThread().getName() + " is getting IoC collection.");
-        return Collections.unmodifiableCollection(blacklistedRecords);
+    public IoCSnapshot getSnapshot() {
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Thread " + Thread.currentThread().getName() + " is getting IoC snapshot.");
+        return snapshot;
+    }
+
+    /**
+     * @return changes leading to the latest published generation, null if not known. Compare
+     * {@link IoCDelta#getToGeneration()} with the generation of {@link #getSnapshot()}, a newer one may have been
+     * published in between.
+     */
+    public IoCDelta getDelta() {
+        return delta;
     }
 
     @Override
     public void run() {
-        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Fetching IoC keys...");
-        final long start = System.currentTimeMillis();
+        if (D2P_IOC_WARM_START && !warmStartAttempted) {
+            warmStartAttempted = true;
+            warmStart();
+        }
         final RemoteCache<String, BlacklistedRecord> cache = remoteCacheManager.getCache(SinkitCacheName.infinispan_blacklist.name());
-        final Set<String> iocKeys = new HashSet<>(cache.withFlags(Flag.SKIP_CACHE_LOAD).keySet());
-        final Collection<BlacklistedRecord> blacklistedRecords = new ArrayList<>(iocKeys.size());
-        final int bulks = (iocKeys.size() % MAX_BULK_SIZE == 0) ? iocKeys.size() / MAX_BULK_SIZE : iocKeys.size() / MAX_BULK_SIZE + 1;
-        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Fetching: There are " + iocKeys.size() + " ioc keys to get data for in " + bulks + " bulks. Ioc keys retrieval took " + (System.currentTimeMillis() - start) + " ms.");
-
-        final long startBulks = System.currentTimeMillis();
-        for (int iteration = 0; iteration < bulks; iteration++) {
-            final long startBulk = System.currentTimeMillis();
-            final Set<String> bulkOfKeys = iocKeys.stream().unordered().limit(MAX_BULK_SIZE).collect(Collectors.toSet());
-            iocKeys.removeAll(bulkOfKeys);
-            // getAll on the cache - a very expensive call
-            blacklistedRecords.addAll(cache.withFlags(Flag.SKIP_CACHE_LOAD).getAll(bulkOfKeys).values());
-            log.info("Thread " + Thread.currentThread().getName() + ": fetchBlacklistedRecord: Retrieved bulk " + iteration + " in " + (System.currentTimeMillis() - startBulk) + " ms.");
+        try {
+            if (D2P_IOC_KEEPER_USE_LISTENER && !listenerRegistered) {
+                // Registered before the full load, so no change slips between the load and the first event
+                cache.addClientListener(new BlacklistCacheUpdateListener(changedKeys, reconciliationRequired));
+                listenerRegistered = true;
+                log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Blacklist cache listener registered.");
+            }
+            final boolean reconciliationDue = System.currentTimeMillis() - lastFullLoad >= D2P_IOC_RECONCILIATION_INTERVAL_S * 1000;
+            if (!D2P_IOC_KEEPER_USE_LISTENER || reconciliationRequired.getAndSet(false) || reconciliationDue) {
+                fullLoad(cache);
+                lastFullLoad = System.currentTimeMillis();
+            } else {
+                applyChanges(cache);
+            }
+        } catch (Exception e) {
+            // An exception must not escape, it would cancel all further scheduled refreshes
+            reconciliationRequired.set(true);
+            log.log(Level.SEVERE, "Thread " + Thread.currentThread().getName() + ": IoC refresh failed, full reload will be attempted next time.", e);
         }
-        log.info("Thread " + Thread.currentThread().getName() + ": fetchBlacklistedRecord: All bulks retrieved in " + (System.currentTimeMillis() - startBulks) + " ms.");
+    }
 
-        this.blacklistedRecords = blacklistedRecords;
+    private void warmStart() {
+        final long start = System.currentTimeMillis();
+        try {
+            final IoCSnapshot warm = withinBudget(readDump(Paths.get(IoCDumper.iocDumpFilePath), D2P_IOC_WARM_START_MAX_AGE_S * 1000, D2P_IOC_SNAPSHOT_STORE));
+            if (warm == null) {
+                log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": No IoC dump younger than " + D2P_IOC_WARM_START_MAX_AGE_S + " s found in " + IoCDumper.iocDumpFilePath + ", no warm start.");
+                return;
+            }
+            // Generation 0, the first load from Hot Rod replaces it
+            if (D2P_IOC_DELTA) {
+                rowIndex = IoCRowIndex.of(warm);
+            }
+            if (D2P_IOC_FEED_INDEX) {
+                index(warm);
+            }
+            this.snapshot = warm;
+            log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Warm started with " + warm.size() + " IoCs from " + IoCDumper.iocDumpFilePath + " in " + (System.currentTimeMillis() - start) + " ms.");
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Warm start from " + IoCDumper.iocDumpFilePath + " failed, waiting for Hot Rod.", e);
+        }
+    }
 
+    private IoCSnapshot withinBudget(final IoCSnapshot next) {
+        if (next == null || D2P_IOC_HEAP_BUDGET_MB <= 0 || next.getHeapBytes() <= D2P_IOC_HEAP_BUDGET_MB * 1024 * 1024) {
+            return next;
+        }
+        log.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": IoC snapshot of cca " + next.getHeapBytes() / (1024 * 1024) + " MB exceeds D2P_IOC_HEAP_BUDGET_MB " + D2P_IOC_HEAP_BUDGET_MB + ", spilling it to a mapped file.");
+        spilled = true;
+        return MappedIoCSnapshot.spill(next, Paths.get(GENERATED_PROTOFILES_DIRECTORY));
+    }
+
+    private static void index(final IoCSnapshot next) {
+        final long start = System.currentTimeMillis();
+        final IoCFeedIndex feedIndex = IoCFeedIndex.of(next);
+        ((AbstractIoCSnapshot) next).setFeedIndex(feedIndex);
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Indexed " + next.getFeeds().size() + " feeds, cca " + feedIndex.getHeapBytes() / 1024 + " kB, in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Reads IoCs written by {@link IoCDumper}.
+     *
+     * @return snapshot with generation 0 or null if the file does not exist or is older than maxAgeMs
+     */
+    static IoCSnapshot readDump(final Path path, final long maxAgeMs, final IoCSnapshotStore store) throws IOException {
+        if (!Files.isRegularFile(path) || System.currentTimeMillis() - Files.getLastModifiedTime(path).toMillis() > maxAgeMs) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        final List<BlacklistedRecord> records = ProtobufUtil.fromByteArray(IoCDumper.newSerializationContext(), Files.readAllBytes(path), ArrayList.class);
+        final IoCSnapshot.Builder builder = store.newBuilder(records.size());
+        boolean isRead = false;
+        try {
+            records.forEach(record -> builder.add(record.getBlackListedDomainOrIP(), record));
+            isRead = true;
+        } finally {
+            if (!isRead) {
+                builder.abort();
+            }
+        }
+        return builder.build();
+    }
+
+    private void fullLoad(final RemoteCache<String, BlacklistedRecord> cache) {
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Fetching IoCs...");
+        final long start = System.currentTimeMillis();
+        publish(ioCLoader.load(cache, spilled ? IoCSnapshotStore.mapped : D2P_IOC_SNAPSHOT_STORE));
         log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Fetching finished in " + (System.currentTimeMillis() - start) + " ms.");
     }
+
+    /**
+     * Fetches the current state of the keys reported by the listener and publishes a patched copy of the snapshot.
+     * A key that is no longer present in the cache has been removed.
+     */
+    private void applyChanges(final RemoteCache<String, BlacklistedRecord> cache) {
+        final long start = System.currentTimeMillis();
+        final Set<String> keys = new HashSet<>();
+        // Why iterate and remove and not clear? The set is being modified concurrently by the listener.
+        for (final Iterator<String> it = changedKeys.iterator(); it.hasNext(); ) {
+            keys.add(it.next());
+            it.remove();
+        }
+        if (keys.isEmpty()) {
+            log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": No IoC changed since the last refresh.");
+            return;
+        }
+
+        final Map<String, BlacklistedRecord> changed = new HashMap<>(keys.size() * 4 / 3 + 1);
+        try {
+            bulkIoCLoader.fetch(cache, new ArrayList<>(keys), changed::put);
+        } catch (RuntimeException e) {
+            // Let the next run try again
+            changedKeys.addAll(keys);
+            throw e;
+        }
+
+        publish(snapshot.patch(keys, changed));
+
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Applied " + keys.size() + " IoC changes (" + changed.size() + " upserted, " + (keys.size() - changed.size()) + " removed) in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     * Makes the snapshot the next generation visible to generators
+     */
+    private void publish(IoCSnapshot next) {
+        next = withinBudget(next);
+        ((AbstractIoCSnapshot) next).setGeneration(++generation);
+        final boolean changed = next.getFingerprint() != snapshot.getFingerprint();
+        if (D2P_IOC_DELTA) {
+            final long start = System.currentTimeMillis();
+            final IoCRowIndex nextRowIndex = IoCRowIndex.of(next);
+            this.delta = IoCDelta.between(rowIndex, snapshot.getGeneration(), nextRowIndex, generation);
+            this.rowIndex = nextRowIndex;
+            log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + delta + ", computed in " + (System.currentTimeMillis() - start) + " ms.");
+        }
+        if (D2P_IOC_FEED_INDEX) {
+            index(next);
+        }
+        this.snapshot = next;
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Published IoC snapshot generation " + generation + " with " + next.size() + " IoCs, fingerprint " + Long.toHexString(next.getFingerprint()) + (changed ? "." : ", content unchanged."));
+    }
 }
@@ -0,0 +1,19 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.infinispan.client.hotrod.RemoteCache;
+
+/**
+ * Full load of the blacklist cache, selected by D2P_IOC_LOAD_STRATEGY.
+ *
+ * @author Michal Karm Babacek
+ */
+public interface IoCLoader {
+
+    /**
+     * @param cache blacklist cache
+     * @param store representation of the new snapshot
+     * @return snapshot of all IoCs in the cache
+     */
+    IoCSnapshot load(RemoteCache<String, BlacklistedRecord> cache, IoCSnapshotStore store);
+}
@@ -0,0 +1,113 @@
+package biz.karms.protostream.ioc;
+
+/**
+ * Row hashes of a snapshot sorted by crc64, the input of {@link IoCDelta}.
+ * <p>
+ * Two parallel primitive arrays, ascending by crc64 compared as signed longs. IoCs sharing a crc64 are folded into
+ * one entry with the sum of their row hashes, the same way the snapshot fingerprint is summed.
+ *
+ * @author Michal Karm Babacek
+ */
+class IoCRowIndex {
+
+    static final IoCRowIndex EMPTY = new IoCRowIndex(new long[0], new long[0], 0);
+
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+
+    final long[] crc64;
+    final long[] rowHash;
+    final int size;
+
+    private IoCRowIndex(final long[] crc64, final long[] rowHash, final int size) {
+        this.crc64 = crc64;
+        this.rowHash = rowHash;
+        this.size = size;
+    }
+
+    static IoCRowIndex of(final IoCSnapshot snapshot) {
+        final long[] crc64 = new long[snapshot.size()];
+        final long[] rowHash = new long[snapshot.size()];
+        final IoCDictionary feeds = snapshot.getFeeds();
+        final IoCDictionary types = snapshot.getTypes();
+        final IoCCursor cursor = snapshot.cursor();
+        int rows = 0;
+        while (cursor.next()) {
+            long sourcesHash = 0;
+            for (int i = 0; i < cursor.getSourceCount(); i++) {
+                sourcesHash += AbstractIoCSnapshot.sourceHash(feeds.get(cursor.getSourceFeed(i)), types.get(cursor.getSourceType(i)));
+            }
+            crc64[rows] = cursor.getCrc64();
+            rowHash[rows] = AbstractIoCSnapshot.rowHash(cursor.getCrc64(), cursor.getMaxAccuracy(), cursor.isPresentOnWhiteList(), sourcesHash);
+            rows++;
+        }
+        sort(crc64, rowHash, 0, rows - 1);
+
+        // fold duplicate crc64s
+        int size = 0;
+        for (int i = 0; i < rows; i++) {
+            if (size > 0 && crc64[size - 1] == crc64[i]) {
+                rowHash[size - 1] += rowHash[i];
+            } else {
+                crc64[size] = crc64[i];
+                rowHash[size] = rowHash[i];
+                size++;
+            }
+        }
+        return new IoCRowIndex(crc64, rowHash, size);
+    }
+
+    /**
+     * Quicksort of both arrays by keys, inclusive bounds
+     */
+    static void sort(final long[] keys, final long[] values, int from, int to) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            final long pivot = medianOfThree(keys[from], keys[(from + to) >>> 1], keys[to]);
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(keys, values, i++, j--);
+                }
+            }
+            // recurse into the smaller part, loop over the larger one, the stack depth stays logarithmic
+            if (j - from < to - i) {
+                sort(keys, values, from, j);
+                from = i;
+            } else {
+                sort(keys, values, i, to);
+                to = j;
+            }
+        }
+        for (int i = from + 1; i <= to; i++) {
+            final long key = keys[i];
+            final long value = values[i];
+            int j = i - 1;
+            while (j >= from && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static long medianOfThree(final long a, final long b, final long c) {
+        return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    }
+
+    private static void swap(final long[] keys, final long[] values, final int i, final int j) {
+        final long key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        final long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+}
@@ -0,0 +1,112 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Immutable set of IoCs held by {@link IoCKeeper}. Consumers iterate it with {@link #cursor()}, which works
+ * the same regardless of how the snapshot is stored.
+ *
+ * @author Michal Karm Babacek
+ */
+public interface IoCSnapshot {
+
+    int size();
+
+    default boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Columnar and record snapshots visit rows ascending by crc64 compared as unsigned, so as threats of a scan come
+     * out in the order of the resolver export, see {@link biz.karms.protostream.threat.domain.ThreatMap#sortedValues()}.
+     * A mapped snapshot keeps the order in which the rows were loaded.
+     *
+     * @return cursor visiting all rows
+     */
+    IoCCursor cursor();
+
+    /**
+     * @param rows ascending positions of rows in {@link #cursor()} order, e.g. from {@link IoCFeedIndex}
+     * @return cursor visiting just the rows
+     */
+    IoCCursor cursor(int[] rows);
+
+    /**
+     * @param fromRow first row, inclusive, in {@link #cursor()} order
+     * @param toRow   last row, exclusive
+     * @return cursor visiting just the range, e.g. a chunk of a parallel scan
+     */
+    IoCCursor cursor(int fromRow, int toRow);
+
+    /**
+     * @return id increasing with every snapshot published by {@link IoCKeeper}, 0 until published
+     */
+    long getGeneration();
+
+    /**
+     * @return content hash, equal fingerprints mean the IoCs are the same for all generators
+     */
+    long getFingerprint();
+
+    /**
+     * @return rough estimate of the heap held by the snapshot, compared with D2P_IOC_HEAP_BUDGET_MB
+     */
+    long getHeapBytes();
+
+    /**
+     * @return feed index of the snapshot, null unless {@link IoCKeeper} has built one
+     */
+    IoCFeedIndex getFeedIndex();
+
+    IoCDictionary getFeeds();
+
+    IoCDictionary getTypes();
+
+    /**
+     * @return the original records, empty unless the store keeps them, which only {@link RecordIoCSnapshot} does
+     */
+    Optional<Collection<BlacklistedRecord>> getRecords();
+
+    /**
+     * Creates a new snapshot with changes applied, this snapshot is left intact.
+     *
+     * @param keys    all keys that have changed
+     * @param changed current records of the keys, a key missing here has been removed
+     * @return patched snapshot
+     */
+    IoCSnapshot patch(Set<String> keys, Map<String, BlacklistedRecord> changed);
+
+    interface Builder {
+        void add(String key, BlacklistedRecord record);
+
+        IoCSnapshot build();
+
+        /**
+         * Releases whatever the builder holds when {@link #build()} is not going to be reached, e.g. a load failed.
+         * The builder cannot be used afterwards.
+         */
+        default void abort() {
+        }
+    }
+
+    /**
+     * Gets max sum of accuracy's items
+     *
+     * @return max sum
+     */
+    static int computeMaxAccuracy(final BlacklistedRecord record) {
+        final HashMap<String, HashMap<String, Integer>> accuracyConf = record.getAccuracy();
+        if (accuracyConf == null || accuracyConf.isEmpty())
+            return 0;
+
+        return accuracyConf.values().stream()
+                .map(entry -> entry.values().stream().reduce(0, Integer::sum))
+                .reduce(Math::max).orElse(0);
+    }
+}
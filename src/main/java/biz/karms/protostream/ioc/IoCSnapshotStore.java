@@ -0,0 +1,45 @@
+package biz.karms.protostream.ioc;
+
+import java.nio.file.Paths;
+
+import static biz.karms.Dump2Proto.GENERATED_PROTOFILES_DIRECTORY;
+
+/**
+ * How {@link IoCKeeper} stores its snapshot, selected by D2P_IOC_SNAPSHOT_STORE.
+ *
+ * @author Michal Karm Babacek
+ */
+public enum IoCSnapshotStore {
+
+    /**
+     * {@link RecordIoCSnapshot}, BlacklistedRecord objects as they came from the cache
+     */
+    records {
+        @Override
+        public IoCSnapshot.Builder newBuilder(final int expectedSize) {
+            return new RecordIoCSnapshot.Builder(expectedSize);
+        }
+    },
+
+    /**
+     * {@link ColumnarIoCSnapshot}, primitive array columns, a fraction of the heap, no IoCDumper
+     */
+    columnar {
+        @Override
+        public IoCSnapshot.Builder newBuilder(final int expectedSize) {
+            return new ColumnarIoCSnapshot.Builder(expectedSize);
+        }
+    },
+
+    /**
+     * {@link MappedIoCSnapshot}, memory mapped file in D2P_GENERATED_PROTOFILES_DIRECTORY, no IoCDumper
+     */
+    mapped {
+        @Override
+        public IoCSnapshot.Builder newBuilder(final int expectedSize) {
+            return new MappedIoCSnapshot.Builder(Paths.get(GENERATED_PROTOFILES_DIRECTORY));
+        }
+    };
+
+    public abstract IoCSnapshot.Builder newBuilder(int expectedSize);
+}
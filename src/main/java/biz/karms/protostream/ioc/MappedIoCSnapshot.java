@@ -0,0 +1,488 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot kept in a memory mapped file, only the feed and type dictionaries are on the heap.
+ * <p>
+ * Rows are written one after another, each prefixed with its length: crc64, row hash, max accuracy, whitelist flag,
+ * UTF-8 key and (feed id, type id) source pairs. The file is mapped in segments of at most {@link #SEGMENT_BYTES},
+ * a row never crosses a segment, the rest of a segment that cannot take the next row is zero padded.
+ * File offsets of every {@link #INDEX_STRIDE}-th row are kept on the heap, a cursor starting further in seeks to
+ * the nearest one and steps over the rest of the rows.
+ * <p>
+ * The file is deleted right after it has been mapped. The mapping keeps the data until the snapshot is garbage
+ * collected, so no file outlives the process and no cleanup is needed when a snapshot is replaced.
+ *
+ * @author Michal Karm Babacek
+ */
+public class MappedIoCSnapshot extends AbstractIoCSnapshot {
+
+    private static final Logger log = Logger.getLogger(MappedIoCSnapshot.class.getName());
+
+    static final int SEGMENT_BYTES = 1 << 30;
+
+    /**
+     * Divides the resolver scan chunk, D2P_RESOLVER_SCAN_CHUNK_ROWS, so that chunks start right at an indexed row
+     */
+    static final int INDEX_STRIDE = 4096;
+
+    // crc64, row hash, max accuracy, whitelist flag, key length, source count
+    private static final int ROW_FIXED_BYTES = 8 + 8 + 4 + 1 + 4 + 4;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int size;
+    private final List<ByteBuffer> segments;
+    private final long fileBytes;
+    private final IoCDictionary feeds;
+    private final IoCDictionary types;
+    private final long fingerprint;
+    private final int indexStride;
+    // file offset of the row indexStride * i
+    private final long[] rowOffsets;
+
+    private MappedIoCSnapshot(final Builder builder, final List<ByteBuffer> segments) {
+        this.directory = builder.directory;
+        this.segmentBytes = builder.segmentBytes;
+        this.size = builder.size;
+        this.segments = segments;
+        this.fileBytes = builder.position;
+        this.feeds = builder.feeds;
+        this.types = builder.types;
+        this.fingerprint = builder.fingerprint;
+        this.indexStride = builder.indexStride;
+        this.rowOffsets = Arrays.copyOf(builder.rowOffsets, builder.rowOffsetCount);
+    }
+
+    /**
+     * Writes any snapshot to a mapped file in the directory.
+     */
+    public static MappedIoCSnapshot spill(final IoCSnapshot snapshot, final Path directory) {
+        return spill(snapshot, directory, SEGMENT_BYTES);
+    }
+
+    static MappedIoCSnapshot spill(final IoCSnapshot snapshot, final Path directory, final int segmentBytes) {
+        final long start = System.currentTimeMillis();
+        final Builder builder = new Builder(directory, new IoCDictionary(), new IoCDictionary(), segmentBytes, INDEX_STRIDE);
+        final IoCDictionary feeds = snapshot.getFeeds();
+        final IoCDictionary types = snapshot.getTypes();
+        final IoCCursor cursor = snapshot.cursor();
+        boolean isWritten = false;
+        try {
+            while (cursor.next()) {
+                builder.addRow(cursor, feeds, types);
+            }
+            isWritten = true;
+        } finally {
+            if (!isWritten) {
+                builder.abort();
+            }
+        }
+        final MappedIoCSnapshot mapped = builder.build();
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Spilled " + mapped.size() + " IoCs, " + mapped.fileBytes + " bytes, to a mapped file in " + (System.currentTimeMillis() - start) + " ms.");
+        return mapped;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public IoCCursor cursor() {
+        return new MappedCursor();
+    }
+
+    /**
+     * Cursor seeks to the indexed row nearest before the next position, the rest is stepped over by the length prefix
+     * without decoding.
+     */
+    @Override
+    public IoCCursor cursor(final int[] rows) {
+        return new MappedCursor(rows, 0, rows.length);
+    }
+
+    /**
+     * Cursor seeks to the indexed row nearest before the range.
+     */
+    @Override
+    public IoCCursor cursor(final int fromRow, final int toRow) {
+        return new MappedCursor(null, fromRow, Math.min(toRow, size));
+    }
+
+    @Override
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public long getHeapBytes() {
+        // dictionaries are negligible, the rows are in the page cache
+        return 0;
+    }
+
+    @Override
+    public IoCDictionary getFeeds() {
+        return feeds;
+    }
+
+    @Override
+    public IoCDictionary getTypes() {
+        return types;
+    }
+
+    @Override
+    public Optional<Collection<BlacklistedRecord>> getRecords() {
+        return Optional.empty();
+    }
+
+    /**
+     * The patched snapshot is written to a new mapped file in the same directory, it never goes through the heap.
+     */
+    @Override
+    public IoCSnapshot patch(final Set<String> changedKeys, final Map<String, BlacklistedRecord> changed) {
+        final Set<ByteBuffer> skipped = new HashSet<>(changedKeys.size() * 4 / 3 + 1);
+        changedKeys.forEach(key -> skipped.add(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8))));
+
+        final Builder builder = new Builder(directory, feeds.copy(), types.copy(), segmentBytes, indexStride);
+        final MappedCursor cursor = new MappedCursor();
+        boolean isWritten = false;
+        try {
+            while (cursor.next()) {
+                if (!skipped.contains(cursor.key())) {
+                    builder.copyRow(cursor);
+                }
+            }
+            changed.forEach(builder::add);
+            isWritten = true;
+        } finally {
+            if (!isWritten) {
+                builder.abort();
+            }
+        }
+        return builder.build();
+    }
+
+    public static class Builder implements IoCSnapshot.Builder {
+        private final Path directory;
+        private final Path file;
+        private final DataOutputStream out;
+        private final IoCDictionary feeds;
+        private final IoCDictionary types;
+        private final int segmentBytes;
+        private int size = 0;
+        private long position = 0;
+        private long fingerprint = 0;
+        private int[] sourceFeeds = new int[8];
+        private int[] sourceTypes = new int[8];
+        private final int indexStride;
+        private long[] rowOffsets = new long[64];
+        private int rowOffsetCount = 0;
+
+        public Builder(final Path directory) {
+            this(directory, new IoCDictionary(), new IoCDictionary(), SEGMENT_BYTES);
+        }
+
+        Builder(final Path directory, final IoCDictionary feeds, final IoCDictionary types, final int segmentBytes) {
+            this(directory, feeds, types, segmentBytes, INDEX_STRIDE);
+        }
+
+        Builder(final Path directory, final IoCDictionary feeds, final IoCDictionary types, final int segmentBytes, final int indexStride) {
+            this.directory = directory;
+            this.feeds = feeds;
+            this.types = types;
+            this.segmentBytes = segmentBytes;
+            this.indexStride = indexStride;
+            try {
+                this.file = Files.createTempFile(directory, "iocsnapshot", ".bin");
+                this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 20));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot create IoC snapshot file in " + directory, e);
+            }
+        }
+
+        @Override
+        public void add(final String key, final BlacklistedRecord record) {
+            int sourceCount = 0;
+            long sourcesHash = 0;
+            if (record.getSources() != null) {
+                ensureSourceCapacity(record.getSources().size());
+                for (Map.Entry<String, ImmutablePair<String, String>> source : record.getSources().entrySet()) {
+                    sourceFeeds[sourceCount] = feeds.intern(source.getKey());
+                    sourceTypes[sourceCount] = types.intern(source.getValue().getLeft());
+                    sourcesHash += sourceHash(source.getKey(), source.getValue().getLeft());
+                    sourceCount++;
+                }
+            }
+            final long crc64 = record.getCrc64Hash().longValue();
+            final int maxAccuracy = IoCSnapshot.computeMaxAccuracy(record);
+            final boolean presentOnWhiteList = Boolean.TRUE.equals(record.getPresentOnWhiteList());
+            writeRow(crc64, rowHash(crc64, maxAccuracy, presentOnWhiteList, sourcesHash), maxAccuracy, presentOnWhiteList,
+                    key.getBytes(StandardCharsets.UTF_8), sourceCount);
+        }
+
+        /**
+         * Adds the current row of a cursor of a snapshot with other dictionaries.
+         */
+        void addRow(final IoCCursor cursor, final IoCDictionary cursorFeeds, final IoCDictionary cursorTypes) {
+            final int sourceCount = cursor.getSourceCount();
+            ensureSourceCapacity(sourceCount);
+            long sourcesHash = 0;
+            for (int i = 0; i < sourceCount; i++) {
+                final String feed = cursorFeeds.get(cursor.getSourceFeed(i));
+                final String type = cursorTypes.get(cursor.getSourceType(i));
+                sourceFeeds[i] = feeds.intern(feed);
+                sourceTypes[i] = types.intern(type);
+                sourcesHash += sourceHash(feed, type);
+            }
+            writeRow(cursor.getCrc64(), rowHash(cursor.getCrc64(), cursor.getMaxAccuracy(), cursor.isPresentOnWhiteList(), sourcesHash),
+                    cursor.getMaxAccuracy(), cursor.isPresentOnWhiteList(), cursor.getBlackListedDomainOrIP().getBytes(StandardCharsets.UTF_8), sourceCount);
+        }
+
+        /**
+         * Copies a row as is, the cursor's snapshot must share dictionary ids with this builder.
+         */
+        void copyRow(final MappedCursor cursor) {
+            final int sourceCount = cursor.getSourceCount();
+            ensureSourceCapacity(sourceCount);
+            for (int i = 0; i < sourceCount; i++) {
+                sourceFeeds[i] = cursor.getSourceFeed(i);
+                sourceTypes[i] = cursor.getSourceType(i);
+            }
+            final ByteBuffer key = cursor.key();
+            final byte[] keyBytes = new byte[key.remaining()];
+            key.get(keyBytes);
+            writeRow(cursor.getCrc64(), cursor.rowHash(), cursor.getMaxAccuracy(), cursor.isPresentOnWhiteList(), keyBytes, sourceCount);
+        }
+
+        @Override
+        public MappedIoCSnapshot build() {
+            try {
+                out.close();
+                final List<ByteBuffer> segments = new ArrayList<>();
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    for (long offset = 0; offset < position; offset += segmentBytes) {
+                        final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(segmentBytes, position - offset));
+                        segments.add(segment);
+                    }
+                }
+                return new MappedIoCSnapshot(this, Collections.unmodifiableList(segments));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map IoC snapshot file " + file, e);
+            } finally {
+                // The mapping outlives the file
+                deleteFile();
+            }
+        }
+
+        /**
+         * Closes and deletes the partially written file.
+         */
+        @Override
+        public void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Cannot close IoC snapshot file " + file + ".", e);
+            }
+            deleteFile();
+        }
+
+        private void deleteFile() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Cannot delete IoC snapshot file " + file + ", it will be deleted on exit.", e);
+                file.toFile().deleteOnExit();
+            }
+        }
+
+        private void writeRow(final long crc64, final long rowHash, final int maxAccuracy, final boolean presentOnWhiteList,
+                              final byte[] key, final int sourceCount) {
+            final int rowBytes = ROW_FIXED_BYTES + key.length + sourceCount * 8;
+            if (4 + rowBytes > segmentBytes) {
+                throw new IllegalStateException("IoC row of " + rowBytes + " bytes does not fit in a segment.");
+            }
+            try {
+                final long segmentRemaining = segmentBytes - position % segmentBytes;
+                if (4 + rowBytes > segmentRemaining) {
+                    // Zero length reads as the end of the segment
+                    for (long i = 0; i < segmentRemaining; i++) {
+                        out.write(0);
+                    }
+                    position += segmentRemaining;
+                }
+                if (size % indexStride == 0) {
+                    if (rowOffsetCount == rowOffsets.length) {
+                        rowOffsets = Arrays.copyOf(rowOffsets, rowOffsetCount * 2);
+                    }
+                    rowOffsets[rowOffsetCount++] = position;
+                }
+                out.writeInt(rowBytes);
+                out.writeLong(crc64);
+                out.writeLong(rowHash);
+                out.writeInt(maxAccuracy);
+                out.writeBoolean(presentOnWhiteList);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(sourceCount);
+                for (int i = 0; i < sourceCount; i++) {
+                    out.writeInt(sourceFeeds[i]);
+                    out.writeInt(sourceTypes[i]);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot write IoC snapshot file " + file, e);
+            }
+            position += 4 + rowBytes;
+            fingerprint += rowHash;
+            size++;
+        }
+
+        private void ensureSourceCapacity(final int required) {
+            if (required > sourceFeeds.length) {
+                sourceFeeds = new int[required];
+                sourceTypes = new int[required];
+            }
+        }
+    }
+
+    private class MappedCursor implements IoCCursor {
+        // null for a range of rows
+        private final int[] positions;
+        private final int end;
+        private int position;
+        private int segmentIdx = 0;
+        private ByteBuffer segment = segments.isEmpty() ? null : segments.get(0).duplicate();
+        private int rows = 0;
+        // absolute position of the current row data, after the length
+        private int row = -1;
+        private int keyLength;
+        private int sources;
+
+        MappedCursor() {
+            this(null, 0, size);
+        }
+
+        MappedCursor(final int[] positions, final int from, final int to) {
+            this.positions = positions;
+            this.position = from - 1;
+            this.end = to;
+        }
+
+        @Override
+        public boolean next() {
+            if (++position >= end) {
+                return false;
+            }
+            final int target = positions == null ? position : positions[position];
+            seek(target);
+            while (rows <= target) {
+                advance();
+            }
+            return true;
+        }
+
+        /**
+         * Jumps to the indexed row nearest before the target, if it is ahead of the cursor
+         */
+        private void seek(final int target) {
+            final int indexed = target / indexStride;
+            if ((long) indexed * indexStride <= rows) {
+                return;
+            }
+            final long offset = rowOffsets[indexed];
+            segmentIdx = (int) (offset / segmentBytes);
+            segment = segments.get(segmentIdx).duplicate();
+            segment.position((int) (offset % segmentBytes));
+            rows = indexed * indexStride;
+        }
+
+        private boolean advance() {
+            if (rows == size) {
+                return false;
+            }
+            while (segment.remaining() < 4 || segment.getInt(segment.position()) == 0) {
+                segment = segments.get(++segmentIdx).duplicate();
+            }
+            final int rowBytes = segment.getInt();
+            row = segment.position();
+            keyLength = segment.getInt(row + 21);
+            sources = row + 25 + keyLength;
+            segment.position(row + rowBytes);
+            rows++;
+            return true;
+        }
+
+        ByteBuffer key() {
+            final ByteBuffer key = segment.duplicate();
+            key.limit(row + 25 + keyLength).position(row + 25);
+            return key.slice();
+        }
+
+        long rowHash() {
+            return segment.getLong(row + 8);
+        }
+
+        @Override
+        public String getBlackListedDomainOrIP() {
+            final byte[] key = new byte[keyLength];
+            key().get(key);
+            return new String(key, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long getCrc64() {
+            return segment.getLong(row);
+        }
+
+        @Override
+        public int getMaxAccuracy() {
+            return segment.getInt(row + 16);
+        }
+
+        @Override
+        public boolean isPresentOnWhiteList() {
+            return segment.get(row + 20) != 0;
+        }
+
+        @Override
+        public int getSourceCount() {
+            return segment.getInt(sources);
+        }
+
+        @Override
+        public int getSourceFeed(final int sourceIdx) {
+            return segment.getInt(sources + 4 + sourceIdx * 8);
+        }
+
+        @Override
+        public int getSourceType(final int sourceIdx) {
+            return segment.getInt(sources + 8 + sourceIdx * 8);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Snapshot keeping the {@link BlacklistedRecord}s as they came from the cache, the original representation.
+ *
+ * @author Michal Karm Babacek
+ */
+public class RecordIoCSnapshot extends AbstractIoCSnapshot {
+
+    // BlacklistedRecord with its key, BigInteger, Calendar and maps, and a cache entry
+    private static final int RECORD_BYTES = 640;
+    // source pair and accuracy map of a single feed
+    private static final int SOURCE_BYTES = 400;
+
+    public static final RecordIoCSnapshot EMPTY = new RecordIoCSnapshot(Collections.emptyMap());
+
+    private final Map<String, BlacklistedRecord> records;
+    // fixed iteration order ascending by crc64, so as rows have positions
+    private final BlacklistedRecord[] rows;
+    private final IoCDictionary feeds;
+    private final IoCDictionary types;
+    private final long fingerprint;
+    private final long heapBytes;
+
+    public RecordIoCSnapshot(final Map<String, BlacklistedRecord> records) {
+        this.records = records;
+        this.rows = crc64Ordered(records.values().toArray(new BlacklistedRecord[0]));
+        this.feeds = new IoCDictionary();
+        this.types = new IoCDictionary();
+        records.values().forEach(record -> {
+            if (record.getSources() != null) {
+                record.getSources().forEach((feed, typeIocId) -> {
+                    feeds.intern(feed);
+                    types.intern(typeIocId.getLeft());
+                });
+            }
+        });
+        long fingerprint = 0;
+        long heapBytes = 0;
+        final IoCCursor cursor = cursor();
+        while (cursor.next()) {
+            heapBytes += RECORD_BYTES + 2L * cursor.getBlackListedDomainOrIP().length() + SOURCE_BYTES * cursor.getSourceCount();
+            long sourcesHash = 0;
+            for (int i = 0; i < cursor.getSourceCount(); i++) {
+                sourcesHash += sourceHash(feeds.get(cursor.getSourceFeed(i)), types.get(cursor.getSourceType(i)));
+            }
+            fingerprint += rowHash(cursor.getCrc64(), cursor.getMaxAccuracy(), cursor.isPresentOnWhiteList(), sourcesHash);
+        }
+        this.fingerprint = fingerprint;
+        this.heapBytes = heapBytes;
+    }
+
+    private static BlacklistedRecord[] crc64Ordered(final BlacklistedRecord[] rows) {
+        final long[] crc64 = new long[rows.length];
+        for (int row = 0; row < rows.length; row++) {
+            crc64[row] = rows[row].getCrc64Hash().longValue();
+        }
+        final int[] order = crc64Order(crc64, rows.length);
+        if (order == null) {
+            return rows;
+        }
+        final BlacklistedRecord[] ordered = new BlacklistedRecord[rows.length];
+        for (int row = 0; row < rows.length; row++) {
+            ordered[row] = rows[order[row]];
+        }
+        return ordered;
+    }
+
+    @Override
+    public int size() {
+        return records.size();
+    }
+
+    @Override
+    public IoCCursor cursor() {
+        return new RecordCursor(null, 0, rows.length);
+    }
+
+    @Override
+    public IoCCursor cursor(final int[] rows) {
+        return new RecordCursor(rows, 0, rows.length);
+    }
+
+    @Override
+    public IoCCursor cursor(final int fromRow, final int toRow) {
+        return new RecordCursor(null, fromRow, Math.min(toRow, rows.length));
+    }
+
+    @Override
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    @Override
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    @Override
+    public IoCDictionary getFeeds() {
+        return feeds;
+    }
+
+    @Override
+    public IoCDictionary getTypes() {
+        return types;
+    }
+
+    @Override
+    public Optional<Collection<BlacklistedRecord>> getRecords() {
+        return Optional.of(Collections.unmodifiableCollection(records.values()));
+    }
+
+    @Override
+    public IoCSnapshot patch(final Set<String> keys, final Map<String, BlacklistedRecord> changed) {
+        final Map<String, BlacklistedRecord> patched = new HashMap<>(records);
+        keys.forEach(key -> {
+            final BlacklistedRecord record = changed.get(key);
+            if (record == null) {
+                patched.remove(key);
+            } else {
+                patched.put(key, record);
+            }
+        });
+        return new RecordIoCSnapshot(patched);
+    }
+
+    public static class Builder implements IoCSnapshot.Builder {
+        private final Map<String, BlacklistedRecord> records;
+
+        public Builder(final int expectedSize) {
+            this.records = new HashMap<>(expectedSize * 4 / 3 + 1);
+        }
+
+        @Override
+        public void add(final String key, final BlacklistedRecord record) {
+            records.put(key, record);
+        }
+
+        @Override
+        public IoCSnapshot build() {
+            return new RecordIoCSnapshot(records);
+        }
+    }
+
+    private class RecordCursor implements IoCCursor {
+        // null for a range of rows
+        private final int[] positions;
+        private final int end;
+        private int position;
+        private BlacklistedRecord current;
+        private int maxAccuracy;
+        private int sourceCount;
+        private int[] sourceFeeds = new int[8];
+        private int[] sourceTypes = new int[8];
+
+        RecordCursor(final int[] positions, final int from, final int to) {
+            this.positions = positions;
+            this.position = from - 1;
+            this.end = to;
+        }
+
+        @Override
+        public boolean next() {
+            if (++position >= end) {
+                current = null;
+                return false;
+            }
+            current = rows[positions == null ? position : positions[position]];
+            maxAccuracy = IoCSnapshot.computeMaxAccuracy(current);
+            sourceCount = 0;
+            if (current.getSources() != null) {
+                if (current.getSources().size() > sourceFeeds.length) {
+                    sourceFeeds = Arrays.copyOf(sourceFeeds, current.getSources().size());
+                    sourceTypes = Arrays.copyOf(sourceTypes, current.getSources().size());
+                }
+                for (Map.Entry<String, ImmutablePair<String, String>> source : current.getSources().entrySet()) {
+                    sourceFeeds[sourceCount] = feeds.lookup(source.getKey());
+                    sourceTypes[sourceCount] = types.lookup(source.getValue().getLeft());
+                    sourceCount++;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getBlackListedDomainOrIP() {
+            return current.getBlackListedDomainOrIP();
+        }
+
+        @Override
+        public long getCrc64() {
+            return current.getCrc64Hash().longValue();
+        }
+
+        @Override
+        public int getMaxAccuracy() {
+            return maxAccuracy;
+        }
+
+        @Override
+        public boolean isPresentOnWhiteList() {
+            return Boolean.TRUE.equals(current.getPresentOnWhiteList());
+        }
+
+        @Override
+        public int getSourceCount() {
+            return sourceCount;
+        }
+
+        @Override
+        public int getSourceFeed(final int sourceIdx) {
+            return sourceFeeds[sourceIdx];
+        }
+
+        @Override
+        public int getSourceType(final int sourceIdx) {
+            return sourceTypes[sourceIdx];
+        }
+    }
+}
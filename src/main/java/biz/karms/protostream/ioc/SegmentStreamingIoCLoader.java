@@ -0,0 +1,73 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.infinispan.client.hotrod.CacheTopologyInfo;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.commons.util.CloseableIterator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams the whole blacklist cache segment by segment with the Hot Rod remote iterator. No key set is pulled
+ * and each IoC travels once.
+ * <p>
+ * Entries of a segment are handed over to the snapshot when the segment has been read completely, so a segment
+ * interrupted by a transport error is simply streamed again without leaving duplicates behind. Caches that are not
+ * hash distributed have no segments and are streamed in one go.
+ *
+ * @author Michal Karm Babacek
+ */
+public class SegmentStreamingIoCLoader extends AbstractIoCLoader implements IoCLoader {
+
+    private static final Logger log = Logger.getLogger(SegmentStreamingIoCLoader.class.getName());
+
+    private final int batchSize;
+
+    public SegmentStreamingIoCLoader(final int batchSize, final int parallelism, final int retries, final long retryDelayMs) {
+        super(parallelism, retries, retryDelayMs);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public IoCSnapshot load(final RemoteCache<String, BlacklistedRecord> cache, final IoCSnapshotStore store) {
+        final long start = System.currentTimeMillis();
+        final CacheTopologyInfo topology = cache.getCacheTopologyInfo();
+        final int segments = topology == null ? 0 : topology.getNumSegments();
+        final IoCSnapshot.Builder builder = store.newBuilder(cache.size());
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Streaming IoCs in " + Math.max(segments, 1) + " segments...");
+
+        boolean isStreamed = false;
+        try {
+            fetchUnits(Math.max(segments, 1), segment -> () -> streamSegment(cache, segments > 0 ? Collections.singleton(segment) : null, segment),
+                    entries -> entries.forEach(entry -> builder.add((String) entry.getKey(), (BlacklistedRecord) entry.getValue())));
+            isStreamed = true;
+        } finally {
+            if (!isStreamed) {
+                // a failed load must not leave a partial mapped snapshot behind
+                builder.abort();
+            }
+        }
+
+        final IoCSnapshot snapshot = builder.build();
+        log.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Streamed " + snapshot.size() + " IoCs in " + (System.currentTimeMillis() - start) + " ms.");
+        return snapshot;
+    }
+
+    private List<Map.Entry<Object, Object>> streamSegment(final RemoteCache<String, BlacklistedRecord> cache, final Set<Integer> segments, final int segment) {
+        final long start = System.currentTimeMillis();
+        final List<Map.Entry<Object, Object>> entries = new ArrayList<>();
+        try (CloseableIterator<Map.Entry<Object, Object>> iterator = cache.retrieveEntries(null, segments, batchSize)) {
+            while (iterator.hasNext()) {
+                entries.add(iterator.next());
+            }
+        }
+        log.fine("Thread " + Thread.currentThread().getName() + ": Streamed segment " + segment + " with " + entries.size() + " IoCs in " + (System.currentTimeMillis() - start) + " ms.");
+        return entries;
+    }
+}
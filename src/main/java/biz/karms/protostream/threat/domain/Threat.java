@@ -4,91 +4,110 @@ package biz.karms.protostream.threat.domain;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
-import lombok.ToString;
 
 import java.io.Serializable;
-import java.math.BigInteger;
-import java.util.Arrays;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
+/**
+ * Threat of a resolver, slots hold flags of its policies.
+ * <p>
+ * Slots are packed into a single long, 4 bits per slot: 0 for an unset slot, {@link Flag#ordinal()} + 1 otherwise.
+ * Millions of threats are held per resolver, a Flag reference per slot would take 48 B of each of them.
+ */
 @Getter
 @Setter
-@ToString
 public class Threat implements Serializable {
+
+    public static final int SLOTS = 12;
+
+    /**
+     * Rough heap of a threat in a {@link ThreatMap}, 40 B of the object and up to 48 B of map slots and insertion order while it grows
+     */
+    public static final long HEAP_BYTES = 88;
+
+    private static final int SLOT_BITS = 4;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+    private static final Flag[] FLAGS = Flag.values();
+
+    /**
+     * unsigned 64 bit value stored in a long, use {@link Long#toUnsignedString(long)} and {@link Long#compareUnsigned(long, long)}
+     */
     @Setter(AccessLevel.NONE)
-    private BigInteger crc64;
+    private long crc64;
 
     private String tmpDomain;
 
     private int accuracy;
-    private Flag slot0;
-    private Flag slot1;
-    private Flag slot2;
-    private Flag slot3;
-    private Flag slot4;
-    private Flag slot5;
-    private Flag slot6;
-    private Flag slot7;
-    private Flag slot8;
-    private Flag slot9;
-    private Flag slot10;
-    private Flag slot11;
-
-    public Threat(BigInteger crc64) {
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private long packedSlots;
+
+    public Threat(long crc64) {
         this.crc64 = crc64;
     }
 
+    /**
+     * Copy constructor, the copy is deep
+     */
+    public Threat(Threat other) {
+        this.crc64 = other.crc64;
+        this.tmpDomain = other.tmpDomain;
+        this.accuracy = other.accuracy;
+        this.packedSlots = other.packedSlots;
+    }
+
     public void setSlot(int position, Flag flag) {
         Objects.requireNonNull(flag, "Fag cannot be null");
-        switch (position) {
-            case 0:
-                this.slot0 = flag;
-                break;
-            case 1:
-                this.slot1 = flag;
-                break;
-            case 2:
-                this.slot2 = flag;
-                break;
-            case 3:
-                this.slot3 = flag;
-                break;
-            case 4:
-                this.slot4 = flag;
-                break;
-            case 5:
-                this.slot5 = flag;
-                break;
-            case 6:
-                this.slot6 = flag;
-                break;
-            case 7:
-                this.slot7 = flag;
-                break;
-            case 8:
-                this.slot8 = flag;
-                break;
-            case 9:
-                this.slot9 = flag;
-                break;
-            case 10:
-                this.slot10 = flag;
-                break;
-            case 11:
-                this.slot11 = flag;
-                break;
-
+        if (position < 0 || position >= SLOTS) {
+            return;
+        }
+        final int shift = position * SLOT_BITS;
+        packedSlots = packedSlots & ~(SLOT_MASK << shift) | (long) (flag.ordinal() + 1) << shift;
+    }
 
+    /**
+     * @return flag of the slot, null if not set
+     */
+    public Flag getSlot(int position) {
+        if (position < 0 || position >= SLOTS) {
+            throw new IndexOutOfBoundsException("Slot " + position + " out of " + SLOTS);
         }
+        final int code = (int) (packedSlots >>> position * SLOT_BITS & SLOT_MASK);
+        return code == 0 ? null : FLAGS[code - 1];
     }
 
+    /**
+     * @return flags of all slots, nulls for those not set. Allocates, see {@link #getFlagValues()} for marshalling.
+     */
     public List<Flag> getSlots() {
-        return Arrays.asList(
-                slot0, slot1, slot2, slot3,
-                slot4, slot5, slot6, slot7,
-                slot8, slot9, slot10, slot11
-        );
+        final List<Flag> slots = new ArrayList<>(SLOTS);
+        for (int position = 0; position < SLOTS; position++) {
+            slots.add(getSlot(position));
+        }
+        return slots;
+    }
+
+    /**
+     * @return read only view of {@link Flag#getByteValue()} of each slot, 0 for those not set. Nothing but the view
+     * is allocated, the values are cached Integers.
+     */
+    public List<Integer> getFlagValues() {
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(final int position) {
+                final Flag flag = getSlot(position);
+                return flag != null ? (int) flag.getByteValue() : 0;
+            }
+
+            @Override
+            public int size() {
+                return SLOTS;
+            }
+        };
     }
 
     /**
@@ -97,8 +116,11 @@ public class Threat implements Serializable {
      * @return true if any slot is set otherwise false
      */
     public boolean isSet() {
-        return getSlots().stream().anyMatch(Objects::nonNull);
+        return packedSlots != 0;
     }
 
-
+    @Override
+    public String toString() {
+        return "Threat(crc64=" + Long.toUnsignedString(crc64) + ", tmpDomain=" + tmpDomain + ", accuracy=" + accuracy + ", slots=" + getSlots() + ")";
+    }
 }
@@ -0,0 +1,203 @@
+package biz.karms.protostream.threat.domain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * Threats of a resolver keyed by crc64, an open addressing hash map with primitive long keys and linear probing.
+ * <p>
+ * Resolvers get up to millions of threats, a HashMap would add a boxed key and an entry object to each of them.
+ * Keys are unsigned 64 bit values stored in longs, an empty slot is the one with no threat, so every long is a valid key.
+ * Threats cannot be removed. Not thread safe.
+ * <p>
+ * Keys are also kept in the order they were put. A scan of a crc64 ordered snapshot puts them ascending, so
+ * {@link #sortedValues()} only sorts the few put out of order, e.g. from custom lists, and merges them in.
+ */
+public class ThreatMap {
+
+    private static final int MIN_CAPACITY = 16;
+    // grows at 3/4 full
+    private static final int LOAD_FACTOR_SHIFT = 2;
+
+    private long[] keys;
+    private Threat[] values;
+    // keys in the order they were put, size of them are valid
+    private long[] insertionOrder;
+    private int size = 0;
+
+    public ThreatMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public ThreatMap(final int expectedSize) {
+        allocate(capacityFor(expectedSize));
+        this.insertionOrder = new long[Math.max(expectedSize, MIN_CAPACITY)];
+    }
+
+    private ThreatMap(final ThreatMap other) {
+        this.keys = other.keys.clone();
+        this.values = new Threat[other.values.length];
+        this.insertionOrder = Arrays.copyOf(other.insertionOrder, Math.max(other.size, MIN_CAPACITY));
+        this.size = other.size;
+        for (int slot = 0; slot < values.length; slot++) {
+            if (other.values[slot] != null) {
+                values[slot] = new Threat(other.values[slot]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public Threat get(final long crc64) {
+        final int mask = keys.length - 1;
+        for (int slot = slot(crc64, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == crc64) {
+                return values[slot];
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(final long crc64) {
+        return get(crc64) != null;
+    }
+
+    /**
+     * @return previous threat of the key or null
+     */
+    public Threat put(final long crc64, final Threat threat) {
+        if (threat == null) {
+            throw new NullPointerException("Threat cannot be null");
+        }
+        final int mask = keys.length - 1;
+        int slot = slot(crc64, mask);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == crc64) {
+                final Threat previous = values[slot];
+                values[slot] = threat;
+                return previous;
+            }
+        }
+        keys[slot] = crc64;
+        values[slot] = threat;
+        if (size == insertionOrder.length) {
+            insertionOrder = Arrays.copyOf(insertionOrder, size << 1);
+        }
+        insertionOrder[size] = crc64;
+        if (++size > keys.length - (keys.length >>> LOAD_FACTOR_SHIFT)) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    public Threat computeIfAbsent(final long crc64, final LongFunction<Threat> mappingFunction) {
+        final Threat threat = get(crc64);
+        if (threat != null) {
+            return threat;
+        }
+        final Threat computed = mappingFunction.apply(crc64);
+        put(crc64, computed);
+        return computed;
+    }
+
+    /**
+     * Puts all threats of the other map in the order they were put there, the other map's threats win
+     */
+    public void putAll(final ThreatMap other) {
+        for (int i = 0; i < other.size; i++) {
+            put(other.insertionOrder[i], other.get(other.insertionOrder[i]));
+        }
+    }
+
+    public void forEach(final Consumer<Threat> action) {
+        for (Threat threat : values) {
+            if (threat != null) {
+                action.accept(threat);
+            }
+        }
+    }
+
+    /**
+     * @return copy with each threat copied too, see {@link Threat#Threat(Threat)}
+     */
+    public ThreatMap deepCopy() {
+        return new ThreatMap(this);
+    }
+
+    /**
+     * Keys put ascending are taken as they are, the rest is sorted on its own and both runs are merged, so the cost
+     * is linear unless many keys came out of order.
+     *
+     * @return threats ascending by crc64 compared as unsigned
+     */
+    public List<Threat> sortedValues() {
+        // sign flipped keys sort as signed longs the way the unsigned keys compare
+        // ascending run from the start of the array, the rest from its end
+        final long[] sorted = new long[size];
+        int run = 0;
+        int rest = size;
+        for (int i = 0; i < size; i++) {
+            final long key = insertionOrder[i] ^ Long.MIN_VALUE;
+            if (run == 0 || sorted[run - 1] < key) {
+                sorted[run++] = key;
+            } else {
+                sorted[--rest] = key;
+            }
+        }
+        Arrays.sort(sorted, rest, size);
+        final List<Threat> threats = new ArrayList<>(size);
+        int i = 0;
+        int j = rest;
+        while (i < run || j < size) {
+            final long key = j == size || (i < run && sorted[i] < sorted[j]) ? sorted[i++] : sorted[j++];
+            threats.add(get(key ^ Long.MIN_VALUE));
+        }
+        return threats;
+    }
+
+    private void allocate(final int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Threat[capacity];
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final Threat[] oldValues = values;
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldValues.length; oldSlot++) {
+            if (oldValues[oldSlot] != null) {
+                int slot = slot(oldKeys[oldSlot], mask);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[oldSlot];
+                values[slot] = oldValues[oldSlot];
+            }
+        }
+    }
+
+    private static int capacityFor(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity - (capacity >>> LOAD_FACTOR_SHIFT) < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Fibonacci hashing, high bits of the product depend on all key bits, so even small or clustered keys spread
+     */
+    private static int slot(final long crc64, final int mask) {
+        return (int) ((crc64 * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+}
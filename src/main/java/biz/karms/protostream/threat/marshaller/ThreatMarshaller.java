@@ -4,8 +4,6 @@ import biz.karms.protostream.threat.domain.Threat;
 import org.infinispan.protostream.MessageMarshaller;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.stream.Collectors;
 
 public class ThreatMarshaller implements MessageMarshaller<Threat> {
     @Override
@@ -25,10 +23,9 @@ public class ThreatMarshaller implements MessageMarshaller<Threat> {
 
     @Override
     public void writeTo(ProtoStreamWriter writer, Threat record) throws IOException {
-        writer.writeString("crc64", record.getCrc64().toString());
+        writer.writeString("crc64", Long.toUnsignedString(record.getCrc64()));
         writer.writeInt("accuracy", record.getAccuracy());
 
-        final List<Integer> flags = record.getSlots().stream().map(flag -> flag != null ? (int) flag.getByteValue() : 0).collect(Collectors.toList());
-        writer.writeCollection("flags", flags, Integer.class);
+        writer.writeCollection("flags", record.getFlagValues(), Integer.class);
     }
 }
@@ -0,0 +1,237 @@
+package biz.karms.protostream.threat.policy;
+
+import biz.karms.protostream.ioc.IoCDictionary;
+import biz.karms.protostream.threat.domain.Flag;
+import biz.karms.sinkit.ioc.IoCClassificationType;
+import biz.karms.sinkit.resolver.Policy;
+import biz.karms.sinkit.resolver.StrategyType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Policies of a resolver compiled for matching millions of IoCs.
+ * <p>
+ * Feeds and types referenced by any of the policies are interned to ids starting at 1, id 0 stands for every feed or
+ * type no policy refers to. Feed sets of a policy become bitmasks over the feed ids, type sets bitmasks over the type
+ * ids, the audit threshold and the flag of the strategy are resolved in advance. {@link PolicyMatcher} then evaluates
+ * an IoC with a few bitwise operations per policy. Matching rules are those of the stream based reference
+ * implementation kept with the tests.
+ * <p>
+ * Immutable and thread safe, matchers are not.
+ *
+ * @author Michal Karm Babacek
+ */
+public class CompiledPolicies {
+
+    static final int OTHER = 0;
+
+    private final Map<String, Integer> feedIds = new HashMap<>();
+    private final Map<String, Integer> typeIds = new HashMap<>();
+    private final CompiledPolicy[] policies;
+    private final int feedWords;
+    private final int typeWords;
+
+    private CompiledPolicies(final List<Policy> policies) {
+        // ids first, the mask length depends on their count
+        for (Policy policy : policies) {
+            if (policy.getStrategy().getStrategyType() == StrategyType.accuracy) {
+                internAll(typeIds, labels(policy.getStrategy().getStrategyParams().getTypes()));
+                internAll(feedIds, policy.getAccuracyFeeds());
+            }
+            internAll(feedIds, policy.getBlacklistedFeeds());
+        }
+        this.feedWords = words(feedIds.size() + 1);
+        this.typeWords = words(typeIds.size() + 1);
+        this.policies = policies.stream().map(CompiledPolicy::new).toArray(CompiledPolicy[]::new);
+    }
+
+    public static CompiledPolicies compile(final List<Policy> policies) {
+        return new CompiledPolicies(policies);
+    }
+
+    /**
+     * Canonical form of a policy list covering everything the threat matching reads: strategy, audit threshold, types,
+     * accuracy and blacklisted feeds per slot. Order of set items and null versus empty sets make no difference,
+     * resolvers with equal fingerprints get equal threats before their custom lists are applied.
+     *
+     * @param policies policies of a resolver
+     * @return fingerprint
+     */
+    public static String fingerprint(final List<Policy> policies) {
+        final StringBuilder fingerprint = new StringBuilder();
+        for (Policy policy : policies) {
+            final StrategyType strategyType = policy.getStrategy().getStrategyType();
+            fingerprint.append(strategyType.name());
+            if (strategyType == StrategyType.accuracy) {
+                fingerprint.append('|').append(policy.getStrategy().getStrategyParams().getAudit())
+                        .append('|').append(sorted(labels(policy.getStrategy().getStrategyParams().getTypes())))
+                        .append('|').append(sorted(policy.getAccuracyFeeds()));
+            }
+            fingerprint.append('|').append(sorted(policy.getBlacklistedFeeds())).append(';');
+        }
+        return fingerprint.toString();
+    }
+
+    private static Set<String> sorted(final Set<String> values) {
+        return values == null ? Collections.emptySortedSet() : new TreeSet<>(values);
+    }
+
+    public int size() {
+        return policies.length;
+    }
+
+    /**
+     * @return true if no IoC without any of {@link #getFeeds()} can match, i.e. all policies are accuracy strategies
+     * with accuracy feeds given. Any other policy matches IoCs regardless of their feeds and needs a full scan.
+     */
+    public boolean isFeedSelective() {
+        for (CompiledPolicy policy : policies) {
+            if (!policy.accuracyStrategy || policy.anyAccuracyFeed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return accuracy and blacklisted feeds referenced by any of the policies
+     */
+    public Set<String> getFeeds() {
+        return Collections.unmodifiableSet(feedIds.keySet());
+    }
+
+    /**
+     * @return matcher of {@link biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord}s, looks feeds and types up by name
+     */
+    public PolicyMatcher matcher() {
+        return new PolicyMatcher(this, null, null);
+    }
+
+    /**
+     * @return matcher of snapshot cursors, snapshot ids are translated to policy ids through arrays built here
+     */
+    public PolicyMatcher matcher(final IoCDictionary feeds, final IoCDictionary types) {
+        return new PolicyMatcher(this, translate(feeds, feedIds), translate(types, typeIds));
+    }
+
+    int feedId(final String feed) {
+        return feedIds.getOrDefault(feed, OTHER);
+    }
+
+    int typeId(final String type) {
+        return typeIds.getOrDefault(type, OTHER);
+    }
+
+    CompiledPolicy[] policies() {
+        return policies;
+    }
+
+    int feedWords() {
+        return feedWords;
+    }
+
+    int typeCount() {
+        return typeIds.size() + 1;
+    }
+
+    private static int[] translate(final IoCDictionary dictionary, final Map<String, Integer> ids) {
+        final int[] translation = new int[dictionary.size()];
+        for (int id = 0; id < translation.length; id++) {
+            translation[id] = ids.getOrDefault(dictionary.get(id), OTHER);
+        }
+        return translation;
+    }
+
+    private static Set<String> labels(final Set<IoCClassificationType> types) {
+        if (types == null) {
+            return null;
+        }
+        final Set<String> labels = new HashSet<>();
+        types.forEach(type -> labels.add(type.getLabel()));
+        return labels;
+    }
+
+    private static void internAll(final Map<String, Integer> ids, final Set<String> values) {
+        if (values != null) {
+            values.forEach(value -> ids.putIfAbsent(value, ids.size() + 1));
+        }
+    }
+
+    private static int words(final int bits) {
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    private static long[] mask(final Set<String> values, final Map<String, Integer> ids, final int words) {
+        final long[] mask = new long[words];
+        if (values != null) {
+            values.forEach(value -> set(mask, ids.get(value)));
+        }
+        return mask;
+    }
+
+    private static long[] all(final int words) {
+        final long[] mask = new long[words];
+        Arrays.fill(mask, -1L);
+        return mask;
+    }
+
+    static void set(final long[] mask, final int id) {
+        mask[id >>> 6] |= 1L << id;
+    }
+
+    static boolean get(final long[] mask, final int id) {
+        return (mask[id >>> 6] & 1L << id) != 0;
+    }
+
+    static boolean intersects(final long[] a, final long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if ((a[i] & b[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A single policy, an empty type or accuracy feed set of an accuracy strategy matches anything
+     */
+    final class CompiledPolicy {
+        final Flag strategyFlag;
+        final boolean accuracyStrategy;
+        final int audit;
+        final boolean anyType;
+        final boolean anyAccuracyFeed;
+        final long[] types;
+        final long[] accuracyFeeds;
+        final long[] blacklistedFeeds;
+
+        private CompiledPolicy(final Policy policy) {
+            final StrategyType strategyType = policy.getStrategy().getStrategyType();
+            this.strategyFlag = Flag.valueOf(strategyType.name());
+            this.accuracyStrategy = strategyType == StrategyType.accuracy;
+            if (accuracyStrategy) {
+                this.audit = policy.getStrategy().getStrategyParams().getAudit();
+                final Set<IoCClassificationType> iocTypes = policy.getStrategy().getStrategyParams().getTypes();
+                this.anyType = iocTypes == null || iocTypes.isEmpty();
+                this.types = mask(labels(iocTypes), typeIds, typeWords);
+                final Set<String> feeds = policy.getAccuracyFeeds();
+                this.anyAccuracyFeed = feeds == null || feeds.isEmpty();
+                this.accuracyFeeds = anyAccuracyFeed ? all(feedWords) : mask(feeds, feedIds, feedWords);
+            } else {
+                this.audit = 0;
+                this.anyType = true;
+                this.anyAccuracyFeed = true;
+                this.types = new long[typeWords];
+                this.accuracyFeeds = all(feedWords);
+            }
+            this.blacklistedFeeds = mask(policy.getBlacklistedFeeds(), feedIds, feedWords);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package biz.karms.protostream.threat.policy;
+
+import biz.karms.protostream.ioc.IoCCursor;
+import biz.karms.protostream.threat.domain.Flag;
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static biz.karms.protostream.threat.policy.CompiledPolicies.intersects;
+import static biz.karms.protostream.threat.policy.CompiledPolicies.set;
+
+/**
+ * Evaluates IoCs against {@link CompiledPolicies}.
+ * <p>
+ * Sources of an IoC are folded into a mask of all its feeds and a mask of feeds per type first, independently of
+ * policies. Each policy is then a mask intersection for blacklisted feeds and, for the accuracy strategy, an
+ * intersection of accuracy feeds with the feeds of the policy's types.
+ * <p>
+ * Not thread safe, the masks are reused from IoC to IoC.
+ *
+ * @author Michal Karm Babacek
+ */
+public class PolicyMatcher {
+
+    private final CompiledPolicies compiled;
+    private final int[] feedTranslation;
+    private final int[] typeTranslation;
+    private final long[] feeds;
+    private final long[][] feedsByType;
+    private final int[] presentTypes;
+    private int presentTypeCount;
+
+    PolicyMatcher(final CompiledPolicies compiled, final int[] feedTranslation, final int[] typeTranslation) {
+        this.compiled = compiled;
+        this.feedTranslation = feedTranslation;
+        this.typeTranslation = typeTranslation;
+        this.feeds = new long[compiled.feedWords()];
+        this.feedsByType = new long[compiled.typeCount()][compiled.feedWords()];
+        this.presentTypes = new int[compiled.typeCount()];
+    }
+
+    /**
+     * @param cursor IoC of the snapshot whose dictionaries the matcher has been created for
+     * @param slots  gets the flag of each policy, null where the policy does not match
+     * @return true if any policy matches
+     */
+    public boolean match(final IoCCursor cursor, final Flag[] slots) {
+        reset();
+        for (int sourceIdx = 0; sourceIdx < cursor.getSourceCount(); sourceIdx++) {
+            addSource(feedTranslation[cursor.getSourceFeed(sourceIdx)], typeTranslation[cursor.getSourceType(sourceIdx)]);
+        }
+        return evaluate(cursor.getMaxAccuracy(), slots);
+    }
+
+    /**
+     * @param record      IoC
+     * @param maxAccuracy max accuracy of the record
+     * @param slots       gets the flag of each policy, null where the policy does not match
+     * @return true if any policy matches
+     */
+    public boolean match(final BlacklistedRecord record, final int maxAccuracy, final Flag[] slots) {
+        reset();
+        if (record.getSources() != null) {
+            for (Map.Entry<String, ImmutablePair<String, String>> source : record.getSources().entrySet()) {
+                addSource(compiled.feedId(source.getKey()), compiled.typeId(source.getValue().getLeft()));
+            }
+        }
+        return evaluate(maxAccuracy, slots);
+    }
+
+    private void reset() {
+        Arrays.fill(feeds, 0);
+        for (int i = 0; i < presentTypeCount; i++) {
+            Arrays.fill(feedsByType[presentTypes[i]], 0);
+        }
+        presentTypeCount = 0;
+    }
+
+    private void addSource(final int feed, final int type) {
+        set(feeds, feed);
+        final long[] typeFeeds = feedsByType[type];
+        if (isZero(typeFeeds)) {
+            presentTypes[presentTypeCount++] = type;
+        }
+        set(typeFeeds, feed);
+    }
+
+    private boolean evaluate(final int maxAccuracy, final Flag[] slots) {
+        final CompiledPolicies.CompiledPolicy[] policies = compiled.policies();
+        boolean matched = false;
+        for (int policyIdx = 0; policyIdx < policies.length; policyIdx++) {
+            final CompiledPolicies.CompiledPolicy policy = policies[policyIdx];
+            final Flag flag;
+            if (intersects(feeds, policy.blacklistedFeeds)) {
+                flag = Flag.blacklist;
+            } else if (!policy.accuracyStrategy || (maxAccuracy >= policy.audit && accuracyMatch(policy))) {
+                flag = policy.strategyFlag;
+            } else {
+                flag = null;
+            }
+            slots[policyIdx] = flag;
+            matched |= flag != null;
+        }
+        return matched;
+    }
+
+    private boolean accuracyMatch(final CompiledPolicies.CompiledPolicy policy) {
+        if (policy.anyType) {
+            return intersects(feeds, policy.accuracyFeeds);
+        }
+        for (int i = 0; i < presentTypeCount; i++) {
+            final int type = presentTypes[i];
+            if (CompiledPolicies.get(policy.types, type) && intersects(feedsByType[type], policy.accuracyFeeds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZero(final long[] mask) {
+        for (long word : mask) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,24 +1,48 @@
 package biz.karms.protostream.threat.processing;
 
+import biz.karms.crc64java.CRC64;
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.protostream.ioc.RecordIoCSnapshot;
 import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
 import biz.karms.sinkit.resolver.EndUserConfiguration;
 import biz.karms.sinkit.resolver.ResolverConfiguration;
+import lombok.AccessLevel;
 import lombok.Getter;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 @Getter
 public class ProcessingContext {
     private Collection<ResolverConfiguration> resolverConfigurations;
     private Collection<BlacklistedRecord> blacklistedRecords;
     private Collection<EndUserConfiguration> endUserRecords;
+    private IoCSnapshot ioCSnapshot;
+
+    /**
+     * Only resolvers changed since the last run are processed, not all of them
+     */
+    private boolean incremental;
+
+    @Getter(AccessLevel.NONE)
+    private Map<Integer, List<EndUserConfiguration>> endUserRecordsByClientId;
+    @Getter(AccessLevel.NONE)
+    private Map<Integer, CustomListDomains> blacklistedDomainsByClientId;
 
     public ProcessingContext() {
         this.resolverConfigurations = Collections.emptyList();
         this.blacklistedRecords = Collections.emptyList();
+        this.ioCSnapshot = RecordIoCSnapshot.EMPTY;
         this.endUserRecords = Collections.emptyList();
+        this.endUserRecordsByClientId = Collections.emptyMap();
+        this.blacklistedDomainsByClientId = Collections.emptyMap();
     }
 
     public void setResolverConfigurations(Collection<ResolverConfiguration> resolverConfigurations) {
@@ -31,7 +55,87 @@ public class ProcessingContext {
                 "Blacklisted records cannot be null"));
     }
 
+    /**
+     * Sets the snapshot and, if the snapshot keeps them, its blacklisted records
+     */
+    public void setIoCSnapshot(IoCSnapshot ioCSnapshot) {
+        this.ioCSnapshot = Objects.requireNonNull(ioCSnapshot, "IoC snapshot cannot be null");
+        this.blacklistedRecords = ioCSnapshot.getRecords().orElse(Collections.emptyList());
+    }
+
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets end user records and indexes them by client id, so that each resolver picks its own records and blacklisted
+     * custom list domains without a pass over all of them. Records without a client id belong to no resolver.
+     */
     public void setEndUserRecords(Collection<EndUserConfiguration> endUserRecords) {
-        this.endUserRecords = endUserRecords;
+        this.endUserRecords = Collections.unmodifiableCollection(Objects.requireNonNull(endUserRecords,
+                "End user records cannot be null"));
+
+        final Map<Integer, List<EndUserConfiguration>> byClientId = new HashMap<>();
+        for (EndUserConfiguration record : endUserRecords) {
+            if (record.getClientId() != null) {
+                byClientId.computeIfAbsent(record.getClientId(), clientId -> new ArrayList<>()).add(record);
+            }
+        }
+        final Map<Integer, CustomListDomains> blacklistedDomains = new HashMap<>();
+        byClientId.forEach((clientId, records) -> {
+            final Set<String> domains = new LinkedHashSet<>();
+            records.stream().map(EndUserConfiguration::getBlacklist).filter(Objects::nonNull).forEach(domains::addAll);
+            if (!domains.isEmpty()) {
+                blacklistedDomains.put(clientId, new CustomListDomains(domains));
+            }
+        });
+        byClientId.replaceAll((clientId, records) -> Collections.unmodifiableList(records));
+        this.endUserRecordsByClientId = byClientId;
+        this.blacklistedDomainsByClientId = blacklistedDomains;
+    }
+
+    /**
+     * @return end user records of the client in the order of {@link #getEndUserRecords()}, empty if there are none
+     */
+    public List<EndUserConfiguration> getEndUserRecords(Integer clientId) {
+        return endUserRecordsByClientId.getOrDefault(clientId, Collections.emptyList());
+    }
+
+    /**
+     * @return distinct blacklisted custom list domains of all end user records of the client
+     */
+    public CustomListDomains getBlacklistedDomains(Integer clientId) {
+        return blacklistedDomainsByClientId.getOrDefault(clientId, CustomListDomains.EMPTY);
+    }
+
+    /**
+     * Custom list domains with their crc64s, computed once per run rather than once per resolver of the client
+     */
+    public static class CustomListDomains {
+
+        static final CustomListDomains EMPTY = new CustomListDomains(Collections.emptySet());
+
+        private final String[] domains;
+        private final long[] crc64s;
+
+        CustomListDomains(final Set<String> domains) {
+            this.domains = domains.toArray(new String[0]);
+            this.crc64s = new long[this.domains.length];
+            for (int i = 0; i < this.domains.length; i++) {
+                crc64s[i] = CRC64.getInstance().crc64Long(this.domains[i].getBytes());
+            }
+        }
+
+        public int size() {
+            return domains.length;
+        }
+
+        public String getDomain(final int index) {
+            return domains[index];
+        }
+
+        public long getCrc64(final int index) {
+            return crc64s[index];
+        }
     }
 }
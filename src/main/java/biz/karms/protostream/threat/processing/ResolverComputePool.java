@@ -0,0 +1,143 @@
+package biz.karms.protostream.threat.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compute pool shared by all tasks of the resolver pipeline, instead of the common pool and a pool per threat task.
+ * <p>
+ * Scans over millions of IoCs are split into chunks of D2P_RESOLVER_SCAN_CHUNK_ROWS rows run in parallel. What limits
+ * them is memory rather than threads: a chunk reserves the heap its threats may take, i.e. each of its rows matching,
+ * from a budget of D2P_RESOLVER_MEMORY_BUDGET_MB and the next chunk waits until enough of the budget is returned.
+ * A chunk bigger than the whole budget runs alone.
+ * <p>
+ * It is a {@link ForkJoinPool}, a task waiting for its chunks or the budget does not starve the pool.
+ *
+ * @author Michal Karm Babacek
+ */
+public class ResolverComputePool {
+
+    private static final Logger logger = Logger.getLogger(ResolverComputePool.class.getName());
+
+    /**
+     * Threads of the pool, defaults to available processors
+     */
+    private static final int D2P_RESOLVER_POOL_THREADS = Integer.parseInt(System.getProperty("D2P_RESOLVER_POOL_THREADS",
+            Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    /**
+     * Heap the chunks in flight may take, 0 means a quarter of max heap
+     */
+    private static final long D2P_RESOLVER_MEMORY_BUDGET_MB = Long.parseLong(System.getProperty("D2P_RESOLVER_MEMORY_BUDGET_MB", "0"));
+
+    /**
+     * IoC rows per chunk of a scan
+     */
+    private static final int D2P_RESOLVER_SCAN_CHUNK_ROWS = Integer.parseInt(System.getProperty("D2P_RESOLVER_SCAN_CHUNK_ROWS", "262144"));
+
+    private static final ResolverComputePool pool = new ResolverComputePool(D2P_RESOLVER_POOL_THREADS,
+            D2P_RESOLVER_MEMORY_BUDGET_MB > 0 ? D2P_RESOLVER_MEMORY_BUDGET_MB * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4,
+            D2P_RESOLVER_SCAN_CHUNK_ROWS);
+
+    private final ForkJoinPool executor;
+    // permits are KB, an int of bytes would not do for larger heaps
+    private final Semaphore budget;
+    private final int budgetKB;
+    private final int chunkRows;
+
+    ResolverComputePool(final int threads, final long budgetBytes, final int chunkRows) {
+        this.executor = new ForkJoinPool(threads, forkJoinPool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("resolver-compute-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        this.budgetKB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / 1024));
+        this.budget = new Semaphore(budgetKB, true);
+        this.chunkRows = Math.max(1, chunkRows);
+        logger.log(Level.INFO, "Resolver compute pool of " + threads + " threads, memory budget " + (budgetKB / 1024) + " MB, chunks of " + this.chunkRows + " rows.");
+    }
+
+    public static ResolverComputePool getPool() {
+        return pool;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Splits rows into chunks processed in parallel within the memory budget.
+     *
+     * @param rows        rows to process
+     * @param bytesPerRow heap a row may take while its chunk runs
+     * @param chunk       processes rows from, inclusive, to, exclusive, must be thread safe
+     * @param <T>         result of a chunk
+     * @return results of the chunks in the order of rows
+     */
+    public <T> List<T> invokeChunked(final int rows, final long bytesPerRow, final ChunkTask<T> chunk) {
+        if (rows <= chunkRows) {
+            // nothing to split, no point in a hop to the pool
+            return Collections.singletonList(chunk.process(0, rows));
+        }
+        final List<CompletableFuture<T>> futures = new ArrayList<>();
+        for (int from = 0; from < rows; from += chunkRows) {
+            final int chunkFrom = from;
+            final int chunkTo = Math.min(rows, from + chunkRows);
+            final int permits = permits((chunkTo - chunkFrom) * bytesPerRow);
+            try {
+                acquire(permits);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                throw new IllegalStateException("Interrupted while waiting for memory budget", e);
+            }
+            futures.add(CompletableFuture.supplyAsync(() -> chunk.process(chunkFrom, chunkTo), executor)
+                    .whenComplete((result, e) -> budget.release(permits)));
+        }
+        final List<T> results = new ArrayList<>(futures.size());
+        futures.forEach(future -> results.add(future.join()));
+        return results;
+    }
+
+    int permits(final long bytes) {
+        return (int) Math.min(budgetKB, Math.max(1, (bytes + 1023) / 1024));
+    }
+
+    int getAvailableBudgetKB() {
+        return budget.availablePermits();
+    }
+
+    private void acquire(final int permits) throws InterruptedException {
+        if (!budget.tryAcquire(permits)) {
+            // a pool thread blocked here gets compensated by a spare one
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean acquired = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    budget.acquire(permits);
+                    acquired = true;
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return acquired || (acquired = budget.tryAcquire(permits));
+                }
+            });
+        }
+    }
+
+    @FunctionalInterface
+    public interface ChunkTask<T> {
+        T process(int from, int to);
+    }
+}
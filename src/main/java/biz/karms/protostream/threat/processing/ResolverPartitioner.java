@@ -0,0 +1,180 @@
+package biz.karms.protostream.threat.processing;
+
+import org.infinispan.client.hotrod.Flag;
+import org.infinispan.client.hotrod.MetadataValue;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Splits resolvers among dump2proto instances sharing the same Infinispan, instead of D2P_REVERSE_RESOLVERS_ORDER.
+ * <p>
+ * Resolvers are hashed into D2P_RESOLVER_PARTITION_BUCKETS buckets and an instance exports resolvers of the buckets
+ * it holds a lease of. Leases and heartbeats of instances are entries of D2P_RESOLVER_LEASE_CACHE which expire after
+ * D2P_RESOLVER_LEASE_TTL_S unless renewed. Each refresh renews the heartbeat and the leases held, releases leases above
+ * a fair share of the live instances and claims free buckets up to it. Buckets of an instance which disappeared are
+ * free once its leases expire, buckets for a new instance are released by the others on their next refresh.
+ * <p>
+ * Leases are claimed by putIfAbsent and renewed or released by version, a bucket is never held by two instances.
+ * A resolver is checked against the lease once more right before its export is published.
+ *
+ * @author Michal Karm Babacek
+ */
+public class ResolverPartitioner implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ResolverPartitioner.class.getName());
+
+    /**
+     * Split resolvers among instances, each exports only resolvers of its buckets
+     */
+    private static final boolean D2P_RESOLVER_PARTITIONING = Boolean.parseBoolean(System.getProperty("D2P_RESOLVER_PARTITIONING", "False"));
+
+    /**
+     * Cache of leases and heartbeats, it has to be defined on the server
+     */
+    private static final String D2P_RESOLVER_LEASE_CACHE = System.getProperty("D2P_RESOLVER_LEASE_CACHE", "dump2proto_leases");
+
+    /**
+     * Buckets resolvers are hashed into, all instances must agree on it
+     */
+    private static final int D2P_RESOLVER_PARTITION_BUCKETS = Integer.parseInt(System.getProperty("D2P_RESOLVER_PARTITION_BUCKETS", "64"));
+
+    /**
+     * Leases and heartbeats expire unless renewed within, refreshed three times within it
+     */
+    public static final int D2P_RESOLVER_LEASE_TTL_S = Integer.parseInt(System.getProperty("D2P_RESOLVER_LEASE_TTL_S", "300"));
+
+    /**
+     * Identity of this instance, unique among instances, defaults to pid@host
+     */
+    private static final String D2P_INSTANCE_ID = System.getProperty("D2P_INSTANCE_ID", ManagementFactory.getRuntimeMXBean().getName());
+
+    static final String INSTANCE_PREFIX = "instance#";
+    static final String BUCKET_PREFIX = "bucket#";
+
+    private final RemoteCache<String, String> leases;
+    private final String instanceId;
+    private final int buckets;
+    private final int ttlSeconds;
+    private volatile BitSet held = new BitSet();
+
+    ResolverPartitioner(final RemoteCache<String, String> leases, final String instanceId, final int buckets, final int ttlSeconds) {
+        this.leases = Objects.requireNonNull(leases, "Lease cache cannot be null");
+        this.instanceId = Objects.requireNonNull(instanceId, "Instance id cannot be null");
+        this.buckets = Math.max(1, buckets);
+        this.ttlSeconds = Math.max(1, ttlSeconds);
+    }
+
+    /**
+     * @return partitioner of this instance, null if partitioning is off
+     */
+    public static ResolverPartitioner create(final RemoteCacheManager remoteCacheManager) {
+        if (!D2P_RESOLVER_PARTITIONING) {
+            return null;
+        }
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Instance " + D2P_INSTANCE_ID + " partitions resolvers into "
+                + D2P_RESOLVER_PARTITION_BUCKETS + " buckets, leases in " + D2P_RESOLVER_LEASE_CACHE + ".");
+        return new ResolverPartitioner(remoteCacheManager.getCache(D2P_RESOLVER_LEASE_CACHE), D2P_INSTANCE_ID,
+                D2P_RESOLVER_PARTITION_BUCKETS, D2P_RESOLVER_LEASE_TTL_S);
+    }
+
+    @Override
+    public void run() {
+        try {
+            refresh();
+        } catch (RuntimeException e) {
+            // the leases held expire unless the next refresh succeeds
+            logger.log(Level.SEVERE, "Thread " + Thread.currentThread().getName() + ": Refreshing resolver leases failed.", e);
+        }
+    }
+
+    /**
+     * Renews the heartbeat and the leases held, releases leases above the fair share and claims free buckets up to it
+     *
+     * @return buckets held
+     */
+    public synchronized BitSet refresh() {
+        leases.put(INSTANCE_PREFIX + instanceId, instanceId, ttlSeconds, TimeUnit.SECONDS);
+        final Set<String> keys = leases.keySet();
+        final int instances = (int) Math.max(1, keys.stream().filter(key -> key.startsWith(INSTANCE_PREFIX)).count());
+        final int share = (buckets + instances - 1) / instances;
+
+        final Map<String, String> owners = leases.getAll(IntStream.range(0, buckets).mapToObj(ResolverPartitioner::key).collect(Collectors.toSet()));
+        final BitSet refreshed = new BitSet(buckets);
+        int released = 0;
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            if (!instanceId.equals(owners.get(key(bucket)))) {
+                continue;
+            }
+            final MetadataValue<String> lease = leases.getWithMetadata(key(bucket));
+            if (lease == null || !instanceId.equals(lease.getValue())) {
+                continue;
+            }
+            if (refreshed.cardinality() < share) {
+                if (leases.replaceWithVersion(key(bucket), instanceId, lease.getVersion(), ttlSeconds)) {
+                    refreshed.set(bucket);
+                }
+            } else if (leases.removeWithVersion(key(bucket), lease.getVersion())) {
+                released++;
+            }
+        }
+        // instances start at different buckets, not to race for the same ones
+        final int offset = Math.floorMod(instanceId.hashCode(), buckets);
+        for (int i = 0; i < buckets && refreshed.cardinality() < share; i++) {
+            final int bucket = (offset + i) % buckets;
+            if (!refreshed.get(bucket) && owners.get(key(bucket)) == null
+                    // flags hold for a single operation only
+                    && leases.withFlags(Flag.FORCE_RETURN_VALUE).putIfAbsent(key(bucket), instanceId, ttlSeconds, TimeUnit.SECONDS) == null) {
+                refreshed.set(bucket);
+            }
+        }
+        if (!refreshed.equals(held)) {
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Instance " + instanceId + " holds " + refreshed.cardinality()
+                    + " of " + buckets + " buckets, " + instances + " instances, " + released + " released.");
+        }
+        held = refreshed;
+        return (BitSet) refreshed.clone();
+    }
+
+    /**
+     * @return buckets held as of the last refresh
+     */
+    public BitSet getHeld() {
+        return (BitSet) held.clone();
+    }
+
+    /**
+     * @return true if the bucket of the resolver was held as of the last refresh
+     */
+    public boolean owns(final int resolverId) {
+        return held.get(bucket(resolverId));
+    }
+
+    /**
+     * Asks the cache, to be sure the lease has not expired or moved since the last refresh
+     *
+     * @return true if the bucket of the resolver is held now
+     */
+    public boolean holds(final int resolverId) {
+        return instanceId.equals(leases.get(key(bucket(resolverId))));
+    }
+
+    public int bucket(final int resolverId) {
+        // consecutive IDs spread over buckets
+        return Math.floorMod(resolverId * 0x9E3779B9, buckets);
+    }
+
+    private static String key(final int bucket) {
+        return BUCKET_PREFIX + bucket;
+    }
+}
@@ -0,0 +1,102 @@
+package biz.karms.protostream.threat.processing;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stages a resolver goes through after its threats are computed on {@link ResolverComputePool}: protobuf encoding
+ * into tmp files and export, i.e. file swap, S3 upload and notification. Each stage has its own threads, so uploads of
+ * one resolver overlap computation of the next one.
+ * <p>
+ * A computed record is the largest thing a resolver holds, D2P_RESOLVER_PIPELINE_DEPTH records at most are computed
+ * and not yet encoded, computation of the next resolver waits for a slot. Once encoded, a resolver is just its tmp
+ * files. Queues of the stages are bounded too, a full queue runs the task in the submitting thread, which slows
+ * the stage before down.
+ *
+ * @author Michal Karm Babacek
+ */
+public class ResolverPipeline {
+
+    private static final Logger logger = Logger.getLogger(ResolverPipeline.class.getName());
+
+    /**
+     * Threads encoding resolver records
+     */
+    private static final int D2P_RESOLVER_ENCODE_THREADS = Integer.parseInt(System.getProperty("D2P_RESOLVER_ENCODE_THREADS", "2"));
+
+    /**
+     * Threads swapping and uploading resolver files
+     */
+    private static final int D2P_RESOLVER_EXPORT_THREADS = Integer.parseInt(System.getProperty("D2P_RESOLVER_EXPORT_THREADS", "4"));
+
+    /**
+     * Computed records waiting for or being encoded at most
+     */
+    private static final int D2P_RESOLVER_PIPELINE_DEPTH = Integer.parseInt(System.getProperty("D2P_RESOLVER_PIPELINE_DEPTH", "2"));
+
+    private static final ResolverPipeline pipeline = new ResolverPipeline(D2P_RESOLVER_ENCODE_THREADS, D2P_RESOLVER_EXPORT_THREADS, D2P_RESOLVER_PIPELINE_DEPTH);
+
+    private final ThreadPoolExecutor encodeExecutor;
+    private final ThreadPoolExecutor exportExecutor;
+    private final Semaphore records;
+
+    ResolverPipeline(final int encodeThreads, final int exportThreads, final int depth) {
+        this.encodeExecutor = newStageExecutor("resolver-encode-", encodeThreads, depth);
+        this.exportExecutor = newStageExecutor("resolver-export-", exportThreads, exportThreads);
+        this.records = new Semaphore(Math.max(1, depth), true);
+        logger.log(Level.INFO, "Resolver pipeline of " + encodeThreads + " encode and " + exportThreads + " export threads, " + depth + " records in flight.");
+    }
+
+    public static ResolverPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public Executor getEncodeExecutor() {
+        return encodeExecutor;
+    }
+
+    public Executor getExportExecutor() {
+        return exportExecutor;
+    }
+
+    /**
+     * Waits for a slot of a computed record
+     */
+    public void acquireRecord() {
+        try {
+            records.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the pipeline", e);
+        }
+    }
+
+    /**
+     * Returns the slot once the record is encoded or its computation failed
+     */
+    public void releaseRecord() {
+        records.release();
+    }
+
+    int getAvailableRecords() {
+        return records.availablePermits();
+    }
+
+    private static ThreadPoolExecutor newStageExecutor(final String namePrefix, final int threads, final int queueSize) {
+        final AtomicInteger counter = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+            final Thread thread = new Thread(runnable, namePrefix + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -1,9 +1,11 @@
 package biz.karms.protostream.threat.processing;
 
 import biz.karms.Dump2Proto;
+import biz.karms.protostream.GuardedRun;
 import biz.karms.protostream.ioc.IoCKeeper;
 import biz.karms.protostream.threat.domain.*;
 import biz.karms.protostream.threat.exception.ResolverProcessingException;
+import biz.karms.protostream.threat.policy.CompiledPolicies;
 import biz.karms.protostream.threat.task.*;
 import biz.karms.sinkit.ejb.cache.annotations.SinkitCacheName;
 import biz.karms.sinkit.resolver.EndUserConfiguration;
@@ -15,12 +17,13 @@ import org.infinispan.client.hotrod.Search;
 import org.infinispan.query.dsl.Query;
 import org.infinispan.query.dsl.QueryFactory;
 
-import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -38,49 +41,119 @@ public class ResolverThreatsProcessor {
     private static final int MIN_BATCH_SIZE = 10;
     private static final int MAX_BATCH_SIZE = 100;
 
+    /**
+     * Evaluate threats of all resolvers of a batch in a single pass over the IoCs, threats of the whole batch are held at once
+     */
+    private static final boolean D2P_RESOLVER_BATCH_EVALUATION = Boolean.parseBoolean(System.getProperty("D2P_RESOLVER_BATCH_EVALUATION", "False"));
+
+    // no policy fingerprint starts with it
+    private static final String UNSHARED = "resolver#";
+
     private final int batchSize;
     private final RemoteCacheManager remoteCacheManagerForIndexedCaches;
-    private final ConcurrentLinkedDeque<Integer> resolverIDs;
-    private final ConcurrentLinkedDeque<Integer> clientIDs;
+    private final ResolverWorkQueue workQueue;
+    private final ResolverWorkQueue.Lane lowestLane;
     private final ThreadPoolExecutor notificationExecutor;
     private final IoCKeeper ioCKeeper;
 
+    // resolvers of the run whose export has not changed, they count as processed
+    private final AtomicInteger unchangedResolvers = new AtomicInteger();
+    // resolvers of the run whose bucket moved to another instance, they count as processed, that one exports them
+    private final AtomicInteger skippedForeignResolvers = new AtomicInteger();
+
+    /**
+     * What happened to an encoded resolver in the export stage
+     */
+    enum Publication {
+        PUBLISHED, UNCHANGED, FOREIGN
+    }
+
     public static Logger getLogger() {
         return logger;
     }
 
     @Setter
-    private ResolverCacheExportTask<ByteBuffer> resolverCacheExportTask = new ResoverCacheFileExportTask();
+    private ResolverCacheExportTask<ResolverRecord> resolverCacheExportTask = new ResoverCacheFileExportTask();
+
+    /**
+     * Resolvers of buckets held by other instances are left to them, null to export all
+     */
+    @Setter
+    private ResolverPartitioner partitioner;
+
+    /**
+     * No more batches are taken from the work queue once exceeded, its policy decides what happens to the rest
+     */
+    @Setter
+    private GuardedRun.Deadline deadline = GuardedRun.Deadline.NONE;
 
     /**
      * Constructor creates this processor
      *
      * @param remoteCacheManagerForIndexedCaches remoteCacheManager which accesses indexed remote caches
      * @param batchSize                          resolvers' batch size (how many resolvers will be processed in a chunk)
+     * @param workQueue                          queue to take resolvers from, null to process all resolvers at once
+     * @param lowestLane                         the lowest lane of the queue to take from, {@link ResolverWorkQueue.Lane#SWEEP}
+     *                                           queues all resolvers first
      */
     public ResolverThreatsProcessor(final RemoteCacheManager remoteCacheManagerForIndexedCaches,
                                     final int batchSize,
-                                    final ConcurrentLinkedDeque<Integer> resolverIDs,
-                                    final ConcurrentLinkedDeque<Integer> clientIDs,
+                                    final ResolverWorkQueue workQueue,
+                                    final ResolverWorkQueue.Lane lowestLane,
                                     final ThreadPoolExecutor notificationExecutor,
                                     final IoCKeeper ioCKeeper) {
         this.remoteCacheManagerForIndexedCaches = Objects
                 .requireNonNull(remoteCacheManagerForIndexedCaches, "RemoteCacheManager for indexed caches cannot be null for processing");
         this.batchSize = batchSize < MIN_BATCH_SIZE ? MIN_BATCH_SIZE : (batchSize > MAX_BATCH_SIZE ? MAX_BATCH_SIZE : batchSize);
-        this.resolverIDs = resolverIDs;
-        this.clientIDs = clientIDs;
+        this.workQueue = workQueue;
+        this.lowestLane = lowestLane;
         this.notificationExecutor = notificationExecutor;
         this.ioCKeeper = Objects.requireNonNull(ioCKeeper, "IoCKeeper cannot be null for processing");
     }
 
     /**
-     * Method generates resolvers' files
+     * Method generates resolvers' files, all of them at once or, with a work queue, a batch taken from the queue at a time
+     * until there is nothing left to take
      *
      * @return boolean if the all resolvers have been exported
      */
     public boolean process() {
+        if (workQueue == null) {
+            return process(this::fetchResolverConfigurations);
+        }
+        queueResolvers();
+        boolean isAllProcessed = true;
+        List<Integer> keys;
+        while (!deadline.isExceeded() && !(keys = workQueue.take(batchSize, lowestLane)).isEmpty()) {
+            final Set<Integer> batchKeys = new HashSet<>(keys);
+            if (partitioner != null && batchKeys.removeIf(resolverID -> !partitioner.owns(resolverID))) {
+                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + (keys.size() - batchKeys.size()) + " Resolver IDs left to other instances.");
+            }
+            try {
+                if (!batchKeys.isEmpty()) {
+                    isAllProcessed &= process(context -> fetchResolverConfigurations(context, batchKeys));
+                }
+            } finally {
+                workQueue.done(keys);
+            }
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + workQueue);
+        }
+        if (deadline.isExceeded() && workQueue.hasWork(lowestLane)) {
+            isAllProcessed = false;
+            // changed resolvers are never dropped, the next sweep queues all resolvers anyway
+            if (deadline.getPolicy() == GuardedRun.OverrunPolicy.SKIP && lowestLane == ResolverWorkQueue.Lane.SWEEP) {
+                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Out of time, " + workQueue.clear(ResolverWorkQueue.Lane.SWEEP)
+                        + " Resolver IDs dropped from the sweep, " + workQueue);
+            } else {
+                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Out of time, the rest is left for the next run, " + workQueue);
+            }
+        }
+        return isAllProcessed;
+    }
+
+    private boolean process(final Function<ProcessingContext, ProcessingContext> fetchResolverConfigurations) {
         final CompletableFuture<Boolean> processResolversFuture = CompletableFuture.completedFuture(new ProcessingContext())
-                .thenApply(this::fetchResolverConfigurations)
+                .thenApply(fetchResolverConfigurations)
                 .thenApply(this::fetchEndUserConfigurations)
                 .thenApply(this::fetchBlacklistedRecord)
                 .thenApply(this::processResolvers);
@@ -88,6 +161,38 @@ public class ResolverThreatsProcessor {
         return processResolversFuture.join();
     }
 
+    /**
+     * Method queues resolvers of the clients whose end user configurations changed and, in a sweep, all resolvers
+     */
+    void queueResolvers() {
+        final RemoteCache<Integer, ResolverConfiguration> resolverConfigurationCache = remoteCacheManagerForIndexedCaches
+                .getCache(SinkitCacheName.resolver_configuration.name());
+        final Set<Integer> clientIDsToProcess = workQueue.drainClients();
+        if (!clientIDsToProcess.isEmpty()) {
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + clientIDsToProcess.size() + " Client IDs collected.");
+            // We need to fetch all resolver IDs for these client IDs
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Converting Client IDs to Resolver IDs...");
+            final QueryFactory qf = Search.getQueryFactory(resolverConfigurationCache);
+            final Query query = qf.from(ResolverConfiguration.class)
+                    .having("clientId").in(clientIDsToProcess)
+                    .toBuilder()
+                    .build();
+            final List<ResolverConfiguration> resolverConfigurations = query.list();
+            resolverConfigurations.forEach(c -> workQueue.offer(c.getResolverId(), ResolverWorkQueue.Lane.CHANGED));
+        }
+        if (lowestLane == ResolverWorkQueue.Lane.SWEEP && deadline.getPolicy() == GuardedRun.OverrunPolicy.RESUME
+                && workQueue.getDepth(ResolverWorkQueue.Lane.SWEEP) > 0) {
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Resuming the sweep, "
+                    + workQueue.getDepth(ResolverWorkQueue.Lane.SWEEP) + " Resolver IDs left.");
+        } else if (lowestLane == ResolverWorkQueue.Lane.SWEEP) {
+            final Comparator<Integer> order = Dump2Proto.REVERSE_RESOLVERS_ORDER ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            final int queued = workQueue.offerAll(resolverConfigurationCache.keySet().stream().sorted(order).collect(Collectors.toList()),
+                    ResolverWorkQueue.Lane.SWEEP);
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + queued + " Resolver IDs queued for the sweep.");
+        }
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + workQueue);
+    }
+
     /**
      * Method returns all ResolverConfiguration data
      *
@@ -95,54 +200,28 @@ public class ResolverThreatsProcessor {
      * @return updated processing context
      */
     ProcessingContext fetchResolverConfigurations(ProcessingContext context) {
+        return fetchResolverConfigurations(context, null);
+    }
+
+    /**
+     * Method returns ResolverConfiguration data of the given resolvers
+     *
+     * @param context processing context
+     * @param keys    resolver IDs, null for all resolvers
+     * @return updated processing context
+     */
+    ProcessingContext fetchResolverConfigurations(ProcessingContext context, Set<Integer> keys) {
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering fetchResolverConfigurations...");
         final long start = System.currentTimeMillis();
         final RemoteCache<Integer, ResolverConfiguration> resolverConfigurationCache = remoteCacheManagerForIndexedCaches
                 .getCache(SinkitCacheName.resolver_configuration.name());
 
-        //TODO: Do even/odd for resolver keys
-        //TODO: Order by change
-        final Set<Integer> keys;
-        if ((resolverIDs == null || resolverIDs.isEmpty()) && (clientIDs == null || clientIDs.isEmpty())) {
+        if (keys == null) {
             keys = resolverConfigurationCache.keySet();
             logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Getting all " + keys.size() + " Resolver IDs from cache and processing them...");
         } else {
-            keys = new HashSet<>();
-
-            // Process resolver IDs
-            if (resolverIDs != null) {
-                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Using Resolver IDs collected from events.");
-                Integer resolverID;
-                // Why poll and not getting all? The collection is being modified concurrently, there might be records being added at this moment.
-                while ((resolverID = resolverIDs.poll()) != null) {
-                    keys.add(resolverID);
-                }
-                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + keys.size() + " Resolver IDs collected.");
-            }
-
-            // Process client IDs
-            if (clientIDs != null) {
-                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Using Client IDs collected from events.");
-                Set<Integer> clientIDsToProcess = new HashSet<>();
-                Integer clientID;
-                // Why poll and not getting all? The collection is being modified concurrently, there might be records being added at this moment.
-                while ((clientID = clientIDs.poll()) != null) {
-                    clientIDsToProcess.add(clientID);
-                }
-                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + clientIDsToProcess.size() + " Client IDs collected.");
-                // We need to fetch all resolver IDs for these client IDs
-                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Converting Client IDs to Resolver IDs...");
-                final QueryFactory qf = Search.getQueryFactory(resolverConfigurationCache);
-                final Query query = qf.from(ResolverConfiguration.class)
-                        .having("clientId").in(clientIDsToProcess)
-                        .toBuilder()
-                        .build();
-                final List<ResolverConfiguration> resolverConfigurations = query.list();
-                resolverConfigurations.forEach(c -> keys.add(c.getResolverId()));
-                logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + keys.size() + " Resolver IDs collected.");
-            }
-
-            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Working with " + keys.size() + " Resolver IDs that changed recently...");
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Working with " + keys.size() + " Resolver IDs taken from the work queue...");
+            context.setIncremental(true);
         }
 
         final List<ResolverConfiguration> configurations;
@@ -159,7 +238,8 @@ public class ResolverThreatsProcessor {
     }
 
     /**
-     * Method returns all endUserConfiguration data
+     * Method returns endUserConfiguration data, all of them or, in an incremental run, only those of the clients of
+     * the resolvers being processed
      *
      * @param context processing context
      * @return updated processing context
@@ -169,21 +249,48 @@ public class ResolverThreatsProcessor {
         final long start = System.currentTimeMillis();
         final RemoteCache<String, EndUserConfiguration> endUserConfigurationRemoteCache = remoteCacheManagerForIndexedCaches
                 .getCache(SinkitCacheName.end_user_configuration.name());
-        final Set<String> keys = endUserConfigurationRemoteCache.keySet();
-        final Collection<EndUserConfiguration> endUserRecords = endUserConfigurationRemoteCache.getAll(keys).values();
+        final Collection<EndUserConfiguration> endUserRecords;
+        if (context.isIncremental()) {
+            final Set<Integer> clientIDsToProcess = context.getResolverConfigurations().stream()
+                    .map(ResolverConfiguration::getClientId).filter(Objects::nonNull).collect(Collectors.toSet());
+            endUserRecords = clientIDsToProcess.isEmpty() ? Collections.emptyList()
+                    : queryEndUserConfigurations(endUserConfigurationRemoteCache, clientIDsToProcess);
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + endUserRecords.size() + " end user configurations of "
+                    + clientIDsToProcess.size() + " Client IDs collected.");
+        } else {
+            final Set<String> keys = endUserConfigurationRemoteCache.keySet();
+            endUserRecords = endUserConfigurationRemoteCache.getAll(keys).values();
+        }
         context.setEndUserRecords(endUserRecords);
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": fetchEndUserConfigurations finished in " + (System.currentTimeMillis() - start) + " ms.");
         return context;
     }
 
     /**
-     * Method returns all blacklistedRecord data
+     * Method queries the indexed cache for the endUserConfigurations of the clients
+     *
+     * @param endUserConfigurationRemoteCache end user configuration cache
+     * @param clientIDs                       client IDs, not empty
+     * @return endUserConfigurations of the clients
+     */
+    List<EndUserConfiguration> queryEndUserConfigurations(RemoteCache<String, EndUserConfiguration> endUserConfigurationRemoteCache,
+                                                          Set<Integer> clientIDs) {
+        final QueryFactory qf = Search.getQueryFactory(endUserConfigurationRemoteCache);
+        final Query query = qf.from(EndUserConfiguration.class)
+                .having("clientId").in(clientIDs)
+                .toBuilder()
+                .build();
+        return query.list();
+    }
+
+    /**
+     * Method returns all blacklistedRecord data, i.e. the current IoC snapshot
      *
      * @param context processing context
      * @return updated processing context
      */
     ProcessingContext fetchBlacklistedRecord(ProcessingContext context) {
-        context.setBlacklistedRecords(ioCKeeper.getBlacklistedRecords());
+        context.setIoCSnapshot(ioCKeeper.getSnapshot());
         return context;
     }
 
@@ -196,6 +303,8 @@ public class ResolverThreatsProcessor {
     boolean processResolvers(final ProcessingContext context) {
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering processResolvers...");
         final long start = System.currentTimeMillis();
+        unchangedResolvers.set(0);
+        skippedForeignResolvers.set(0);
         final List<ResolverConfiguration> allResolvers = new ArrayList<>(context.getResolverConfigurations());
 
         final int loops = (allResolvers.size() + this.batchSize - 1) / this.batchSize;
@@ -205,7 +314,9 @@ public class ResolverThreatsProcessor {
                 .reduce(0, Integer::sum);
 
         final boolean hasBeenAllResolversProcessed = allResolvers.size() == countOfProcessedResolvers;
-        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Resolvers have been processed " + (hasBeenAllResolversProcessed ? "successfully" : "unsuccessfully") + " in " + (System.currentTimeMillis() - start) + " ms.");
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Resolvers have been processed " + (hasBeenAllResolversProcessed ? "successfully" : "unsuccessfully") + " in " + (System.currentTimeMillis() - start) + " ms, "
+                + countOfProcessedResolvers + " of " + allResolvers.size() + " processed, " + unchangedResolvers.get() + " of them unchanged, "
+                + skippedForeignResolvers.get() + " of them left to other instances and not exported.");
         return hasBeenAllResolversProcessed;
     }
 
@@ -218,37 +329,81 @@ public class ResolverThreatsProcessor {
      */
     int processResolversBatch(final List<ResolverConfiguration> resolverConfigurations, final ProcessingContext context) {
 
-        // Use parallel stream causes OOM - more threads handle the processing - bigger memory footprint
-        // OOM git:24bf6838: at biz.karms.protostream.threat.processing.ResolverThreatsProcessor.lambda$processResolversBatch$7(ResolverThreatsProcessor.java:261)
-        // single stream is slower, lower memory footprint
-        return resolverConfigurations.stream().map(resolverConfiguration -> {
-            // users custom list task
-            final UserCustomListTask userCustomListTask = new UserCustomListTask(resolverConfiguration, context);
-            final CompletableFuture<List<CustomListRecord>> userCustomListRecordsFuture = CompletableFuture.supplyAsync(userCustomListTask::processData);
-
-            // ip ranges task
-            final ResolverConfigurationIpRangesTask resolverConfigurationIpRangesTask = new ResolverConfigurationIpRangesTask(resolverConfiguration, context);
-            final CompletableFuture<List<IpRangesRecord>> ipRangesRecordsFuture = CompletableFuture.supplyAsync(resolverConfigurationIpRangesTask::processData);
-
-            // policies task
-            final ResolverConfigurationPolicyTask resolverConfigurationPolicyTask = new ResolverConfigurationPolicyTask(resolverConfiguration, context);
-            final CompletableFuture<List<PolicyRecord>> policyRecordsFuture = CompletableFuture.supplyAsync(resolverConfigurationPolicyTask::processData);
-
-            // resolvers's threats
-            final ResolverThreatTask resolverThreatTask = new ResolverThreatTask(resolverConfiguration, context);
-            final CompletableFuture<List<Threat>> threatRecordsFuture = CompletableFuture
-                    .supplyAsync(resolverThreatTask::processData)
-                    .thenApplyAsync(resolverThreatTask::postProcessData);
-
-            final AtomicBoolean isPassed = new AtomicBoolean(true);
-
-            // run and wait till all task are done
-            CompletableFuture.allOf(userCustomListRecordsFuture, ipRangesRecordsFuture, policyRecordsFuture, threatRecordsFuture)
-                    .exceptionally(e -> handleException(e, isPassed))
-                    .join();
-
-            // if any of subtask has failed - return as uncompleted
-            if (isPassed.get()) {
+        // Resolvers run in parallel on ResolverComputePool, which bounds the memory: each chunk of a scan over IoCs holds
+        // its share of D2P_RESOLVER_MEMORY_BUDGET_MB while it runs and further chunks wait until enough of it is returned.
+        // Resolvers with the same policies share one scan of IoCs, each of them gets a copy of the threats for its custom lists.
+        // The threats are kept for the batch only, the last resolver of a group takes them over without copying.
+        final Executor executor = ResolverComputePool.getPool().getExecutor();
+        final Map<String, CompletableFuture<ThreatMap>> sharedThreats = new HashMap<>();
+        final Map<String, Integer> sharingResolvers = new HashMap<>();
+        final Map<String, ResolverConfiguration> distinctPolicies = new LinkedHashMap<>();
+        resolverConfigurations.forEach(resolverConfiguration -> {
+            final String policiesFingerprint = policiesFingerprint(resolverConfiguration);
+            sharingResolvers.merge(policiesFingerprint, 1, Integer::sum);
+            if (!policiesFingerprint.startsWith(UNSHARED)) {
+                distinctPolicies.putIfAbsent(policiesFingerprint, resolverConfiguration);
+            }
+        });
+        if (D2P_RESOLVER_BATCH_EVALUATION && distinctPolicies.size() > 1) {
+            // One pass over IoCs for all distinct policies, malformed ones are left to their resolver's own task not to fail the batch.
+            // If the pass fails anyway, each group falls back to its own task, which fails or reports just its resolver.
+            final CompletableFuture<List<ThreatMap>> batchThreats = CompletableFuture
+                    .supplyAsync(new ResolverBatchThreatTask(new ArrayList<>(distinctPolicies.values()), context)::processData, executor)
+                    .exceptionally(e -> {
+                        logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Falling back to processing resolvers one by one", e);
+                        return null;
+                    });
+            int idx = 0;
+            for (Map.Entry<String, ResolverConfiguration> group : distinctPolicies.entrySet()) {
+                final int resolverIdx = idx++;
+                // set hands the threats over, the batch list does not keep them alive once the group is done
+                sharedThreats.put(group.getKey(), batchThreats.thenCompose(threats -> threats != null
+                        ? CompletableFuture.completedFuture(threats.set(resolverIdx, null))
+                        : CompletableFuture.supplyAsync(new ResolverThreatTask(group.getValue(), context)::processData, executor)));
+            }
+        }
+
+        final ResolverPipeline pipeline = ResolverPipeline.getPipeline();
+        final List<CompletableFuture<Boolean>> exports = resolverConfigurations.stream().map(resolverConfiguration -> {
+            // a computed record is held until it is encoded, computation waits for a slot
+            pipeline.acquireRecord();
+            boolean encoding = false;
+            try {
+                // users custom list task
+                final UserCustomListTask userCustomListTask = new UserCustomListTask(resolverConfiguration, context);
+                final CompletableFuture<List<CustomListRecord>> userCustomListRecordsFuture = CompletableFuture.supplyAsync(userCustomListTask::processData, executor);
+
+                // ip ranges task
+                final ResolverConfigurationIpRangesTask resolverConfigurationIpRangesTask = new ResolverConfigurationIpRangesTask(resolverConfiguration, context);
+                final CompletableFuture<List<IpRangesRecord>> ipRangesRecordsFuture = CompletableFuture.supplyAsync(resolverConfigurationIpRangesTask::processData, executor);
+
+                // policies task
+                final ResolverConfigurationPolicyTask resolverConfigurationPolicyTask = new ResolverConfigurationPolicyTask(resolverConfiguration, context);
+                final CompletableFuture<List<PolicyRecord>> policyRecordsFuture = CompletableFuture.supplyAsync(resolverConfigurationPolicyTask::processData, executor);
+
+                // resolvers's threats
+                final ResolverThreatTask resolverThreatTask = new ResolverThreatTask(resolverConfiguration, context);
+                final String policiesFingerprint = policiesFingerprint(resolverConfiguration);
+                final boolean lastSharing = sharingResolvers.merge(policiesFingerprint, -1, Integer::sum) == 0;
+                final CompletableFuture<List<Threat>> threatRecordsFuture = sharedThreats
+                        .computeIfAbsent(policiesFingerprint, fingerprint -> CompletableFuture.supplyAsync(resolverThreatTask::processData, executor))
+                        .thenApply(threats -> lastSharing ? threats : threats.deepCopy())
+                        .thenApplyAsync(resolverThreatTask::postProcessData, executor);
+                if (lastSharing) {
+                    sharedThreats.remove(policiesFingerprint);
+                }
+
+                final AtomicBoolean isPassed = new AtomicBoolean(true);
+
+                // run and wait till all task are done
+                CompletableFuture.allOf(userCustomListRecordsFuture, ipRangesRecordsFuture, policyRecordsFuture, threatRecordsFuture)
+                        .exceptionally(e -> handleException(e, isPassed))
+                        .join();
+
+                // if any of subtask has failed - return as uncompleted
+                if (!isPassed.get()) {
+                    return CompletableFuture.completedFuture(false);
+                }
                 // fetch their results and put them into resolver record envelope
                 final ResolverRecord resolverRecord = new ResolverRecord();
                 resolverRecord.setResolverId(resolverConfiguration.getResolverId());
@@ -257,19 +412,57 @@ public class ResolverThreatsProcessor {
                 resolverRecord.setPolicyRecords(policyRecordsFuture.join());
                 resolverRecord.setCustomListRecords(userCustomListRecordsFuture.join());
 
-                // transform into protostream and export them by registered exporter
-                CompletableFuture.completedFuture(resolverRecord)
-                        .thenApply(record -> new ProtostreamTransformerTask(resolverConfiguration).transformToProtobuf(record))
-                        .thenApply(data -> {
-                            resolverCacheExportTask.export(resolverConfiguration, data, notificationExecutor);
-                            return null;
-                        })
-                        .exceptionally(e -> handleException(e, isPassed))
-                        .join();
+                // stream into protobuf and export them by registered exporter, the next resolver is computed meanwhile
+                encoding = true;
+                return CompletableFuture.supplyAsync(() -> resolverCacheExportTask.encode(resolverConfiguration, resolverRecord), pipeline.getEncodeExecutor())
+                        .whenComplete((encoded, e) -> pipeline.releaseRecord())
+                        .thenApplyAsync(encoded -> publish(resolverConfiguration, encoded), pipeline.getExportExecutor())
+                        .thenApply(publication -> true)
+                        .exceptionally(e -> {
+                            handleException(e, isPassed);
+                            return false;
+                        });
+            } finally {
+                if (!encoding) {
+                    pipeline.releaseRecord();
+                }
             }
+        }).collect(Collectors.toList());
+
+        return (int) exports.stream().filter(CompletableFuture::join).count();
+    }
+
+    /**
+     * Publishes the encoded resolver unless its bucket has moved to another instance meanwhile, that one exports it.
+     * Unchanged and foreign resolvers are counted for the run summary.
+     */
+    Publication publish(final ResolverConfiguration resolverConfiguration, final ResolverCacheExportTask.Encoded encoded) {
+        if (partitioner != null && !partitioner.holds(resolverConfiguration.getResolverId())) {
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Resolver " + resolverConfiguration.getResolverId()
+                    + " is not held by this instance anymore, not published.");
+            skippedForeignResolvers.incrementAndGet();
+            return Publication.FOREIGN;
+        }
+        if (!encoded.publish(notificationExecutor)) {
+            unchangedResolvers.incrementAndGet();
+            return Publication.UNCHANGED;
+        }
+        return Publication.PUBLISHED;
+    }
 
-            return isPassed.get() ? 1 : 0;
-        }).reduce(0, Integer::sum);
+    int getSkippedForeignResolvers() {
+        return skippedForeignResolvers.get();
+    }
+
+    /**
+     * Malformed policies are not shared, the resolver's own task fails on them and reports it as usual
+     */
+    static String policiesFingerprint(final ResolverConfiguration resolverConfiguration) {
+        try {
+            return CompiledPolicies.fingerprint(resolverConfiguration.getPolicies());
+        } catch (RuntimeException e) {
+            return UNSHARED + resolverConfiguration.getResolverId();
+        }
     }
 
     Void handleException(Throwable e, AtomicBoolean holder) {
@@ -0,0 +1,159 @@
+package biz.karms.protostream.threat.processing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolvers waiting to be exported, shared by the full sweep and the listener driven generator.
+ * <p>
+ * A resolver is queued at most once, repeated change events coalesce into a single task and a resolver changed
+ * while waiting for the sweep moves to the {@link Lane#CHANGED} lane, which is always taken first. A resolver being
+ * processed is in flight and no one else takes it until it is done; if it changes meanwhile, it is queued again.
+ * <p>
+ * Client IDs of changed end user configurations wait here as well, until a generator converts them to resolver IDs.
+ *
+ * @author Michal Karm Babacek
+ */
+public class ResolverWorkQueue {
+
+    /**
+     * Lanes in the order they are taken
+     */
+    public enum Lane {
+        CHANGED, SWEEP
+    }
+
+    private final EnumMap<Lane, LinkedHashSet<Integer>> lanes = new EnumMap<>(Lane.class);
+    private final Set<Integer> clientIDs = new LinkedHashSet<>();
+    private final Set<Integer> inFlight = new HashSet<>();
+
+    public ResolverWorkQueue() {
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LinkedHashSet<>());
+        }
+    }
+
+    /**
+     * @return true if a new task has been queued, false if it has coalesced with a queued one
+     */
+    public synchronized boolean offer(final Integer resolverID, final Lane lane) {
+        for (Lane queued : Lane.values()) {
+            if (lanes.get(queued).contains(resolverID)) {
+                if (queued.compareTo(lane) <= 0) {
+                    return false;
+                }
+                lanes.get(queued).remove(resolverID);
+                lanes.get(lane).add(resolverID);
+                return false;
+            }
+        }
+        lanes.get(lane).add(resolverID);
+        return true;
+    }
+
+    /**
+     * @return number of new tasks queued
+     */
+    public synchronized int offerAll(final Collection<Integer> resolverIDs, final Lane lane) {
+        int queued = 0;
+        for (Integer resolverID : resolverIDs) {
+            if (offer(resolverID, lane)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    public synchronized void offerClient(final Integer clientID) {
+        clientIDs.add(clientID);
+    }
+
+    /**
+     * @return client IDs queued so far, the queue forgets them
+     */
+    public synchronized Set<Integer> drainClients() {
+        final Set<Integer> drained = new LinkedHashSet<>(clientIDs);
+        clientIDs.clear();
+        return drained;
+    }
+
+    /**
+     * Takes resolvers from the lanes up to the given one, higher lanes first, skipping those in flight. The taken
+     * resolvers are in flight until {@link #done(Collection)}.
+     *
+     * @param max        resolvers to take at most
+     * @param lowestLane the lowest lane to take from
+     * @return the taken resolvers, empty if there are none but those in flight
+     */
+    public synchronized List<Integer> take(final int max, final Lane lowestLane) {
+        final List<Integer> taken = new ArrayList<>();
+        for (Lane lane : Lane.values()) {
+            if (lane.compareTo(lowestLane) > 0) {
+                break;
+            }
+            for (Iterator<Integer> it = lanes.get(lane).iterator(); it.hasNext() && taken.size() < max; ) {
+                final Integer resolverID = it.next();
+                if (inFlight.add(resolverID)) {
+                    it.remove();
+                    taken.add(resolverID);
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * @return number of resolvers dropped from the lane
+     */
+    public synchronized int clear(final Lane lane) {
+        final int cleared = lanes.get(lane).size();
+        lanes.get(lane).clear();
+        return cleared;
+    }
+
+    public synchronized void done(final Collection<Integer> resolverIDs) {
+        inFlight.removeAll(resolverIDs);
+    }
+
+    /**
+     * @return true if there are resolvers of the lanes up to the given one or clients waiting
+     */
+    public synchronized boolean hasWork(final Lane lowestLane) {
+        if (!clientIDs.isEmpty()) {
+            return true;
+        }
+        for (Lane lane : Lane.values()) {
+            if (lane.compareTo(lowestLane) <= 0 && !lanes.get(lane).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return resolvers waiting in all lanes, not counting those in flight
+     */
+    public synchronized int getDepth() {
+        return lanes.values().stream().mapToInt(Set::size).sum();
+    }
+
+    public synchronized int getDepth(final Lane lane) {
+        return lanes.get(lane).size();
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResolverWorkQueue(changed=" + lanes.get(Lane.CHANGED).size() + ", sweep=" + lanes.get(Lane.SWEEP).size()
+                + ", clients=" + clientIDs.size() + ", inFlight=" + inFlight.size() + ")";
+    }
+}
@@ -0,0 +1,155 @@
+package biz.karms.protostream.threat.task;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+/**
+ * Fingerprints of the last published resolver cache files: md5, size and generation, i.e. how many times a different
+ * content of the file has been published. Kept in {@value #FILE_NAME} next to the files, so that a restart does not
+ * publish all resolvers again.
+ * <p>
+ * The index file is a journal, a line "filename md5 size generation" per change, the last line of a file wins and
+ * md5 "-" marks a file whose published content is not known. It is compacted when loaded and whenever it has grown
+ * to more than {@value #COMPACTION_FACTOR} lines per file.
+ *
+ * @author Michal Karm Babacek
+ */
+public class ExportFingerprintIndex {
+
+    private static final Logger logger = Logger.getLogger(ExportFingerprintIndex.class.getName());
+
+    static final String FILE_NAME = "resolver_cache_fingerprints.idx";
+    private static final String UNKNOWN_MD5 = "-";
+    private static final int COMPACTION_FACTOR = 2;
+
+    private final Path path;
+    private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+    // guarded by this
+    private long journalLines = 0;
+
+    public ExportFingerprintIndex(final Path directory) {
+        this.path = directory.resolve(FILE_NAME);
+        load();
+    }
+
+    /**
+     * @return true if the file of this content has been published already
+     */
+    public boolean isPublished(final String filename, final String md5, final long size) {
+        final Fingerprint fingerprint = fingerprints.get(filename);
+        return fingerprint != null && fingerprint.getSize() == size && md5.equals(fingerprint.getMd5());
+    }
+
+    /**
+     * Records the content of the file that has just been published
+     *
+     * @return generation of the file
+     */
+    public long published(final String filename, final String md5, final long size) {
+        final Fingerprint fingerprint = fingerprints.compute(filename, (name, previous) ->
+                new Fingerprint(md5, size, previous == null ? 1 : previous.getGeneration() + 1));
+        append(filename, fingerprint);
+        return fingerprint.getGeneration();
+    }
+
+    /**
+     * Forgets the content of the file, e.g. its upload failed, the next export publishes it whatever it is
+     */
+    public void invalidate(final String filename) {
+        final Fingerprint fingerprint = fingerprints.computeIfPresent(filename, (name, previous) ->
+                new Fingerprint(UNKNOWN_MD5, -1, previous.getGeneration()));
+        if (fingerprint != null) {
+            append(filename, fingerprint);
+        }
+    }
+
+    /**
+     * @return generation of the file, 0 if it has never been published
+     */
+    public long getGeneration(final String filename) {
+        final Fingerprint fingerprint = fingerprints.get(filename);
+        return fingerprint == null ? 0 : fingerprint.getGeneration();
+    }
+
+    private void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Unable to read " + path + ", all resolvers will be published.", e);
+            return;
+        }
+        for (String line : lines) {
+            final String[] columns = line.split(" ");
+            try {
+                fingerprints.put(columns[0], new Fingerprint(columns[1], Long.parseLong(columns[2]), Long.parseLong(columns[3])));
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Skipping malformed line '" + line + "' of " + path);
+            }
+        }
+        if (lines.size() > fingerprints.size()) {
+            compact();
+        } else {
+            journalLines = lines.size();
+        }
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": " + fingerprints.size() + " fingerprints of published resolver files loaded from " + path);
+    }
+
+    private synchronized void compact() {
+        final Path tmpPath = path.resolveSibling(FILE_NAME + ".tmp");
+        try {
+            try (final BufferedWriter writer = Files.newBufferedWriter(tmpPath, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Fingerprint> entry : fingerprints.entrySet()) {
+                    writer.write(line(entry.getKey(), entry.getValue()));
+                }
+            }
+            Files.move(tmpPath, path, REPLACE_EXISTING);
+            journalLines = fingerprints.size();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Unable to compact " + path, e);
+        }
+    }
+
+    private synchronized void append(final String filename, final Fingerprint fingerprint) {
+        try {
+            Files.write(path, line(filename, fingerprint).getBytes(StandardCharsets.UTF_8), CREATE, APPEND);
+            // a fingerprint computed meanwhile is in the compacted file or appended after it, appends wait for compaction
+            if (++journalLines > (long) COMPACTION_FACTOR * fingerprints.size()) {
+                compact();
+            }
+        } catch (IOException e) {
+            // the index in memory is still right, it is just lost on restart
+            logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Unable to write fingerprint of " + filename + " to " + path, e);
+        }
+    }
+
+    private static String line(final String filename, final Fingerprint fingerprint) {
+        return filename + ' ' + fingerprint.getMd5() + ' ' + fingerprint.getSize() + ' ' + fingerprint.getGeneration() + '\n';
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class Fingerprint {
+        private final String md5;
+        private final long size;
+        private final long generation;
+    }
+}
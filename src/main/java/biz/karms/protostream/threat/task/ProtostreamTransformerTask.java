@@ -1,16 +1,23 @@
 package biz.karms.protostream.threat.task;
 
+import biz.karms.protostream.threat.domain.Flag;
+import biz.karms.protostream.threat.domain.ResolverRecord;
+import biz.karms.protostream.threat.domain.Threat;
 import biz.karms.protostream.threat.exception.ResolverProcessingException;
 import biz.karms.protostream.threat.marshaller.*;
 import biz.karms.sinkit.resolver.ResolverConfiguration;
 import org.infinispan.protostream.FileDescriptorSource;
 import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.RawProtoStreamWriter;
 import org.infinispan.protostream.SerializationContext;
 import org.infinispan.protostream.config.Configuration;
+import org.infinispan.protostream.impl.RawProtoStreamWriterImpl;
+import org.infinispan.protostream.impl.WireFormat;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -19,6 +26,16 @@ import java.util.Objects;
 public class ProtostreamTransformerTask {
 
     private static final String PROTOBUF_DEFINITION_RESOURCE = "/sinkitprotobuf/resolver_record.proto";
+    // field numbers of sinkitprotobuf.ResolverRecord
+    private static final int CUSTOM_LISTS_FIELD = 1;
+    private static final int THREATS_FIELD = 2;
+    private static final int IP_RANGES_FIELD = 3;
+    private static final int POLICIES_FIELD = 4;
+    // threat columns of sinkitprotobuf.v2.ResolverRecord
+    private static final int V2_CRC64_FIELD = 5;
+    private static final int V2_ACCURACY_FIELD = 6;
+    private static final int V2_FLAGS_FIELD = 7;
+    private static final int V2_FLAG_BITS = 5;
     private final SerializationContext ctx;
     private final ResolverConfiguration resolverConfiguration;
 
@@ -55,32 +72,101 @@ public class ProtostreamTransformerTask {
     }
 
     /**
-     * Source:  FasterXML/jackson-databind
-     * License: http://www.apache.org/licenses/LICENSE-2.0
+     * Writes the record to the stream as it goes, the same bytes as {@link #transformToProtobuf(Object)} without
+     * holding them all. Each item of the repeated fields is encoded by its marshaller on its own and written as
+     * a length delimited field, i.e. only a single threat is ever held in encoded form.
+     *
+     * @param record record to be written
+     * @param out    stream the record is written to, not closed
+     * @throws IOException if writing to the stream fails
      */
-    public static class BBufferIStream extends InputStream {
-        private final ByteBuffer b;
+    public void writeProtobuf(final ResolverRecord record, final OutputStream out) throws IOException {
+        final RawProtoStreamWriter writer = RawProtoStreamWriterImpl.newInstance(out);
+        // the order of ResolverRecordMarshaller
+        writeRepeated(writer, CUSTOM_LISTS_FIELD, record.getCustomListRecords());
+        writeRepeated(writer, THREATS_FIELD, record.getThreats());
+        writeRepeated(writer, IP_RANGES_FIELD, record.getIpRangesRecords());
+        writeRepeated(writer, POLICIES_FIELD, record.getPolicyRecords());
+        writer.flush();
+    }
 
-        public BBufferIStream(ByteBuffer b) {
-            this.b = b;
-        }
+    /**
+     * Writes the record as sinkitprotobuf.v2.ResolverRecord of resolver_record_v2.proto, threats as packed columns of
+     * delta encoded crc64, accuracy and flags of all slots in a single varint. The other fields are the same as
+     * in {@link #writeProtobuf(ResolverRecord, OutputStream)}.
+     *
+     * @param record record to be written, threats ascending by crc64
+     * @param out    stream the record is written to, not closed
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeProtobufV2(final ResolverRecord record, final OutputStream out) throws IOException {
+        final RawProtoStreamWriter writer = RawProtoStreamWriterImpl.newInstance(out);
+        writeRepeated(writer, CUSTOM_LISTS_FIELD, record.getCustomListRecords());
+        writeRepeated(writer, IP_RANGES_FIELD, record.getIpRangesRecords());
+        writeRepeated(writer, POLICIES_FIELD, record.getPolicyRecords());
+        final List<Threat> threats = record.getThreats();
+        if (threats != null && !threats.isEmpty()) {
+            // a packed field is length delimited, each column is walked twice, to size it and to write it
+            long previous = 0;
+            int length = 0;
+            for (Threat threat : threats) {
+                length += varintSize(threat.getCrc64() - previous);
+                previous = threat.getCrc64();
+            }
+            writer.writeTag(V2_CRC64_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writer.writeRawVarint32(length);
+            previous = 0;
+            for (Threat threat : threats) {
+                writer.writeRawVarint64(threat.getCrc64() - previous);
+                previous = threat.getCrc64();
+            }
 
-        @Override
-        public int available() {
-            return b.remaining();
+            length = 0;
+            for (Threat threat : threats) {
+                // int32, a negative one takes 10 bytes as in protobuf
+                length += varintSize(threat.getAccuracy());
+            }
+            writer.writeTag(V2_ACCURACY_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writer.writeRawVarint32(length);
+            for (Threat threat : threats) {
+                writer.writeRawVarint64(threat.getAccuracy());
+            }
+
+            length = 0;
+            for (Threat threat : threats) {
+                length += varintSize(flags(threat));
+            }
+            writer.writeTag(V2_FLAGS_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writer.writeRawVarint32(length);
+            for (Threat threat : threats) {
+                writer.writeRawVarint64(flags(threat));
+            }
         }
+        writer.flush();
+    }
 
-        @Override
-        public int read() throws IOException {
-            return b.hasRemaining() ? (b.get() & 0xFF) : -1;
+    static long flags(final Threat threat) {
+        long flags = 0;
+        for (int slot = 0; slot < Threat.SLOTS; slot++) {
+            final Flag flag = threat.getSlot(slot);
+            if (flag != null) {
+                flags |= (long) flag.getValue() << (slot * V2_FLAG_BITS);
+            }
         }
+        return flags;
+    }
 
-        @Override
-        public int read(byte[] bytes, int off, int len) throws IOException {
-            if (!b.hasRemaining()) return -1;
-            len = Math.min(len, b.remaining());
-            b.get(bytes, off, len);
-            return len;
+    static int varintSize(final long value) {
+        // 7 bits per byte, at least one byte
+        return value == 0 ? 1 : (Long.SIZE - Long.numberOfLeadingZeros(value) + 6) / 7;
+    }
+
+    private void writeRepeated(final RawProtoStreamWriter writer, final int field, final List<?> items) throws IOException {
+        if (items == null) {
+            return;
+        }
+        for (Object item : items) {
+            writer.writeBytes(field, ProtobufUtil.toByteArray(ctx, item));
         }
     }
 }
@@ -0,0 +1,65 @@
+package biz.karms.protostream.threat.task;
+
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.protostream.threat.domain.ThreatMap;
+import biz.karms.protostream.threat.exception.ResolverProcessingException;
+import biz.karms.protostream.threat.policy.CompiledPolicies;
+import biz.karms.protostream.threat.processing.ProcessingContext;
+import biz.karms.sinkit.resolver.ResolverConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Task creating threats of several resolvers in a single pass over the IoCs, the counterpart of
+ * {@link ResolverThreatTask#processData()} for a whole batch of resolvers. Each IoC is read once and evaluated against
+ * the policies of every resolver, so the IoC collection is walked once per batch instead of once per resolver.
+ * <p>
+ * Threats of all the resolvers are held at once, the batch size bounds the memory. The scan is chunked over
+ * {@link biz.karms.protostream.threat.processing.ResolverComputePool} the same way.
+ */
+public class ResolverBatchThreatTask {
+
+    private static final Logger logger = Logger.getLogger(ResolverBatchThreatTask.class.getName());
+
+    private final List<ResolverConfiguration> resolverConfigurations;
+    private final ProcessingContext context;
+
+    public ResolverBatchThreatTask(List<ResolverConfiguration> resolverConfigurations, ProcessingContext context) {
+        this.resolverConfigurations = Objects.requireNonNull(resolverConfigurations, "resolvers configurations cannot be null");
+        this.context = Objects.requireNonNull(context, "processing context cannot be null");
+    }
+
+    /**
+     * @return threats of each resolver in the order of configurations (entry = key is crc64, value is Threat)
+     * @throws ResolverProcessingException with the configuration whose policies cannot be compiled
+     * @throws IllegalStateException         if the shared pass fails, it cannot be told which of the resolvers caused it
+     */
+    public List<ThreatMap> processData() {
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering processData for " + resolverConfigurations.size() + " resolvers...");
+        final long start = System.currentTimeMillis();
+        final List<CompiledPolicies> policies = new ArrayList<>(resolverConfigurations.size());
+        for (ResolverConfiguration resolverConfiguration : resolverConfigurations) {
+            try {
+                policies.add(CompiledPolicies.compile(resolverConfiguration.getPolicies()));
+            } catch (RuntimeException e) {
+                throw new ResolverProcessingException(e, resolverConfiguration, ResolverProcessingTask.THREAT_TASK);
+            }
+        }
+        try {
+            final IoCSnapshot snapshot = context.getIoCSnapshot();
+            final List<ThreatMap> threats = !snapshot.isEmpty() || context.getBlacklistedRecords().isEmpty()
+                    ? ResolverThreatTask.processSnapshot(snapshot, policies)
+                    : ResolverThreatTask.processRecords(context.getBlacklistedRecords(), policies);
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": processData for " + resolverConfigurations.size() + " resolvers finished in " + (System.currentTimeMillis() - start) + " ms.");
+            return threats;
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Single pass over IoCs has failed for resolvers "
+                    + resolverConfigurations.stream().map(ResolverConfiguration::getResolverId).collect(Collectors.toList()), e);
+        }
+    }
+}
@@ -9,12 +9,36 @@ import java.util.concurrent.ThreadPoolExecutor;
  */
 public interface ResolverCacheExportTask<T> {
 
+    /**
+     * Encode the given data, nothing is published until {@link Encoded#publish(ThreadPoolExecutor)}
+     *
+     * @param resolverConfiguration resolver represented by its configuration to be exported
+     * @param data                  the data to be exported, not needed once encoded
+     * @return the encoded data
+     */
+    Encoded encode(ResolverConfiguration resolverConfiguration, final T data);
+
     /**
      * Export the given data
      *
      * @param resolverConfiguration resolver represented by its configuration to be exported
      * @param data                  the data to be exported
+     * @return false if the data is the same as the last exported, so nothing has been published
      */
-    void export(ResolverConfiguration resolverConfiguration, final T data, ThreadPoolExecutor notificationExecutor);
+    default boolean export(ResolverConfiguration resolverConfiguration, final T data, ThreadPoolExecutor notificationExecutor) {
+        return encode(resolverConfiguration, data).publish(notificationExecutor);
+    }
+
+    /**
+     * Encoded data of a resolver waiting to be published
+     */
+    @FunctionalInterface
+    interface Encoded {
+
+        /**
+         * @return false if the data is the same as the last exported, so nothing has been published
+         */
+        boolean publish(ThreadPoolExecutor notificationExecutor);
+    }
 
 }
@@ -1,28 +1,27 @@
 package biz.karms.protostream.threat.task;
 
 import biz.karms.crc64java.CRC64;
+import biz.karms.protostream.ioc.IoCCursor;
+import biz.karms.protostream.ioc.IoCFeedIndex;
+import biz.karms.protostream.ioc.IoCSnapshot;
 import biz.karms.protostream.threat.domain.Flag;
 import biz.karms.protostream.threat.domain.Threat;
+import biz.karms.protostream.threat.domain.ThreatMap;
 import biz.karms.protostream.threat.exception.ResolverProcessingException;
+import biz.karms.protostream.threat.policy.CompiledPolicies;
+import biz.karms.protostream.threat.policy.PolicyMatcher;
 import biz.karms.protostream.threat.processing.ProcessingContext;
+import biz.karms.protostream.threat.processing.ResolverComputePool;
 import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
-import biz.karms.sinkit.ioc.IoCClassificationType;
 import biz.karms.sinkit.resolver.Policy;
 import biz.karms.sinkit.resolver.PolicyCustomList;
 import biz.karms.sinkit.resolver.ResolverConfiguration;
-import biz.karms.sinkit.resolver.StrategyType;
 
-import java.math.BigInteger;
 import java.util.*;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ForkJoinPool;
-import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 /**
  * Task responsible for creating threats list from {@link BlacklistedRecord}s which match to resolver configuration of the resolver which is being processed
@@ -43,43 +42,134 @@ public class ResolverThreatTask {
     /**
      * Method creates Threats from {@link BlacklistedRecord}s which match to ResolverConfiguration
      *
-     * @return map keeps threats entities (entry = key is BlacklistedRecord.blackListedDomainOrIP, value is Threat)
+     * @return map keeps threats entities (entry = key is crc64, value is Threat)
      */
-    public Map<BigInteger, Threat> processData() {
+    public ThreatMap processData() {
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering processData...");
         final long start = System.currentTimeMillis();
-        // Given the millions of records, parallelStream is faster, but it has higher memory footprint. .stream() is used intentionally.
-        final Callable<Map<BigInteger, Threat>> processing = () -> context.getBlacklistedRecords().stream()
-                .map(record -> {
-                    logger.log(Level.FINEST, "Starting processing of blacklisted record '{}' for resolver '#{}'",
-                            new Object[]{record, this.resolverConfiguration.getResolverId()});
-
-                    final Threat threat = new Threat(record.getCrc64Hash());
-                    threat.setAccuracy(computeMaxAccuracy(record));
+        final IoCSnapshot snapshot = context.getIoCSnapshot();
+        try {
+            final CompiledPolicies policies = CompiledPolicies.compile(this.resolverConfiguration.getPolicies());
+            // Snapshot rows are positional, so the scan is chunked over the compute pool whatever the store is
+            final ThreatMap threats = !snapshot.isEmpty() || context.getBlacklistedRecords().isEmpty()
+                    ? processSnapshot(snapshot, policies)
+                    : processRecords(context.getBlacklistedRecords(), Collections.singletonList(policies)).get(0);
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": processData finished in " + (System.currentTimeMillis() - start) + " ms.");
+            return threats;
+        } catch (Exception e) {
+            throw new ResolverProcessingException(e, resolverConfiguration, ResolverProcessingTask.THREAT_TASK);
+        }
+    }
 
-                    for (int policyIdx = 0; policyIdx < this.resolverConfiguration.getPolicies().size(); policyIdx++) {
-                        final Policy currentPolicy = this.resolverConfiguration.getPolicies().get(policyIdx);
-                        addFlagToThreatSlot(threat, record, policyIdx, currentPolicy);
-                    }
+    /**
+     * Creates Threats from a snapshot, in chunks run on {@link ResolverComputePool}.
+     * A Threat is only created for a matching IoC. If no IoC without the policies' feeds can match and the snapshot
+     * has a feed index, just the IoCs of those feeds are visited.
+     *
+     * @param snapshot IoCs
+     * @param policies compiled policies of the resolver
+     * @return map keeps threats entities (entry = key is crc64, value is Threat)
+     */
+    ThreatMap processSnapshot(final IoCSnapshot snapshot, final CompiledPolicies policies) {
+        return processSnapshot(snapshot, Collections.singletonList(policies)).get(0);
+    }
 
-                    logger.log(Level.FINEST, "Processing of blacklisted record '{}' for resolver '#{}' finished",
-                            new Object[]{record, this.resolverConfiguration.getResolverId()});
+    /**
+     * Creates Threats of several resolvers in a single pass over the snapshot, see {@link #processSnapshot(IoCSnapshot, CompiledPolicies)}.
+     * The feed index is used only if all of the resolvers are feed selective.
+     *
+     * @param snapshot IoCs
+     * @param policies compiled policies of each resolver
+     * @return threats of each resolver, in the order of policies
+     */
+    static List<ThreatMap> processSnapshot(final IoCSnapshot snapshot, final List<CompiledPolicies> policies) {
+        final Set<String> feeds = new HashSet<>();
+        boolean feedSelective = true;
+        for (CompiledPolicies resolverPolicies : policies) {
+            feeds.addAll(resolverPolicies.getFeeds());
+            feedSelective &= resolverPolicies.isFeedSelective();
+        }
+        final IoCFeedIndex feedIndex = snapshot.getFeedIndex();
+        // null for all rows
+        final int[] rows = feedIndex != null && feedSelective ? feedIndex.positions(feeds) : null;
+        final List<List<ThreatMap>> chunks = ResolverComputePool.getPool().invokeChunked(
+                rows == null ? snapshot.size() : rows.length,
+                Threat.HEAP_BYTES * policies.size(),
+                (from, to) -> processCursor(rows == null ? snapshot.cursor(from, to) : snapshot.cursor(Arrays.copyOfRange(rows, from, to)),
+                        snapshot, policies));
+        // chunks are in the order of rows, a later row of the same crc64 wins as in a single pass
+        final List<ThreatMap> threats = chunks.get(0);
+        for (int chunk = 1; chunk < chunks.size(); chunk++) {
+            for (int i = 0; i < threats.size(); i++) {
+                threats.get(i).putAll(chunks.get(chunk).get(i));
+            }
+            chunks.set(chunk, null);
+        }
+        return threats;
+    }
 
-                    return threat;
-                })
-                .filter(Threat::isSet)
-                .collect(Collectors.toMap(Threat::getCrc64, Function.identity()));
+    /**
+     * Creates Threats of several resolvers from records given without a snapshot, walked by a single thread.
+     *
+     * @param records  IoCs
+     * @param policies compiled policies of each resolver
+     * @return threats of each resolver, in the order of policies
+     */
+    static List<ThreatMap> processRecords(final Collection<BlacklistedRecord> records, final List<CompiledPolicies> policies) {
+        final PolicyMatcher[] matchers = new PolicyMatcher[policies.size()];
+        final Flag[][] slots = new Flag[policies.size()][];
+        final List<ThreatMap> threats = new ArrayList<>(policies.size());
+        for (int i = 0; i < matchers.length; i++) {
+            matchers[i] = policies.get(i).matcher();
+            slots[i] = new Flag[policies.get(i).size()];
+            threats.add(new ThreatMap());
+        }
+        for (BlacklistedRecord record : records) {
+            final long crc64 = record.getCrc64Hash().longValue();
+            final int accuracy = IoCSnapshot.computeMaxAccuracy(record);
+            for (int i = 0; i < matchers.length; i++) {
+                if (matchers[i].match(record, accuracy, slots[i])) {
+                    putThreat(threats.get(i), crc64, accuracy, slots[i]);
+                }
+            }
+        }
+        return threats;
+    }
 
-        final int threadsCount = Integer.parseInt(System.getProperty("D2P_RESOLVER_THREAT_TASK_RECORD_BATCH_SIZE_S", "1"));
+    private static List<ThreatMap> processCursor(final IoCCursor cursor, final IoCSnapshot snapshot, final List<CompiledPolicies> policies) {
+        // matchers are not thread safe, each chunk has its own
+        final PolicyMatcher[] matchers = new PolicyMatcher[policies.size()];
+        final Flag[][] slots = new Flag[policies.size()][];
+        final List<ThreatMap> threats = new ArrayList<>(policies.size());
+        for (int i = 0; i < matchers.length; i++) {
+            matchers[i] = policies.get(i).matcher(snapshot.getFeeds(), snapshot.getTypes());
+            slots[i] = new Flag[policies.get(i).size()];
+            threats.add(new ThreatMap());
+        }
+        while (cursor.next()) {
+            final long crc64 = cursor.getCrc64();
+            for (int i = 0; i < matchers.length; i++) {
+                if (matchers[i].match(cursor, slots[i])) {
+                    putThreat(threats.get(i), crc64, cursor.getMaxAccuracy(), slots[i]);
+                }
+            }
+        }
+        return threats;
+    }
 
-        final ForkJoinPool threadPool = new ForkJoinPool(threadsCount);
-        try {
-            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": processData finished in " + (System.currentTimeMillis() - start) + " ms.");
-            return threadPool.submit(processing).get();
-        } catch (Exception e) {
-            throw new ResolverProcessingException(e, resolverConfiguration, ResolverProcessingTask.THREAT_TASK);
-        } finally {
-            threadPool.shutdown();
+    /**
+     * Puts a Threat of a matched IoC unless no slot is set, a match of policies beyond {@link Threat#SLOTS} alone sets none
+     */
+    private static void putThreat(final ThreatMap threats, final long crc64, final int accuracy, final Flag[] slots) {
+        final Threat threat = new Threat(crc64);
+        threat.setAccuracy(accuracy);
+        for (int policyIdx = 0; policyIdx < slots.length; policyIdx++) {
+            if (slots[policyIdx] != null) {
+                threat.setSlot(policyIdx, slots[policyIdx]);
+            }
+        }
+        if (threat.isSet()) {
+            threats.put(crc64, threat);
         }
     }
 
@@ -89,7 +179,7 @@ public class ResolverThreatTask {
      * @param resolverThreatData threats related to resolver which is being processed by this task
      * @return final list of threats
      */
-    public List<Threat> postProcessData(Map<BigInteger, Threat> resolverThreatData) {
+    public List<Threat> postProcessData(ThreatMap resolverThreatData) {
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering postProcessData...");
         final long start = System.currentTimeMillis();
         for (int policyIdx = 0; policyIdx < this.resolverConfiguration.getPolicies().size(); policyIdx++) {
@@ -117,144 +207,37 @@ public class ResolverThreatTask {
             );
         }
 
-        // TODO: This is a duplicate work with UserCustomListTask: How do we leverage the work and NOT break parallelism?
-        final Set<String> domainFromCustomLists = new HashSet<>();
-        context.getEndUserRecords().stream()
-                .filter(conf -> this.resolverConfiguration.getClientId().equals(conf.getClientId()))
-                .forEach(c -> {
-                    domainFromCustomLists.addAll(c.getBlacklist());
-                    // We don't want to hit each smtp.seznam.cz etc. on the first lookup. White custom lists will be used later
-                    // if the domain is already considered for blocking.
-                    // domainFromCustomLists.addAll(c.getWhitelist());
-                });
-        domainFromCustomLists.forEach(domain -> {
-            final BigInteger crc64 = getCrc64(domain);
-
-            resolverThreatData.computeIfAbsent(crc64, v -> {
+        // We don't want to hit each smtp.seznam.cz etc. on the first lookup. White custom lists will be used later
+        // if the domain is already considered for blocking.
+        final ProcessingContext.CustomListDomains domainsFromCustomLists = context.getBlacklistedDomains(this.resolverConfiguration.getClientId());
+        for (int i = 0; i < domainsFromCustomLists.size(); i++) {
+            final String domain = domainsFromCustomLists.getDomain(i);
+            resolverThreatData.computeIfAbsent(domainsFromCustomLists.getCrc64(i), crc64 -> {
                 final Threat threat = new Threat(crc64);
                 threat.setAccuracy(0);
                 threat.setTmpDomain(domain);
-                IntStream.range(0, 12).forEach(i -> threat.setSlot(i, Flag.none));
+                IntStream.range(0, Threat.SLOTS).forEach(slot -> threat.setSlot(slot, Flag.none));
                 return threat;
             });
-        });
+        }
 
-        // Sort the final output
-        final List<Threat> values = new ArrayList<>(resolverThreatData.values().stream().sorted(Comparator.comparing(Threat::getCrc64)).collect(Collectors.toList()));
+        // Sort the final output, threats of a crc64 ordered snapshot are in order already, custom list ones are merged in
+        final List<Threat> values = resolverThreatData.sortedValues();
 
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": postProcessData finished in " + (System.currentTimeMillis() - start) + " ms.");
         return values;
     }
 
-    /**
-     * Method which add Flag into threat's slot
-     *
-     * @param threat  the threat to be updated
-     * @param slotIdx slot idx to be updated
-     * @param policy  policy holds configuration
-     */
-    void addFlagToThreatSlot(Threat threat, BlacklistedRecord record, int slotIdx, Policy policy) {
-        final StrategyType strategyType = policy.getStrategy().getStrategyType();
-        // if strategy is accuracy, then must match ioc type and accuracy feed AND must be in accuracy range (bigger or equal to strategy audit threshold
-        if (strategyType != StrategyType.accuracy || shouldBeSetAccuracySlot(threat, record, policy)) {
-            threat.setSlot(slotIdx, Flag.valueOf(strategyType.name()));
-        }
-
-        // if record's feed match to blacklist - update slot
-        if (matchBlacklistedRecordByBlacklistFeed(record, policy)) {
-            threat.setSlot(slotIdx, Flag.blacklist);
-        }
-    }
-
-    /**
-     * Method checks if the threat(accuracy)'s slot should be updated or not
-     *
-     * @param threat
-     * @param record
-     * @param policy
-     * @return true if threat(accuracy)'s should be upd
-     */
-    boolean shouldBeSetAccuracySlot(Threat threat, BlacklistedRecord record, Policy policy) {
-        return matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy) && isThreatInAccuraccyRange(threat, policy);
-    }
-
-
-    /**
-     * Methods checks if the given record matches according to the type and accuracy feed rules
-     *
-     * @param record record to be tested
-     * @param policy policy from which is obtained configuration
-     * @return true / false
-     */
-    boolean matchBlacklistedRecordByTypeAndAccuracyFeed(BlacklistedRecord record, Policy policy) {
-        return record.getSources().entrySet().stream()
-                // check if blacklistedRecord.source.type is present in the policy.strategy.params.types
-                .filter(sourceEntry -> {
-                    final Set<IoCClassificationType> ioCClassificationTypes = policy.getStrategy().getStrategyParams().getTypes();
-                    return ioCClassificationTypes == null || ioCClassificationTypes.isEmpty() || ioCClassificationTypes.stream()
-                            .anyMatch(iocType -> iocType.getLabel().equals(sourceEntry.getValue().getLeft()));
-                })
-                // if yes, check if feed is present in the policy.accuracy_feeds
-                .anyMatch(sourceEntry -> {
-                    final Set<String> feeds = policy.getAccuracyFeeds();
-                    return feeds == null || feeds.isEmpty() || feeds.stream().anyMatch(feed -> feed.equals(sourceEntry.getKey()));
-                });
-    }
-
-    /**
-     * Method checks if the given threat's accuracy value is at least bigger or equal to strategy audit
-     *
-     * @param threat threat to be checked
-     * @param policy policy from which is obtained configuration
-     * @return true / false
-     */
-    boolean isThreatInAccuraccyRange(Threat threat, Policy policy) {
-        return threat.getAccuracy() >= policy.getStrategy().getStrategyParams().getAudit();
-    }
-
-    /**
-     * Method checks if the given record matches to the blacklists rules
-     *
-     * @param record record to be tested
-     * @param policy policy from which is obtained configuration
-     * @return true / false
-     */
-    boolean matchBlacklistedRecordByBlacklistFeed(BlacklistedRecord record, Policy policy) {
-        return record.getSources().entrySet().stream()
-                // check if feed is present in the policy.blacklisted_feeds
-                .anyMatch(sourceEntry -> {
-                    final Set<String> feeds = policy.getBlacklistedFeeds();
-                    return Optional.ofNullable(feeds).map(Collection::stream).orElse(Stream.empty())
-                            .anyMatch(feed -> feed.equals(sourceEntry.getKey()));
-                });
-    }
-
-
-    /**
-     * Gets max sum of accuracy's items
-     *
-     * @return max sum
-     */
-    Integer computeMaxAccuracy(BlacklistedRecord record) {
-        final HashMap<String, HashMap<String, Integer>> accuracyConf = record.getAccuracy();
-        if (accuracyConf == null || accuracyConf.isEmpty())
-            return 0;
-
-        return record.getAccuracy().values().stream()
-                .map(entry -> entry.values().stream().reduce(0, Integer::sum))
-                .reduce(Math::max).orElse(0);
-    }
-
-    void handleCustomLists(final Set<String> customLists, final Flag flag, final int slotIdx, final Supplier<Map<BigInteger, Threat>> threatsSupplier) {
+    void handleCustomLists(final Set<String> customLists, final Flag flag, final int slotIdx, final Supplier<ThreatMap> threatsSupplier) {
         Optional.of(customLists).ifPresent(data -> data.forEach(domain -> {
-            final BigInteger crc64 = getCrc64(domain);
+            final long crc64 = getCrc64(domain);
             final Threat threat = threatsSupplier.get().computeIfAbsent(crc64, Threat::new);
             threat.setTmpDomain(domain);
             threat.setSlot(slotIdx, flag);
         }));
     }
 
-    BigInteger getCrc64(String domain) {
-        return CRC64.getInstance().crc64BigInteger(domain.getBytes());
+    long getCrc64(String domain) {
+        return CRC64.getInstance().crc64Long(domain.getBytes());
     }
 }
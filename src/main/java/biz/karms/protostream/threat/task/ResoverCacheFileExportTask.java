@@ -1,26 +1,38 @@
 package biz.karms.protostream.threat.task;
 
 import biz.karms.Dump2Proto;
+import biz.karms.protostream.threat.domain.ResolverRecord;
 import biz.karms.protostream.threat.exception.ResolverProcessingException;
 import biz.karms.sinkit.resolver.ResolverConfiguration;
 import io.minio.MinioClient;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import io.minio.errors.InsufficientDataException;
 import io.minio.errors.InvalidEndpointException;
 import io.minio.errors.InvalidPortException;
 import io.minio.errors.MinioException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.DigestOutputStream;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.logging.Level;
@@ -31,20 +43,49 @@ import static java.lang.String.format;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
 /**
- * Export task which export the given bytes into the file and creates md5 sum file as well
+ * Export task which writes the given record as protobuf into the file and creates md5 sum file as well
+ * <p>
+ * D2P_RESOLVER_RECORD_FORMAT selects the format: v1 of resolver_record.proto, v2 of resolver_record_v2.proto written
+ * to %s_resolver_cache_v2.bin, or both side by side while resolvers migrate.
+ * <p>
+ * With D2P_RESOLVER_SKIP_UNCHANGED, a file of the same content as the last published one, according to
+ * {@link ExportFingerprintIndex}, is neither swapped nor uploaded and the resolver is not notified.
  */
-public class ResoverCacheFileExportTask implements ResolverCacheExportTask<ByteBuffer> {
+public class ResoverCacheFileExportTask implements ResolverCacheExportTask<ResolverRecord> {
     private static final String fileNameTemplate = "%s_resolver_cache.bin";
+    private static final String fileNameTemplateV2 = "%s_resolver_cache_v2.bin";
     private static final long MIN_VALID_FILE_SIZE_BYTE = 2;
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+
+    public enum RecordFormat {
+        v1, v2, both
+    }
+
+    private static final RecordFormat D2P_RESOLVER_RECORD_FORMAT = RecordFormat.valueOf(System.getProperty("D2P_RESOLVER_RECORD_FORMAT", "v1"));
+
+    /**
+     * Skip files of the same content as the last published ones, no swap, no upload and no notification
+     */
+    private static final boolean D2P_RESOLVER_SKIP_UNCHANGED = Boolean.parseBoolean(System.getProperty("D2P_RESOLVER_SKIP_UNCHANGED", "True"));
 
     private static final Logger logger = Logger.getLogger(ResoverCacheFileExportTask.class.getName());
 
-    private final String pathTemplate;
+    // shared by all export tasks, full and listener driven runs write the same files
+    private static ExportFingerprintIndex sharedFingerprintIndex;
+
+    private enum Outcome {
+        UNCHANGED, WRITTEN, UPLOADED
+    }
+
+    private final String directory;
 
     private final MinioClient minioClient;
 
+    private final ExportFingerprintIndex fingerprintIndex;
+
     public ResoverCacheFileExportTask() {
-        this.pathTemplate = GENERATED_PROTOFILES_DIRECTORY + '/' + fileNameTemplate;
+        this.directory = GENERATED_PROTOFILES_DIRECTORY + '/';
+        this.fingerprintIndex = D2P_RESOLVER_SKIP_UNCHANGED ? getSharedFingerprintIndex() : null;
         MinioClient minioClientTmp = null;
         if (!StringUtils.isBlank(Dump2Proto.S3_ENDPOINT)) {
             try {
@@ -58,17 +99,135 @@ public class ResoverCacheFileExportTask implements ResolverCacheExportTask<ByteB
         this.minioClient = minioClientTmp;
     }
 
+    ResoverCacheFileExportTask(final String directory, final MinioClient minioClient, final ExportFingerprintIndex fingerprintIndex) {
+        this.directory = directory + '/';
+        this.minioClient = minioClient;
+        this.fingerprintIndex = fingerprintIndex;
+    }
+
+    private static synchronized ExportFingerprintIndex getSharedFingerprintIndex() {
+        if (sharedFingerprintIndex == null) {
+            sharedFingerprintIndex = new ExportFingerprintIndex(Paths.get(GENERATED_PROTOFILES_DIRECTORY));
+        }
+        return sharedFingerprintIndex;
+    }
+
     /**
-     * @see biz.karms.protostream.threat.task.ResolverCacheExportTask#export
+     * The record is encoded straight into the tmp file while its md5 is computed, peak memory does not depend on the
+     * size of the output. Nothing else refers to the record afterwards.
+     *
+     * @see biz.karms.protostream.threat.task.ResolverCacheExportTask#encode
      */
-    public void export(final ResolverConfiguration resolverConfiguration, final ByteBuffer data, final ThreadPoolExecutor notificationExecutor) {
-        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering export...");
+    public Encoded encode(final ResolverConfiguration resolverConfiguration, final ResolverRecord data) {
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering encode...");
         final long start = System.currentTimeMillis();
         final Integer resolverId = Objects.requireNonNull(resolverConfiguration, "resolvers configuration cannot null").getResolverId();
+        final ProtostreamTransformerTask transformer = new ProtostreamTransformerTask(resolverConfiguration);
 
-        if (minioClient != null) {
-            final String filename = format(fileNameTemplate, resolverId);
+        final List<EncodedFile> files = new ArrayList<>(2);
+        if (D2P_RESOLVER_RECORD_FORMAT != RecordFormat.v2) {
+            files.add(encodeFile(resolverConfiguration, format(fileNameTemplate, resolverId), out -> transformer.writeProtobuf(data, out), start));
+        }
+        if (D2P_RESOLVER_RECORD_FORMAT != RecordFormat.v1) {
+            files.add(encodeFile(resolverConfiguration, format(fileNameTemplateV2, resolverId), out -> transformer.writeProtobufV2(data, out), start));
+        }
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Encoding finished in " + (System.currentTimeMillis() - start) + " ms. Resolver " + resolverId + " encoded.");
+        return notificationExecutor -> publish(resolverConfiguration, files, notificationExecutor);
+    }
+
+    /**
+     * S3 upload streams the encoded tmp files. The notification is sent once all formats are uploaded and any of them
+     * has changed.
+     */
+    private boolean publish(final ResolverConfiguration resolverConfiguration, final List<EncodedFile> files, final ThreadPoolExecutor notificationExecutor) {
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering export...");
+        final long start = System.currentTimeMillis();
+        final Integer resolverId = resolverConfiguration.getResolverId();
+
+        final EnumSet<Outcome> outcomes = EnumSet.noneOf(Outcome.class);
+        for (EncodedFile file : files) {
+            outcomes.add(publishFile(resolverConfiguration, file));
+        }
+        if (outcomes.equals(EnumSet.of(Outcome.UNCHANGED))) {
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Export finished in " + (System.currentTimeMillis() - start) + " ms. Resolver " + resolverId + " unchanged.");
+            return false;
+        }
+
+        if (minioClient != null && !outcomes.contains(Outcome.WRITTEN) && D2P_USE_NOTIFICATION_ENDPOINT) {
+            notificationExecutor.execute(() -> {
+                final String url = String.format(Dump2Proto.D2P_NOTIFICATION_ENDPOINT_TEMPLATE, resolverId);
+                try {
+                    final HttpURLConnection myURLConnection = (HttpURLConnection) (new URL(url).openConnection());
+                    myURLConnection.setRequestMethod(Dump2Proto.D2P_NOTIFICATION_ENDPOINT_METHOD);
+                    myURLConnection.setConnectTimeout(Dump2Proto.D2P_NOTIFICATION_ENDPOINT_TIMEOUT_MS);
+                    int responseCode = myURLConnection.getResponseCode();
+                    logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": HTTP " + responseCode + " from endpoint " + url);
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Sending notification to endpoint " + url + " failed.", e);
+                }
+            });
+        }
+        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Export finished in " + (System.currentTimeMillis() - start) + " ms. Resolver " + resolverId + " written.");
+        return true;
+    }
+
+    /**
+     * Writes the tmp file of the given name
+     */
+    private EncodedFile encodeFile(final ResolverConfiguration resolverConfiguration, final String filename, final Encoder encoder, final long start) {
+        final String tmpPath = directory + filename + ".tmp";
+
+        // create tmp file, the md5 hash is computed on the way
+        final MessageDigest md5 = DigestUtils.getMd5Digest();
+        try {
+            // options append, a leftover of a failed run must not be appended to
+            Files.deleteIfExists(Paths.get(tmpPath));
+            try (final OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(Files.newByteChannel(Paths.get(tmpPath), options, attr)), WRITE_BUFFER_BYTES), md5)) {
+                encoder.encode(out);
+            }
+        } catch (IOException e) {
+            throw new ResolverProcessingException(format("The following exception occurred when the file '%s' was generated", tmpPath), e, resolverConfiguration,
+                    ResolverProcessingTask.EXPORTING);
+        }
+        final long size = Paths.get(tmpPath).toFile().length();
+        if (size <= MIN_VALID_FILE_SIZE_BYTE) {
+            throw new ResolverProcessingException(format("Export failed in %d ms, the file %s is smaller or equal to %d bytes and that is certainly invalid.",
+                    (System.currentTimeMillis() - start), tmpPath, MIN_VALID_FILE_SIZE_BYTE), resolverConfiguration, ResolverProcessingTask.EXPORTING);
+        }
+        return new EncodedFile(filename, Hex.encodeHexString(md5.digest()), size);
+    }
+
+    /**
+     * Swaps the tmp files and uploads the file unless its content has been published already
+     *
+     * @return UNCHANGED if the content has been published already, UPLOADED if the file has been uploaded to S3,
+     * WRITTEN otherwise
+     */
+    private Outcome publishFile(final ResolverConfiguration resolverConfiguration, final EncodedFile file) {
+        final String filename = file.getFilename();
+        final String md5Hex = file.getMd5Hex();
+        final long size = file.getSize();
+        final String path = directory + filename;
+        final String md5Path = path + ".md5";
+        final String tmpPath = path + ".tmp";
+        final String tmpMd5Path = md5Path + ".tmp";
+
+        // the local file is checked as well, it may have been removed since
+        if (fingerprintIndex != null && fingerprintIndex.isPublished(filename, md5Hex, size)
+                && (Dump2Proto.USE_S3_ONLY || Paths.get(path).toFile().length() == size)) {
             try {
+                Files.deleteIfExists(Paths.get(tmpPath));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Unable to delete " + tmpPath, e);
+            }
+            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": File " + filename + " unchanged, generation " + fingerprintIndex.getGeneration(filename) + " kept.");
+            return Outcome.UNCHANGED;
+        }
+
+        boolean uploaded = false;
+        if (minioClient != null) {
+            try (final InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(tmpPath)), WRITE_BUFFER_BYTES)) {
                 boolean isExist = minioClient.bucketExists(Dump2Proto.S3_BUCKET_NAME);
                 if (isExist) {
                     logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Bucket " + Dump2Proto.S3_BUCKET_NAME + " already exist. Using it.");
@@ -77,24 +236,10 @@ public class ResoverCacheFileExportTask implements ResolverCacheExportTask<ByteB
                     minioClient.makeBucket(Dump2Proto.S3_BUCKET_NAME, Dump2Proto.S3_REGION);
                 }
                 logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": S3 upload of file " + filename + " to bucket " + Dump2Proto.S3_BUCKET_NAME + " started.");
-                minioClient.putObject(Dump2Proto.S3_BUCKET_NAME, filename, new ProtostreamTransformerTask.BBufferIStream(data), "application/octet-stream");
+                // multipart upload of parts read from the file
+                minioClient.putObject(Dump2Proto.S3_BUCKET_NAME, filename, in, size, "application/octet-stream");
                 logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": S3 upload of file " + filename + " to bucket " + Dump2Proto.S3_BUCKET_NAME + " finished.");
-
-                if (D2P_USE_NOTIFICATION_ENDPOINT) {
-                    notificationExecutor.execute(() -> {
-                        final String url = String.format(Dump2Proto.D2P_NOTIFICATION_ENDPOINT_TEMPLATE, resolverId);
-                        try {
-                            final HttpURLConnection myURLConnection = (HttpURLConnection) (new URL(url).openConnection());
-                            myURLConnection.setRequestMethod(Dump2Proto.D2P_NOTIFICATION_ENDPOINT_METHOD);
-                            myURLConnection.setConnectTimeout(Dump2Proto.D2P_NOTIFICATION_ENDPOINT_TIMEOUT_MS);
-                            int responseCode = myURLConnection.getResponseCode();
-                            logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": HTTP " + responseCode + " from endpoint " + url);
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE, "Sending notification to endpoint " + url + " failed.", e);
-                        }
-                    });
-                }
-
+                uploaded = true;
             } catch (InvalidKeyException e) {
                 logger.log(Level.SEVERE, "Check S3 credentials. Upload failed for file: " + filename, e);
             } catch (InsufficientDataException e) {
@@ -108,26 +253,16 @@ public class ResoverCacheFileExportTask implements ResolverCacheExportTask<ByteB
             }
         }
 
-        if (!Dump2Proto.USE_S3_ONLY) {
-
-            data.rewind();
-
-            final String path = format(pathTemplate, resolverId);
-            final String md5Path = path + ".md5";
-            final String tmpPath = path + ".tmp";
-            final String tmpMd5Path = md5Path + ".tmp";
-
-            // create tmp file
-            try (final SeekableByteChannel byteChannel = Files.newByteChannel(Paths.get(tmpPath), options, attr)) {
-                byteChannel.write(data);
+        if (Dump2Proto.USE_S3_ONLY) {
+            try {
+                Files.deleteIfExists(Paths.get(tmpPath));
             } catch (IOException e) {
-                throw new ResolverProcessingException(format("The following exception occurred when the file '%s' was generated", tmpPath), resolverConfiguration,
-                        ResolverProcessingTask.EXPORTING);
+                logger.log(Level.WARNING, "Thread " + Thread.currentThread().getName() + ": Unable to delete " + tmpPath, e);
             }
-
+        } else {
             // create md5 hash file
             try {
-                Files.write(Paths.get(tmpMd5Path), DigestUtils.md5Hex(data.array()).getBytes());
+                Files.write(Paths.get(tmpMd5Path), md5Hex.getBytes());
             } catch (IOException e) {
                 throw new ResolverProcessingException(format("The following exception occurred when the md5 sum file '%s' was generated", tmpMd5Path), resolverConfiguration,
                         ResolverProcessingTask.EXPORTING);
@@ -135,18 +270,34 @@ public class ResoverCacheFileExportTask implements ResolverCacheExportTask<ByteB
 
             // if files are prepared - just switch them to 'latest'
             try {
-                if (Paths.get(tmpPath).toFile().length() > MIN_VALID_FILE_SIZE_BYTE) {
-                    Files.move(Paths.get(tmpMd5Path), Paths.get(md5Path), REPLACE_EXISTING);
-                    Files.move(Paths.get(tmpPath), Paths.get(path), REPLACE_EXISTING);
-                } else {
-                    throw new ResolverProcessingException(format("Export failed in %d ms, the file %s is smaller or equal to %d bytes and that is certainly invalid.",
-                            (System.currentTimeMillis() - start), tmpPath, MIN_VALID_FILE_SIZE_BYTE), resolverConfiguration, ResolverProcessingTask.EXPORTING);
-                }
+                Files.move(Paths.get(tmpMd5Path), Paths.get(md5Path), REPLACE_EXISTING);
+                Files.move(Paths.get(tmpPath), Paths.get(path), REPLACE_EXISTING);
             } catch (IOException e) {
                 throw new ResolverProcessingException(format("The following exception occurred when the tmp files '%s'/'%s' were renamed to '%s'/'%s'", tmpPath, tmpMd5Path, path, md5Path), resolverConfiguration,
                         ResolverProcessingTask.EXPORTING);
             }
         }
-        logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Export finished in " + (System.currentTimeMillis() - start) + " ms. Resolver " + resolverId + " written.");
+
+        if (fingerprintIndex != null) {
+            if (minioClient != null && !uploaded) {
+                fingerprintIndex.invalidate(filename);
+            } else {
+                fingerprintIndex.published(filename, md5Hex, size);
+            }
+        }
+        return uploaded ? Outcome.UPLOADED : Outcome.WRITTEN;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class EncodedFile {
+        private final String filename;
+        private final String md5Hex;
+        private final long size;
+    }
+
+    @FunctionalInterface
+    private interface Encoder {
+        void encode(OutputStream out) throws IOException;
     }
 }
@@ -34,8 +34,7 @@ public class UserCustomListTask {
     public List<CustomListRecord> processData() {
         logger.log(Level.INFO, "Thread " + Thread.currentThread().getName() + ": Entering export...");
         final long start = System.currentTimeMillis();
-        final List<CustomListRecord> result = context.getEndUserRecords().stream()
-                .filter(conf -> this.resolverConfiguration.getClientId().equals(conf.getClientId()))
+        final List<CustomListRecord> result = context.getEndUserRecords(this.resolverConfiguration.getClientId()).stream()
                 .map(endUserConfiguration -> endUserConfiguration.getIdentities().stream().map(identity -> {
                     final CustomListRecord record = new CustomListRecord();
                     record.setId(endUserConfiguration.getId());
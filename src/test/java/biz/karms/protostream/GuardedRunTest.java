@@ -0,0 +1,87 @@
+package biz.karms.protostream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link GuardedRun}, time is driven by the test, a slot is 10 ns
+ */
+public class GuardedRunTest {
+
+    private static final long PERIOD = 10;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<Long> started = new ArrayList<>();
+
+    /**
+     * The first run takes 25 ns, the following ones 1 ns, the executor runs slots 1 and 2 right after the first one
+     */
+    private GuardedRun overrunning(final GuardedRun.OverrunPolicy policy) {
+        final GuardedRun guardedRun = new GuardedRun("test", () -> {
+            started.add(clock.get());
+            clock.addAndGet(started.size() == 1 ? 25 : 1);
+        }, 0, policy, clock::get);
+        guardedRun.setSchedule(0, PERIOD);
+        guardedRun.run();
+        guardedRun.run();
+        guardedRun.run();
+        clock.set(30);
+        guardedRun.run();
+        return guardedRun;
+    }
+
+    @Test
+    public void testSkipRunsOnlyInItsSlots() {
+        final GuardedRun guardedRun = overrunning(GuardedRun.OverrunPolicy.SKIP);
+        assertThat(started, contains(0L, 30L));
+        assertThat(guardedRun.getStatistics().getRuns(), is(2L));
+        assertThat(guardedRun.getStatistics().getSkipped(), is(2L));
+        assertThat(guardedRun.getStatistics().getOverBudget(), is(1L));
+    }
+
+    @Test
+    public void testCoalesceRunsOnceForMissedSlots() {
+        final GuardedRun guardedRun = overrunning(GuardedRun.OverrunPolicy.COALESCE);
+        assertThat(started, contains(0L, 25L, 30L));
+        assertThat(guardedRun.getStatistics().getRuns(), is(3L));
+        assertThat(guardedRun.getStatistics().getSkipped(), is(1L));
+    }
+
+    @Test
+    public void testBudgetedTaskGetsDeadline() {
+        final List<Boolean> exceeded = new ArrayList<>();
+        final GuardedRun.Budgeted task = deadline -> {
+            exceeded.add(deadline.isExceeded());
+            clock.addAndGet(5);
+            exceeded.add(deadline.isExceeded());
+            assertThat(deadline.getPolicy(), is(GuardedRun.OverrunPolicy.RESUME));
+        };
+        final GuardedRun guardedRun = new GuardedRun("test", task, 5, GuardedRun.OverrunPolicy.RESUME, clock::get);
+        guardedRun.setSchedule(0, PERIOD);
+        guardedRun.run();
+        assertThat(exceeded, contains(false, true));
+        assertThat(guardedRun.getStatistics().getOverBudget(), is(0L));
+        assertThat(GuardedRun.Deadline.NONE.isExceeded(), is(false));
+    }
+
+    @Test
+    public void testStatistics() {
+        final RunStatistics statistics = new RunStatistics();
+        for (long duration = 1; duration <= 200; duration++) {
+            statistics.recordRun(duration, false);
+        }
+        assertThat(statistics.getRuns(), is(200L));
+        assertThat(statistics.getMeanMs(), is(100L));
+        // percentiles of the last runs only
+        assertThat(statistics.getPercentileMs(50), is(150L));
+        assertThat(statistics.getPercentileMs(95), is(195L));
+        assertThat(statistics.getPercentileMs(100), is(200L));
+    }
+}
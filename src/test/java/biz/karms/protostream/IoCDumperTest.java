@@ -0,0 +1,63 @@
+package biz.karms.protostream;
+
+import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Optional;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for {@link IoCDumper}
+ */
+public class IoCDumperTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BlacklistedRecord record(final int phishtankAccuracy, final int mfskAccuracy) {
+        final HashMap<String, ImmutablePair<String, String>> sources = new HashMap<>();
+        sources.put("phishtank", new ImmutablePair<>("phishing", "id1"));
+        sources.put("mfsk", new ImmutablePair<>("content", "id2"));
+        final HashMap<String, HashMap<String, Integer>> accuracy = new HashMap<>();
+        accuracy.put("phishtank", new HashMap<>(Collections.singletonMap("feed", phishtankAccuracy)));
+        accuracy.put("mfsk", new HashMap<>(Collections.singletonMap("feed", mfskAccuracy)));
+        final Calendar listed = Calendar.getInstance();
+        listed.setTimeInMillis(0);
+        return new BlacklistedRecord("a.com", BigInteger.ONE, listed, sources, accuracy, false);
+    }
+
+    @Test
+    public void testDumpRewrittenWhenOnlyRecordsChange() throws Exception {
+        final IoCKeeper ioCKeeper = mock(IoCKeeper.class);
+        final IoCSnapshot snapshot = mock(IoCSnapshot.class);
+        when(ioCKeeper.getSnapshot()).thenReturn(snapshot);
+        // the fingerprint covers the max accuracy only, which stays the same
+        when(snapshot.getFingerprint()).thenReturn(42L);
+        final Path dumpPath = folder.getRoot().toPath().resolve(IoCDumper.IOC_DUMP_FILE_NAME);
+        final IoCDumper ioCDumper = new IoCDumper(ioCKeeper, folder.getRoot().toPath());
+
+        when(snapshot.getRecords()).thenReturn(Optional.of(Collections.singletonList(record(70, 30))));
+        ioCDumper.run();
+        final byte[] first = Files.readAllBytes(dumpPath);
+
+        when(snapshot.getRecords()).thenReturn(Optional.of(Collections.singletonList(record(30, 70))));
+        ioCDumper.run();
+        assertThat(Files.readAllBytes(dumpPath), is(not(first)));
+    }
+}
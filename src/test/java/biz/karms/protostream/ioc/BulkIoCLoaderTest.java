@@ -0,0 +1,87 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.infinispan.client.hotrod.Flag;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.exceptions.TransportException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for {@link BulkIoCLoader}
+ */
+public class BulkIoCLoaderTest {
+
+    private RemoteCache<String, BlacklistedRecord> cache;
+    private final Map<String, BlacklistedRecord> data = new HashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final Set<String> failOnce = ConcurrentHashMap.newKeySet();
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        for (int i = 0; i < 1050; i++) {
+            data.put("key" + i, mock(BlacklistedRecord.class));
+        }
+        cache = mock(RemoteCache.class);
+        doReturn(cache).when(cache).withFlags(Flag.SKIP_CACHE_LOAD);
+        doAnswer(invocation -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+                final Set<String> keys = invocation.getArgument(0);
+                if (keys.stream().anyMatch(failOnce::remove)) {
+                    throw new TransportException("connection reset", null);
+                }
+                final Map<String, BlacklistedRecord> result = new HashMap<>();
+                keys.stream().filter(data::containsKey).forEach(k -> result.put(k, data.get(k)));
+                return result;
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }).when(cache).getAll(any());
+    }
+
+    @Test
+    public void testFetchAllBulksWithBoundedParallelism() {
+        final List<String> keys = new ArrayList<>(data.keySet());
+        keys.add("missing");
+        final Map<String, BlacklistedRecord> fetched = new HashMap<>();
+
+        new BulkIoCLoader(100, 3, 0, 0).fetch(cache, keys, fetched::put);
+
+        assertThat(fetched, is(data));
+        verify(cache, times(11)).getAll(any());
+        assertThat(maxInFlight.get(), lessThanOrEqualTo(3));
+    }
+
+    @Test
+    public void testFailedBulkIsRetried() {
+        failOnce.add("key7");
+        failOnce.add("key1000");
+        final Map<String, BlacklistedRecord> fetched = new HashMap<>();
+
+        new BulkIoCLoader(100, 2, 1, 1).fetch(cache, new ArrayList<>(data.keySet()), fetched::put);
+
+        assertThat(fetched, is(data));
+        verify(cache, times(13)).getAll(any());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailsWhenRetriesAreExhausted() {
+        failOnce.add("key7");
+
+        new BulkIoCLoader(100, 2, 0, 1).fetch(cache, new ArrayList<>(data.keySet()), (k, v) -> {
+        });
+    }
+}
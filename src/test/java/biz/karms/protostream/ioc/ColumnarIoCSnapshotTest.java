@@ -0,0 +1,156 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ColumnarIoCSnapshot}
+ */
+public class ColumnarIoCSnapshotTest {
+
+    static BlacklistedRecord record(String key, String crc64, boolean whitelisted, String... feedTypeAccuracy) {
+        final HashMap<String, ImmutablePair<String, String>> sources = new HashMap<>();
+        final HashMap<String, HashMap<String, Integer>> accuracy = new HashMap<>();
+        for (int i = 0; i < feedTypeAccuracy.length; i += 3) {
+            sources.put(feedTypeAccuracy[i], new ImmutablePair<>(feedTypeAccuracy[i + 1], "id" + i));
+            final HashMap<String, Integer> feedAccuracy = new HashMap<>();
+            feedAccuracy.put("feed", Integer.parseInt(feedTypeAccuracy[i + 2]));
+            feedAccuracy.put("analyst", 10);
+            accuracy.put(feedTypeAccuracy[i], feedAccuracy);
+        }
+        return new BlacklistedRecord(key, new BigInteger(crc64), Calendar.getInstance(), sources, accuracy, whitelisted);
+    }
+
+    static Map<String, List<String>> dump(IoCSnapshot snapshot) {
+        final Map<String, List<String>> rows = new TreeMap<>();
+        final IoCCursor cursor = snapshot.cursor();
+        while (cursor.next()) {
+            final List<String> row = new ArrayList<>(Arrays.asList(Long.toUnsignedString(cursor.getCrc64()),
+                    String.valueOf(cursor.getMaxAccuracy()), String.valueOf(cursor.isPresentOnWhiteList())));
+            final Set<String> sources = new TreeSet<>();
+            for (int i = 0; i < cursor.getSourceCount(); i++) {
+                sources.add(snapshot.getFeeds().get(cursor.getSourceFeed(i)) + ":" + snapshot.getTypes().get(cursor.getSourceType(i)));
+            }
+            row.addAll(sources);
+            rows.put(cursor.getBlackListedDomainOrIP(), row);
+        }
+        return rows;
+    }
+
+    private static IoCSnapshot build(IoCSnapshotStore store, BlacklistedRecord... records) {
+        final IoCSnapshot.Builder builder = store.newBuilder(1);
+        Arrays.stream(records).forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        return builder.build();
+    }
+
+    @Test
+    public void testCursorMatchesRecords() {
+        final BlacklistedRecord[] records = {
+                record("a.com", "18446744073709551615", false, "phishtank", "phishing", "70", "mfsk", "content", "20"),
+                record("b.com", "666", true, "mfsk", "content", "5"),
+                record("c.com", "1", false),
+        };
+        final IoCSnapshot columnar = build(IoCSnapshotStore.columnar, records);
+
+        assertThat(columnar.size(), is(3));
+        assertThat(columnar.getRecords().isPresent(), is(false));
+        assertThat(dump(columnar), is(dump(build(IoCSnapshotStore.records, records))));
+        assertThat(dump(columnar).get("a.com"), contains("18446744073709551615", "80", "false", "mfsk:content", "phishtank:phishing"));
+        assertThat(dump(columnar).get("b.com"), contains("666", "15", "true", "mfsk:content"));
+        assertThat(dump(columnar).get("c.com"), contains("1", "0", "false"));
+    }
+
+    @Test
+    public void testPatch() {
+        final IoCSnapshot columnar = build(IoCSnapshotStore.columnar,
+                record("a.com", "1", false, "phishtank", "phishing", "70"),
+                record("b.com", "2", false, "mfsk", "content", "5"),
+                record("c.com", "3", false, "mfsk", "content", "5"));
+
+        final Map<String, BlacklistedRecord> changed = new HashMap<>();
+        changed.put("b.com", record("b.com", "2", true, "urlhaus", "malware", "50"));
+        changed.put("d.com", record("d.com", "4", false, "mfsk", "content", "5"));
+        final IoCSnapshot patched = columnar.patch(new HashSet<>(Arrays.asList("a.com", "b.com", "d.com")), changed);
+
+        assertThat(dump(patched).keySet(), contains("b.com", "c.com", "d.com"));
+        assertThat(dump(patched).get("b.com"), contains("2", "60", "true", "urlhaus:malware"));
+        assertThat(dump(patched).get("c.com"), contains("3", "15", "false", "mfsk:content"));
+        // the original snapshot is left intact
+        assertThat(dump(columnar).keySet(), contains("a.com", "b.com", "c.com"));
+    }
+
+    @Test
+    public void testRowsInCrc64Order() {
+        final BlacklistedRecord[] records = {
+                record("a.com", "18446744073709551615", false, "phishtank", "phishing", "70"),
+                record("b.com", "666", true, "mfsk", "content", "5"),
+                record("c.com", "9223372036854775808", false),
+                record("d.com", "1", false, "mfsk", "content", "5", "urlhaus", "malware", "50"),
+        };
+        final Map<String, BlacklistedRecord> changed = new HashMap<>();
+        changed.put("e.com", record("e.com", "42", false, "mfsk", "content", "5"));
+
+        for (IoCSnapshot snapshot : Arrays.asList(build(IoCSnapshotStore.columnar, records), build(IoCSnapshotStore.records, records))) {
+            final IoCSnapshot patched = snapshot.patch(Collections.singleton("e.com"), changed);
+            final List<String> keys = new ArrayList<>();
+            final IoCCursor cursor = patched.cursor();
+            while (cursor.next()) {
+                keys.add(cursor.getBlackListedDomainOrIP());
+            }
+
+            // unsigned, patched rows included, rows moved with all their columns
+            assertThat(keys, contains("d.com", "e.com", "b.com", "c.com", "a.com"));
+            assertThat(dump(patched).get("d.com"), contains("1", "60", "false", "mfsk:content", "urlhaus:malware"));
+            assertThat(dump(patched).get("b.com"), contains("666", "15", "true", "mfsk:content"));
+        }
+    }
+
+    @Test
+    public void testFingerprint() {
+        final BlacklistedRecord a = record("a.com", "1", false, "phishtank", "phishing", "70", "mfsk", "content", "20");
+        final BlacklistedRecord b = record("b.com", "2", true, "mfsk", "content", "5");
+        final IoCSnapshot columnar = build(IoCSnapshotStore.columnar, a, b);
+
+        // independent of the store and of the order of IoCs
+        assertThat(build(IoCSnapshotStore.records, b, a).getFingerprint(), is(columnar.getFingerprint()));
+        assertThat(build(IoCSnapshotStore.columnar, b, a).getFingerprint(), is(columnar.getFingerprint()));
+        assertThat(RecordIoCSnapshot.EMPTY.getFingerprint(), is(0L));
+
+        final Map<String, BlacklistedRecord> changed = new HashMap<>();
+        changed.put("b.com", record("b.com", "2", true, "mfsk", "content", "5"));
+        assertThat(columnar.patch(Collections.singleton("b.com"), changed).getFingerprint(), is(columnar.getFingerprint()));
+        changed.put("b.com", record("b.com", "2", true, "mfsk", "phishing", "5"));
+        assertThat(columnar.patch(Collections.singleton("b.com"), changed).getFingerprint(), is(not(columnar.getFingerprint())));
+        assertThat(columnar.patch(Collections.singleton("b.com"), Collections.emptyMap()).getFingerprint(),
+                is(build(IoCSnapshotStore.records, a).getFingerprint()));
+    }
+
+    @Test
+    public void testBuilderGrows() {
+        final IoCSnapshot.Builder builder = IoCSnapshotStore.columnar.newBuilder(0);
+        for (int i = 0; i < 1000; i++) {
+            builder.add("a-rather-long-key-to-outgrow-the-initial-key-capacity-" + i + ".com",
+                    record("k" + i, String.valueOf(i), false, "feed" + (i % 7), "phishing", "1", "other", "content", "2"));
+        }
+        final IoCSnapshot snapshot = builder.build();
+
+        assertThat(snapshot.size(), is(1000));
+        assertThat(snapshot.getFeeds().size(), is(8));
+        final IoCCursor cursor = snapshot.cursor();
+        int rows = 0;
+        while (cursor.next()) {
+            assertThat(cursor.getBlackListedDomainOrIP(), is("a-rather-long-key-to-outgrow-the-initial-key-capacity-" + rows + ".com"));
+            assertThat(cursor.getCrc64(), is((long) rows));
+            assertThat(cursor.getSourceCount(), is(2));
+            rows++;
+        }
+        assertThat(rows, is(1000));
+    }
+}
@@ -0,0 +1,79 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.junit.Test;
+
+import java.util.*;
+
+import static biz.karms.protostream.ioc.ColumnarIoCSnapshotTest.record;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link IoCDelta}
+ */
+public class IoCDeltaTest {
+
+    private static IoCSnapshot build(IoCSnapshotStore store, Collection<BlacklistedRecord> records) {
+        final IoCSnapshot.Builder builder = store.newBuilder(records.size());
+        records.forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        return builder.build();
+    }
+
+    @Test
+    public void testBetween() {
+        final IoCSnapshot from = build(IoCSnapshotStore.records, Arrays.asList(
+                record("a.com", "1", false, "phishtank", "phishing", "70"),
+                record("b.com", "2", false, "mfsk", "content", "5"),
+                record("c.com", "3", false, "mfsk", "content", "5"),
+                record("e.com", "18446744073709551615", false, "mfsk", "content", "5")));
+        final IoCSnapshot to = build(IoCSnapshotStore.columnar, Arrays.asList(
+                record("b.com", "2", true, "mfsk", "content", "5"),
+                record("c.com", "3", false, "mfsk", "content", "5"),
+                record("d.com", "4", false, "mfsk", "content", "5"),
+                record("e.com", "18446744073709551615", false, "mfsk", "phishing", "5")));
+
+        final IoCDelta delta = IoCDelta.between(from, to);
+
+        assertThat(delta.getAdded(), is(new long[]{4}));
+        assertThat(delta.getRemoved(), is(new long[]{1}));
+        // sorted as signed longs
+        assertThat(delta.getChanged(), is(new long[]{-1, 2}));
+        assertThat(IoCDelta.between(to, to).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testBetweenLargeSnapshots() {
+        final Random random = new Random(42);
+        final Map<Long, BlacklistedRecord> before = new HashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            final long crc = random.nextLong();
+            before.put(crc, record("k" + crc, Long.toUnsignedString(crc), false, "feed" + random.nextInt(5), "phishing", "10"));
+        }
+        final Map<Long, BlacklistedRecord> after = new HashMap<>(before);
+        final Set<Long> added = new TreeSet<>();
+        final Set<Long> removed = new TreeSet<>();
+        final Set<Long> changed = new TreeSet<>();
+        final List<Long> crcs = new ArrayList<>(before.keySet());
+        for (int i = 0; i < 300; i++) {
+            final long crc = crcs.get(i);
+            if (i % 3 == 0) {
+                after.remove(crc);
+                removed.add(crc);
+            } else if (i % 3 == 1) {
+                after.put(crc, record("k" + crc, Long.toUnsignedString(crc), false, "feed" + i, "phishing", "10"));
+                changed.add(crc);
+            } else {
+                final long newCrc = random.nextLong();
+                after.put(newCrc, record("k" + newCrc, Long.toUnsignedString(newCrc), true, "feed", "phishing", "10"));
+                added.add(newCrc);
+            }
+        }
+
+        final IoCDelta delta = IoCDelta.between(build(IoCSnapshotStore.columnar, before.values()), build(IoCSnapshotStore.records, after.values()));
+
+        assertThat(delta.getAdded(), is(added.stream().mapToLong(Long::longValue).toArray()));
+        assertThat(delta.getRemoved(), is(removed.stream().mapToLong(Long::longValue).toArray()));
+        assertThat(delta.getChanged(), is(changed.stream().mapToLong(Long::longValue).toArray()));
+    }
+}
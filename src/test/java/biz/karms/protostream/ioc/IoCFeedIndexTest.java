@@ -0,0 +1,87 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+
+import static biz.karms.protostream.ioc.ColumnarIoCSnapshotTest.record;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link IoCFeedIndex}
+ */
+public class IoCFeedIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<String> keys(IoCCursor cursor) {
+        final List<String> keys = new ArrayList<>();
+        while (cursor.next()) {
+            keys.add(cursor.getBlackListedDomainOrIP());
+        }
+        return keys;
+    }
+
+    private List<IoCSnapshot> snapshots() {
+        final IoCSnapshot.Builder records = IoCSnapshotStore.records.newBuilder(0);
+        final IoCSnapshot.Builder columnar = IoCSnapshotStore.columnar.newBuilder(0);
+        final IoCSnapshot.Builder mapped = new MappedIoCSnapshot.Builder(folder.getRoot().toPath(), new IoCDictionary(), new IoCDictionary(), 256);
+        for (int i = 0; i < 100; i++) {
+            final BlacklistedRecord record = i % 10 == 0
+                    ? record("key-" + i + ".com", String.valueOf(i), false)
+                    : record("key-" + i + ".com", String.valueOf(i), false, "feed" + (i % 3), "phishing", "1", "feed" + (i % 4), "content", "2");
+            records.add(record.getBlackListedDomainOrIP(), record);
+            columnar.add(record.getBlackListedDomainOrIP(), record);
+            mapped.add(record.getBlackListedDomainOrIP(), record);
+        }
+        return Arrays.asList(records.build(), columnar.build(), mapped.build());
+    }
+
+    @Test
+    public void testPositions() {
+        for (IoCSnapshot snapshot : snapshots()) {
+            final IoCFeedIndex index = IoCFeedIndex.of(snapshot);
+            final Set<String> feeds = new HashSet<>(Arrays.asList("feed1", "feed3", "nonexistent"));
+
+            // rows of any of the feeds, in cursor order, each once
+            final List<String> expected = new ArrayList<>();
+            final IoCCursor all = snapshot.cursor();
+            while (all.next()) {
+                for (int i = 0; i < all.getSourceCount(); i++) {
+                    if (feeds.contains(snapshot.getFeeds().get(all.getSourceFeed(i)))) {
+                        expected.add(all.getBlackListedDomainOrIP());
+                        break;
+                    }
+                }
+            }
+
+            assertThat(expected.size(), greaterThan(0));
+            assertThat(keys(snapshot.cursor(index.positions(feeds))), is(expected));
+            assertThat(index.positions("nonexistent").length, is(0));
+            assertThat(keys(snapshot.cursor(index.positions(Collections.emptySet()))), is(empty()));
+            assertThat(keys(snapshot.cursor(new int[]{0, 99})), contains(keys(snapshot.cursor()).get(0), keys(snapshot.cursor()).get(99)));
+        }
+    }
+
+    @Test
+    public void testRangeCursor() {
+        for (IoCSnapshot snapshot : snapshots()) {
+            final List<String> all = keys(snapshot.cursor());
+
+            // chunks cover the rows in order, as a parallel scan splits them
+            final List<String> chunked = new ArrayList<>();
+            for (int from = 0; from < snapshot.size(); from += 30) {
+                chunked.addAll(keys(snapshot.cursor(from, from + 30)));
+            }
+            assertThat(chunked, is(all));
+            assertThat(keys(snapshot.cursor(10, 12)), contains(all.get(10), all.get(11)));
+            assertThat(keys(snapshot.cursor(50, 50)), is(empty()));
+            assertThat(keys(snapshot.cursor(new int[]{5, 10, 95})), contains(all.get(5), all.get(10), all.get(95)));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.protostream.IoCDumper;
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.infinispan.protostream.ProtobufUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static biz.karms.protostream.ioc.ColumnarIoCSnapshotTest.dump;
+import static biz.karms.protostream.ioc.ColumnarIoCSnapshotTest.record;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class for {@link IoCKeeper}
+ */
+public class IoCKeeperTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReadDump() throws Exception {
+        final ArrayList<BlacklistedRecord> records = new ArrayList<>(Arrays.asList(
+                record("a.com", "18446744073709551615", false, "phishtank", "phishing", "70", "mfsk", "content", "20"),
+                record("b.com", "666", true, "mfsk", "content", "5")));
+        final Path path = folder.newFile("iocdump.bin").toPath();
+        Files.write(path, ProtobufUtil.toByteArray(IoCDumper.newSerializationContext(), records));
+
+        final IoCSnapshot.Builder builder = IoCSnapshotStore.records.newBuilder(2);
+        records.forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        final IoCSnapshot expected = builder.build();
+
+        for (IoCSnapshotStore store : IoCSnapshotStore.values()) {
+            final IoCSnapshot warm = IoCKeeper.readDump(path, 60_000, store);
+            assertThat(warm.getGeneration(), is(0L));
+            assertThat(dump(warm), is(dump(expected)));
+            assertThat(warm.getFingerprint(), is(expected.getFingerprint()));
+        }
+    }
+
+    @Test
+    public void testReadDumpTooOldOrMissing() throws Exception {
+        final Path path = folder.newFile("iocdump.bin").toPath();
+        Files.write(path, ProtobufUtil.toByteArray(IoCDumper.newSerializationContext(), new ArrayList<>()));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+
+        assertThat(IoCKeeper.readDump(path, 60_000, IoCSnapshotStore.records), is(nullValue()));
+        assertThat(IoCKeeper.readDump(path.resolveSibling("missing.bin"), 60_000, IoCSnapshotStore.records), is(nullValue()));
+        assertThat(IoCKeeper.readDump(path, 600_000, IoCSnapshotStore.records).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testReadDumpSkippedAsUnchangedIsFresh() throws Exception {
+        final ArrayList<BlacklistedRecord> records = new ArrayList<>(Collections.singletonList(
+                record("a.com", "666", false, "mfsk", "content", "5")));
+        final IoCSnapshot snapshot = mock(IoCSnapshot.class);
+        when(snapshot.getRecords()).thenReturn(Optional.of(records));
+        final IoCKeeper ioCKeeper = mock(IoCKeeper.class);
+        when(ioCKeeper.getSnapshot()).thenReturn(snapshot);
+        final IoCDumper ioCDumper = new IoCDumper(ioCKeeper, folder.getRoot().toPath());
+        final Path path = folder.getRoot().toPath().resolve(IoCDumper.IOC_DUMP_FILE_NAME);
+
+        ioCDumper.run();
+        Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+        assertThat(IoCKeeper.readDump(path, 60_000, IoCSnapshotStore.records), is(nullValue()));
+
+        // nothing has changed, the dump is not rewritten but it is still current
+        ioCDumper.run();
+        final IoCSnapshot warm = IoCKeeper.readDump(path, 60_000, IoCSnapshotStore.records);
+        assertThat(warm, is(notNullValue()));
+        assertThat(warm.size(), is(1));
+    }
+}
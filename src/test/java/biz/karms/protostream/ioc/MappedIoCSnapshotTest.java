@@ -0,0 +1,132 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+
+import static biz.karms.protostream.ioc.ColumnarIoCSnapshotTest.dump;
+import static biz.karms.protostream.ioc.ColumnarIoCSnapshotTest.record;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link MappedIoCSnapshot}
+ */
+public class MappedIoCSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static IoCSnapshot records(BlacklistedRecord... records) {
+        final IoCSnapshot.Builder builder = IoCSnapshotStore.records.newBuilder(records.length);
+        Arrays.stream(records).forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        return builder.build();
+    }
+
+    @Test
+    public void testSpill() {
+        final IoCSnapshot snapshot = records(
+                record("a.com", "18446744073709551615", false, "phishtank", "phishing", "70", "mfsk", "content", "20"),
+                record("b.com", "666", true, "mfsk", "content", "5"),
+                record("č.com", "1", false));
+
+        final IoCSnapshot mapped = MappedIoCSnapshot.spill(snapshot, folder.getRoot().toPath());
+
+        assertThat(mapped.size(), is(3));
+        assertThat(mapped.getRecords().isPresent(), is(false));
+        assertThat(mapped.getHeapBytes(), is(0L));
+        assertThat(dump(mapped), is(dump(snapshot)));
+        assertThat(mapped.getFingerprint(), is(snapshot.getFingerprint()));
+        // the mapping outlives the file
+        assertThat(folder.getRoot().list(), is(emptyArray()));
+    }
+
+    @Test
+    public void testRowsAcrossSegments() {
+        final IoCSnapshot.Builder builder = new MappedIoCSnapshot.Builder(folder.getRoot().toPath(), new IoCDictionary(), new IoCDictionary(), 256);
+        final IoCSnapshot.Builder expected = IoCSnapshotStore.columnar.newBuilder(0);
+        for (int i = 0; i < 500; i++) {
+            final BlacklistedRecord record = record("key-" + i + ".com", String.valueOf(i), i % 2 == 0, "feed" + (i % 7), "phishing", "1", "other", "content", "2");
+            builder.add(record.getBlackListedDomainOrIP(), record);
+            expected.add(record.getBlackListedDomainOrIP(), record);
+        }
+
+        final IoCSnapshot mapped = builder.build();
+
+        assertThat(mapped.size(), is(500));
+        assertThat(dump(mapped), is(dump(expected.build())));
+    }
+
+    @Test
+    public void testPatch() {
+        final IoCSnapshot mapped = MappedIoCSnapshot.spill(records(
+                record("a.com", "1", false, "phishtank", "phishing", "70"),
+                record("b.com", "2", false, "mfsk", "content", "5"),
+                record("c.com", "3", false, "mfsk", "content", "5")), folder.getRoot().toPath(), 128);
+
+        final Map<String, BlacklistedRecord> changed = new HashMap<>();
+        changed.put("b.com", record("b.com", "2", true, "urlhaus", "malware", "50"));
+        changed.put("d.com", record("d.com", "4", false, "mfsk", "content", "5"));
+        final IoCSnapshot patched = mapped.patch(new HashSet<>(Arrays.asList("a.com", "b.com", "d.com")), changed);
+
+        assertThat(dump(patched).keySet(), contains("b.com", "c.com", "d.com"));
+        assertThat(dump(patched).get("b.com"), contains("2", "60", "true", "urlhaus:malware"));
+        assertThat(patched.getFingerprint(), is(records(changed.get("b.com"), changed.get("d.com"),
+                record("c.com", "3", false, "mfsk", "content", "5")).getFingerprint()));
+        assertThat(dump(mapped).keySet(), contains("a.com", "b.com", "c.com"));
+    }
+
+    @Test
+    public void testAbortDeletesPartialFile() {
+        final IoCSnapshot.Builder builder = new MappedIoCSnapshot.Builder(folder.getRoot().toPath());
+        final BlacklistedRecord record = record("a.com", "1", false, "phishtank", "phishing", "70");
+        builder.add(record.getBlackListedDomainOrIP(), record);
+        assertThat(folder.getRoot().list(), is(arrayWithSize(1)));
+
+        builder.abort();
+
+        assertThat(folder.getRoot().list(), is(emptyArray()));
+    }
+
+    @Test
+    public void testEmpty() {
+        final IoCSnapshot mapped = MappedIoCSnapshot.spill(RecordIoCSnapshot.EMPTY, folder.getRoot().toPath());
+
+        assertThat(mapped.isEmpty(), is(true));
+        assertThat(mapped.cursor().next(), is(false));
+    }
+
+    @Test
+    public void testCursorsSeekToIndexedRows() {
+        // segments of 256 bytes take a few rows each, every 7th row is indexed
+        final IoCSnapshot.Builder builder = new MappedIoCSnapshot.Builder(folder.getRoot().toPath(), new IoCDictionary(), new IoCDictionary(), 256, 7);
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final BlacklistedRecord record = record("key-" + i + ".com", String.valueOf(i), false, "feed" + (i % 7), "phishing", "1");
+            builder.add(record.getBlackListedDomainOrIP(), record);
+            keys.add(record.getBlackListedDomainOrIP());
+        }
+        final IoCSnapshot mapped = builder.build();
+
+        for (int from = 0; from < 500; from += 33) {
+            final IoCCursor range = mapped.cursor(from, from + 33);
+            for (int row = from; row < Math.min(from + 33, 500); row++) {
+                assertThat(range.next(), is(true));
+                assertThat(range.getBlackListedDomainOrIP(), is(keys.get(row)));
+                assertThat(range.getCrc64(), is((long) row));
+            }
+            assertThat(range.next(), is(false));
+        }
+
+        final int[] rows = {0, 6, 7, 8, 100, 101, 257, 499};
+        final IoCCursor positions = mapped.cursor(rows);
+        for (int row : rows) {
+            assertThat(positions.next(), is(true));
+            assertThat(positions.getBlackListedDomainOrIP(), is(keys.get(row)));
+        }
+        assertThat(positions.next(), is(false));
+    }
+}
@@ -0,0 +1,112 @@
+package biz.karms.protostream.ioc;
+
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import org.infinispan.client.hotrod.CacheTopologyInfo;
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.exceptions.TransportException;
+import org.infinispan.commons.util.CloseableIterator;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class for {@link SegmentStreamingIoCLoader}
+ */
+public class SegmentStreamingIoCLoaderTest {
+
+    private static final int SEGMENTS = 8;
+
+    private RemoteCache<String, BlacklistedRecord> cache;
+    private final Map<Integer, List<BlacklistedRecord>> segments = new HashMap<>();
+    private final AtomicBoolean failSegment3 = new AtomicBoolean(false);
+
+    private static CloseableIterator<Map.Entry<Object, Object>> iterator(List<BlacklistedRecord> records, boolean failHalfway) {
+        final Iterator<BlacklistedRecord> it = records.iterator();
+        return new CloseableIterator<Map.Entry<Object, Object>>() {
+            private int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (failHalfway && returned == records.size() / 2) {
+                    throw new TransportException("connection reset", null);
+                }
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Object, Object> next() {
+                returned++;
+                final BlacklistedRecord record = it.next();
+                return new AbstractMap.SimpleEntry<>(record.getBlackListedDomainOrIP(), record);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        for (int i = 0; i < 100; i++) {
+            segments.computeIfAbsent(i % SEGMENTS, s -> new ArrayList<>())
+                    .add(ColumnarIoCSnapshotTest.record("domain" + i, String.valueOf(i), false, "feed", "phishing", "10"));
+        }
+        cache = mock(RemoteCache.class);
+        final CacheTopologyInfo topology = mock(CacheTopologyInfo.class);
+        doReturn(SEGMENTS).when(topology).getNumSegments();
+        doReturn(topology).when(cache).getCacheTopologyInfo();
+        doReturn(100).when(cache).size();
+        doAnswer(invocation -> {
+            final int segment = ((Set<Integer>) invocation.getArgument(1)).iterator().next();
+            return iterator(segments.get(segment), segment == 3 && failSegment3.getAndSet(false));
+        }).when(cache).retrieveEntries(isNull(), anySet(), anyInt());
+    }
+
+    @Test
+    public void testLoadStreamsAllSegments() {
+        final IoCSnapshot snapshot = new SegmentStreamingIoCLoader(10, 3, 0, 0).load(cache, IoCSnapshotStore.columnar);
+
+        assertThat(snapshot.size(), is(100));
+        verify(cache, times(SEGMENTS)).retrieveEntries(isNull(), anySet(), eq(10));
+        verify(cache, never()).keySet();
+    }
+
+    @Test
+    public void testInterruptedSegmentIsStreamedAgainWithoutDuplicates() {
+        failSegment3.set(true);
+
+        final IoCSnapshot snapshot = new SegmentStreamingIoCLoader(10, 2, 1, 1).load(cache, IoCSnapshotStore.columnar);
+
+        assertThat(snapshot.size(), is(100));
+        final Set<Long> crcs = new HashSet<>();
+        final IoCCursor cursor = snapshot.cursor();
+        while (cursor.next()) {
+            crcs.add(cursor.getCrc64());
+        }
+        assertThat(crcs, hasSize(100));
+        verify(cache, times(SEGMENTS + 1)).retrieveEntries(isNull(), anySet(), eq(10));
+    }
+
+    @Test
+    public void testCacheWithoutSegmentsIsStreamedAtOnce() {
+        doReturn(null).when(cache).getCacheTopologyInfo();
+        final List<BlacklistedRecord> all = new ArrayList<>();
+        segments.values().forEach(all::addAll);
+        doReturn(iterator(all, false)).when(cache).retrieveEntries(isNull(), isNull(), anyInt());
+
+        final IoCSnapshot snapshot = new SegmentStreamingIoCLoader(10, 2, 0, 0).load(cache, IoCSnapshotStore.records);
+
+        assertThat(snapshot.size(), is(100));
+        assertThat(snapshot.getRecords().get(), containsInAnyOrder(all.toArray()));
+    }
+}
@@ -1,7 +1,9 @@
 package biz.karms.protostream.threat;
 
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.threat.domain.ResolverRecord;
 import biz.karms.protostream.threat.processing.ResolverThreatsProcessor;
+import biz.karms.protostream.threat.processing.ResolverWorkQueue;
 import biz.karms.protostream.threat.task.ResolverCacheExportTask;
 import biz.karms.sinkit.ejb.cache.annotations.SinkitCacheName;
 import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
@@ -27,7 +29,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -35,6 +36,7 @@ import java.util.stream.Collectors;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -118,7 +120,7 @@ public class ResolverThreatsProcessorIntegrationTest {
         final RemoteCache<Integer, ResolverConfiguration> resolverConfigurationRemoteCache = Mockito.mock(RemoteCache.class, RETURNS_DEEP_STUBS);
 
 
-        this.processor = Mockito.spy(new ResolverThreatsProcessor(indexingRemoteCacheManager, 1, null, null, null, IoCKeeper.getIoCKeeper(nonIndexingRemoteCacheManager)));
+        this.processor = Mockito.spy(new ResolverThreatsProcessor(indexingRemoteCacheManager, 1, null, ResolverWorkQueue.Lane.SWEEP, null, IoCKeeper.getIoCKeeper(nonIndexingRemoteCacheManager)));
 
         doReturn(blacklistedRecordRemoteCache).when(nonIndexingRemoteCacheManager).getCache(SinkitCacheName.infinispan_blacklist.name());
         final CloseableIterator<Map.Entry<Object, Object>> blackrecordsIterator = Mockito.mock(CloseableIterator.class);
@@ -144,7 +146,8 @@ public class ResolverThreatsProcessorIntegrationTest {
     public void testProcess() {
 
         // preparation
-        final ResolverCacheExportTask<ByteBuffer> mockExporter = Mockito.mock(ResolverCacheExportTask.class);
+        final ResolverCacheExportTask<ResolverRecord> mockExporter = Mockito.mock(ResolverCacheExportTask.class);
+        doReturn((ResolverCacheExportTask.Encoded) notificationExecutor -> true).when(mockExporter).encode(any(), any());
 
         this.processor.setResolverCacheExportTask(mockExporter);
 
@@ -154,11 +157,11 @@ public class ResolverThreatsProcessorIntegrationTest {
         // verification
         assertThat(exported, Matchers.is(true));
 
-        ArgumentCaptor<ByteBuffer> content1Captor = ArgumentCaptor.forClass(ByteBuffer.class);
-        verify(mockExporter).export(eq(resolverConfiguration), content1Captor.capture(), isNull());
+        ArgumentCaptor<ResolverRecord> content1Captor = ArgumentCaptor.forClass(ResolverRecord.class);
+        verify(mockExporter).encode(eq(resolverConfiguration), content1Captor.capture());
 
-        ArgumentCaptor<ByteBuffer> content2Captor = ArgumentCaptor.forClass(ByteBuffer.class);
-        verify(mockExporter).export(eq(resolverConfiguration2), content2Captor.capture(), isNull());
+        ArgumentCaptor<ResolverRecord> content2Captor = ArgumentCaptor.forClass(ResolverRecord.class);
+        verify(mockExporter).encode(eq(resolverConfiguration2), content2Captor.capture());
 
         assertThat(content1Captor.getValue(), notNullValue());
         assertThat(content2Captor.getValue(), notNullValue());
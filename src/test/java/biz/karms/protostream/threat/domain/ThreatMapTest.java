@@ -0,0 +1,101 @@
+package biz.karms.protostream.threat.domain;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ThreatMap}
+ */
+public class ThreatMapTest {
+
+    @Test
+    public void testPutAndGet() {
+        final ThreatMap threats = new ThreatMap();
+        final Map<Long, Threat> expected = new HashMap<>();
+        final Random random = new Random(42);
+        // 0, -1 and keys colliding in the low bits included, past several rehashes
+        final List<Long> keys = new ArrayList<>(Arrays.asList(0L, -1L, Long.MIN_VALUE, 1L << 32, 2L << 32, 3L << 32));
+        for (int i = 0; i < 10_000; i++) {
+            keys.add(random.nextLong());
+        }
+        for (long key : keys) {
+            final Threat threat = new Threat(key);
+            assertThat(threats.put(key, threat), is(nullValue()));
+            expected.put(key, threat);
+        }
+
+        assertThat(threats.size(), is(expected.size()));
+        expected.forEach((key, threat) -> assertThat(threats.get(key), is(sameInstance(threat))));
+        assertThat(threats.get(42L), is(nullValue()));
+        assertThat(threats.containsKey(42L), is(false));
+
+        final Threat replacement = new Threat(-1L);
+        assertThat(threats.put(-1L, replacement), is(sameInstance(expected.get(-1L))));
+        assertThat(threats.computeIfAbsent(-1L, Threat::new), is(sameInstance(replacement)));
+        assertThat(threats.computeIfAbsent(42L, Threat::new).getCrc64(), is(42L));
+        assertThat(threats.size(), is(expected.size() + 1));
+    }
+
+    @Test
+    public void testSortedValuesUnsigned() {
+        final ThreatMap threats = new ThreatMap(2);
+        for (long key : new long[]{-1L, 10L, Long.MIN_VALUE, 0L, Long.MAX_VALUE}) {
+            threats.put(key, new Threat(key));
+        }
+
+        assertThat(threats.sortedValues().stream().map(threat -> Long.toUnsignedString(threat.getCrc64())).collect(Collectors.toList()),
+                contains("0", "10", "9223372036854775807", "9223372036854775808", "18446744073709551615"));
+    }
+
+    @Test
+    public void testSortedValuesMergesOutOfOrderKeys() {
+        final Random random = new Random(42);
+        final long[] ascending = random.longs(5_000).map(key -> key ^ Long.MIN_VALUE).sorted().map(key -> key ^ Long.MIN_VALUE).toArray();
+        final ThreatMap scan = new ThreatMap();
+        for (long key : ascending) {
+            scan.put(key, new Threat(key));
+        }
+        // chunks merged in order keep the keys ascending, custom list keys come last in any order
+        final ThreatMap threats = new ThreatMap();
+        threats.putAll(scan);
+        final List<Long> expected = new ArrayList<>();
+        for (long key : ascending) {
+            expected.add(key);
+        }
+        for (int i = 0; i < 50; i++) {
+            final long key = random.nextLong();
+            threats.put(key, new Threat(key));
+            expected.add(key);
+        }
+        threats.put(ascending[0], new Threat(ascending[0]));
+        expected.sort(Long::compareUnsigned);
+
+        assertThat(threats.sortedValues().stream().map(Threat::getCrc64).collect(Collectors.toList()), is(expected));
+        assertThat(threats.deepCopy().sortedValues().stream().map(Threat::getCrc64).collect(Collectors.toList()), is(expected));
+    }
+
+    @Test
+    public void testDeepCopy() {
+        final Threat threat = new Threat(10L);
+        threat.setAccuracy(42);
+        threat.setSlot(3, Flag.blacklist);
+        final ThreatMap threats = new ThreatMap();
+        threats.put(threat.getCrc64(), threat);
+
+        final ThreatMap copy = threats.deepCopy();
+        copy.get(10L).setSlot(3, Flag.whitelist);
+        copy.get(10L).setTmpDomain("whalebone.io");
+        copy.put(11L, new Threat(11L));
+
+        assertThat(copy.get(10L), is(not(sameInstance(threat))));
+        assertThat(copy.get(10L).getAccuracy(), is(42));
+        assertThat(threat.getSlot(3), is(Flag.blacklist));
+        assertThat(threat.getTmpDomain(), is(nullValue()));
+        assertThat(threats.size(), is(1));
+    }
+}
@@ -0,0 +1,45 @@
+package biz.karms.protostream.threat.domain;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link Threat}
+ */
+public class ThreatTest {
+
+    @Test
+    public void testPackedSlots() {
+        final Threat threat = new Threat(42L);
+        assertThat(threat.isSet(), is(false));
+        assertThat(threat.getSlots(), everyItem(is(nullValue(Flag.class))));
+
+        // every flag in every slot, none is set unlike an empty slot
+        for (int position = 0; position < Threat.SLOTS; position++) {
+            final Flag flag = Flag.values()[position % Flag.values().length];
+            threat.setSlot(position, flag);
+            assertThat(threat.getSlot(position), is(flag));
+        }
+        threat.setSlot(11, Flag.audit);
+        threat.setSlot(11, Flag.none);
+        threat.setSlot(12, Flag.drop);
+
+        assertThat(threat.isSet(), is(true));
+        assertThat(threat.getSlots(), contains(Flag.none, Flag.accuracy, Flag.blacklist, Flag.whitelist, Flag.drop, Flag.audit,
+                Flag.none, Flag.accuracy, Flag.blacklist, Flag.whitelist, Flag.drop, Flag.none));
+        assertThat(threat.getFlagValues(), contains(0, 1, 2, 4, 8, 16, 0, 1, 2, 4, 8, 0));
+        assertThat(new Threat(threat).getSlots(), is(threat.getSlots()));
+
+        final Threat single = new Threat(43L);
+        single.setSlot(0, Flag.none);
+        assertThat(single.isSet(), is(true));
+        assertThat(single.getSlot(1), is(nullValue()));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSlotOutOfRange() {
+        new Threat(42L).getSlot(Threat.SLOTS);
+    }
+}
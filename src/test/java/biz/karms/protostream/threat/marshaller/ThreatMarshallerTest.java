@@ -46,13 +46,13 @@ public class ThreatMarshallerTest {
     public void writeTo() throws Exception {
 
         // preparation
-        final Threat record = new Threat(new BigInteger("14378846635097004878"));
+        final Threat record = new Threat(Long.parseUnsignedLong("14378846635097004878"));
         record.setAccuracy(50);
-        record.setSlot0(Flag.blacklist);
-        record.setSlot1(Flag.whitelist);
-        record.setSlot2(Flag.audit);
-        record.setSlot3(Flag.drop);
-        record.setSlot4(Flag.accuracy);
+        record.setSlot(0, Flag.blacklist);
+        record.setSlot(1, Flag.whitelist);
+        record.setSlot(2, Flag.audit);
+        record.setSlot(3, Flag.drop);
+        record.setSlot(4, Flag.accuracy);
 
         final List<Integer> tmpFlags = Arrays.asList(
                 (int) Flag.blacklist.getByteValue(),
@@ -67,7 +67,7 @@ public class ThreatMarshallerTest {
         marshaller.writeTo(writer, record);
 
         // verification
-        verify(writer).writeString("crc64", record.getCrc64().toString());
+        verify(writer).writeString("crc64", "14378846635097004878");
         verify(writer).writeInt("accuracy", 50);
 
         final ArgumentCaptor<List<Integer>> flagsCaptor = ArgumentCaptor.forClass(List.class);
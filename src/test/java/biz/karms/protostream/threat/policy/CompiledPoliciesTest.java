@@ -0,0 +1,73 @@
+package biz.karms.protostream.threat.policy;
+
+import biz.karms.sinkit.ioc.IoCClassificationType;
+import biz.karms.sinkit.resolver.Policy;
+import biz.karms.sinkit.resolver.Strategy;
+import biz.karms.sinkit.resolver.StrategyParams;
+import biz.karms.sinkit.resolver.StrategyType;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link CompiledPolicies}
+ */
+public class CompiledPoliciesTest {
+
+    private static Policy policy(StrategyType strategyType, Integer audit, Set<IoCClassificationType> types, Set<String> accuracyFeeds, Set<String> blacklistedFeeds) {
+        final StrategyParams params = new StrategyParams();
+        params.setAudit(audit);
+        params.setTypes(types);
+        final Strategy strategy = new Strategy();
+        strategy.setStrategyType(strategyType);
+        strategy.setStrategyParams(params);
+        final Policy policy = new Policy();
+        policy.setStrategy(strategy);
+        policy.setAccuracyFeeds(accuracyFeeds);
+        policy.setBlacklistedFeeds(blacklistedFeeds);
+        return policy;
+    }
+
+    @Test
+    public void testFingerprint() {
+        final String fingerprint = CompiledPolicies.fingerprint(Arrays.asList(
+                policy(StrategyType.accuracy, 50, EnumSet.of(IoCClassificationType.phishing, IoCClassificationType.cc), null, new HashSet<>(Arrays.asList("mfsk", "urlhaus"))),
+                policy(StrategyType.drop, null, null, null, null)));
+
+        // order of set items, null versus empty sets and params the strategy does not read make no difference
+        assertThat(CompiledPolicies.fingerprint(Arrays.asList(
+                policy(StrategyType.accuracy, 50, new LinkedHashSet<>(Arrays.asList(IoCClassificationType.cc, IoCClassificationType.phishing)), Collections.emptySet(), new TreeSet<>(Arrays.asList("urlhaus", "mfsk"))),
+                policy(StrategyType.drop, 80, EnumSet.of(IoCClassificationType.malware), Collections.singleton("mfsk"), Collections.emptySet()))), is(fingerprint));
+
+        // slots, thresholds and feeds do
+        assertThat(CompiledPolicies.fingerprint(Arrays.asList(
+                policy(StrategyType.drop, null, null, null, null),
+                policy(StrategyType.accuracy, 50, EnumSet.of(IoCClassificationType.phishing, IoCClassificationType.cc), null, new HashSet<>(Arrays.asList("mfsk", "urlhaus"))))), is(not(fingerprint)));
+        assertThat(CompiledPolicies.fingerprint(Arrays.asList(
+                policy(StrategyType.accuracy, 51, EnumSet.of(IoCClassificationType.phishing, IoCClassificationType.cc), null, new HashSet<>(Arrays.asList("mfsk", "urlhaus"))),
+                policy(StrategyType.drop, null, null, null, null))), is(not(fingerprint)));
+        assertThat(CompiledPolicies.fingerprint(Arrays.asList(
+                policy(StrategyType.accuracy, 50, EnumSet.of(IoCClassificationType.phishing, IoCClassificationType.cc), null, Collections.singleton("mfsk")),
+                policy(StrategyType.drop, null, null, null, null))), is(not(fingerprint)));
+    }
+
+    @Test
+    public void testFeedSelective() {
+        final CompiledPolicies selective = CompiledPolicies.compile(Arrays.asList(
+                policy(StrategyType.accuracy, 50, null, Collections.singleton("phishtank"), Collections.singleton("mfsk")),
+                policy(StrategyType.accuracy, 10, EnumSet.of(IoCClassificationType.malware), Collections.singleton("urlhaus"), null)));
+        assertThat(selective.isFeedSelective(), is(true));
+        assertThat(selective.getFeeds(), containsInAnyOrder("phishtank", "mfsk", "urlhaus"));
+
+        // any feed, or any IoC at all, can match
+        assertThat(CompiledPolicies.compile(Arrays.asList(
+                policy(StrategyType.accuracy, 50, null, Collections.singleton("phishtank"), null),
+                policy(StrategyType.accuracy, 50, null, Collections.emptySet(), null))).isFeedSelective(), is(false));
+        assertThat(CompiledPolicies.compile(Arrays.asList(
+                policy(StrategyType.accuracy, 50, null, Collections.singleton("phishtank"), null),
+                policy(StrategyType.drop, null, null, null, Collections.singleton("mfsk")))).isFeedSelective(), is(false));
+    }
+}
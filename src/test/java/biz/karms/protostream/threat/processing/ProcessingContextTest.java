@@ -0,0 +1,54 @@
+package biz.karms.protostream.threat.processing;
+
+import biz.karms.crc64java.CRC64;
+import biz.karms.sinkit.resolver.EndUserConfiguration;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ProcessingContext}
+ */
+public class ProcessingContextTest {
+
+    @Test
+    public void testEndUserRecordsByClientId() {
+        final EndUserConfiguration conf1 = endUserConfiguration(1, "blackportal.com", "evil.com");
+        final EndUserConfiguration conf2 = endUserConfiguration(2, "other.com");
+        final EndUserConfiguration conf3 = endUserConfiguration(1, "evil.com", "malware.com");
+        final EndUserConfiguration noClient = endUserConfiguration(null, "nobody.com");
+
+        final ProcessingContext context = new ProcessingContext();
+        context.setEndUserRecords(Arrays.asList(conf1, conf2, conf3, noClient));
+
+        assertThat(context.getEndUserRecords(1), contains(conf1, conf3));
+        assertThat(context.getEndUserRecords(2), contains(conf2));
+        assertThat(context.getEndUserRecords(3), is(empty()));
+        assertThat(context.getEndUserRecords(null), is(empty()));
+
+        final ProcessingContext.CustomListDomains domains = context.getBlacklistedDomains(1);
+        assertThat(domains.size(), is(3));
+        assertThat(Arrays.asList(domains.getDomain(0), domains.getDomain(1), domains.getDomain(2)),
+                contains("blackportal.com", "evil.com", "malware.com"));
+        for (int i = 0; i < domains.size(); i++) {
+            assertThat(domains.getCrc64(i), is(CRC64.getInstance().crc64Long(domains.getDomain(i).getBytes())));
+        }
+        assertThat(context.getBlacklistedDomains(3).size(), is(0));
+    }
+
+    private static EndUserConfiguration endUserConfiguration(final Integer clientId, final String... blacklist) {
+        final EndUserConfiguration conf = new EndUserConfiguration();
+        conf.setClientId(clientId);
+        conf.setIdentities(new LinkedHashSet<>(Collections.singletonList("identity")));
+        conf.setWhitelist(new LinkedHashSet<>());
+        conf.setBlacklist(new LinkedHashSet<>(Arrays.asList(blacklist)));
+        return conf;
+    }
+}
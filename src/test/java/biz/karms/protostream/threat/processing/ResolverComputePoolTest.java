@@ -0,0 +1,66 @@
+package biz.karms.protostream.threat.processing;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ResolverComputePool}
+ */
+public class ResolverComputePoolTest {
+
+    @Test
+    public void testChunksInOrder() {
+        final ResolverComputePool pool = new ResolverComputePool(4, 1024 * 1024, 10);
+
+        final List<List<Integer>> chunks = pool.invokeChunked(35, 1, (from, to) ->
+                IntStream.range(from, to).boxed().collect(Collectors.toList()));
+
+        assertThat(chunks.size(), is(4));
+        final List<Integer> rows = new ArrayList<>();
+        chunks.forEach(rows::addAll);
+        assertThat(rows, is(IntStream.range(0, 35).boxed().collect(Collectors.toList())));
+        assertThat(pool.getAvailableBudgetKB(), is(1024));
+    }
+
+    @Test
+    public void testBudgetLimitsConcurrency() {
+        // 10 rows of 100 KB, two chunks fit the budget
+        final ResolverComputePool pool = new ResolverComputePool(8, 2 * 1000 * 1024, 10);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        pool.invokeChunked(160, 100 * 1024, (from, to) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return to - from;
+        });
+
+        assertThat(maxRunning.get(), lessThanOrEqualTo(2));
+        assertThat(pool.getAvailableBudgetKB(), is(2000));
+    }
+
+    @Test
+    public void testChunkOverBudgetRunsAlone() {
+        final ResolverComputePool pool = new ResolverComputePool(2, 1024, 10);
+
+        final List<Integer> chunks = pool.invokeChunked(30, 1024 * 1024, (from, to) -> to - from);
+
+        assertThat(chunks, is(Arrays.asList(10, 10, 10)));
+        assertThat(pool.getAvailableBudgetKB(), is(1));
+    }
+}
@@ -0,0 +1,108 @@
+package biz.karms.protostream.threat.processing;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.commons.equivalence.ByteArrayEquivalence;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.server.hotrod.HotRodServer;
+import org.infinispan.server.hotrod.configuration.HotRodServerConfigurationBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.BitSet;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ResolverPartitioner}, two instances sharing leases of an embedded Hot Rod server
+ */
+public class ResolverPartitionerTest {
+
+    private static final String LEASE_CACHE = "leases";
+    private static final int BUCKETS = 16;
+
+    private DefaultCacheManager embeddedCacheManager;
+    private HotRodServer hotRodServer;
+    private RemoteCacheManager remoteCacheManager;
+    private RemoteCache<String, String> leases;
+
+    @Before
+    public void setUp() throws IOException {
+        embeddedCacheManager = new DefaultCacheManager(new GlobalConfigurationBuilder().nonClusteredDefault().build());
+        // Hot Rod keys are byte arrays, compared by content as on a real server
+        embeddedCacheManager.defineConfiguration(LEASE_CACHE, new ConfigurationBuilder()
+                .dataContainer().keyEquivalence(ByteArrayEquivalence.INSTANCE).build());
+        final int port;
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        hotRodServer = new HotRodServer();
+        hotRodServer.start(new HotRodServerConfigurationBuilder().host("127.0.0.1").port(port).build(), embeddedCacheManager);
+        remoteCacheManager = new RemoteCacheManager(new org.infinispan.client.hotrod.configuration.ConfigurationBuilder()
+                .addServer().host("127.0.0.1").port(port).build());
+        leases = remoteCacheManager.getCache(LEASE_CACHE);
+    }
+
+    @After
+    public void tearDown() {
+        if (remoteCacheManager != null) {
+            remoteCacheManager.stop();
+        }
+        if (hotRodServer != null) {
+            hotRodServer.stop();
+        }
+        if (embeddedCacheManager != null) {
+            embeddedCacheManager.stop();
+        }
+    }
+
+    @Test
+    public void testInstancesSplitBuckets() {
+        final ResolverPartitioner a = new ResolverPartitioner(leases, "a", BUCKETS, 300);
+        final ResolverPartitioner b = new ResolverPartitioner(leases, "b", BUCKETS, 300);
+
+        assertThat(a.refresh().cardinality(), is(BUCKETS));
+        // a has not learned about b yet
+        assertThat(b.refresh().cardinality(), is(0));
+        // a releases the buckets above its share, b claims them
+        assertThat(a.refresh().cardinality(), is(BUCKETS / 2));
+        assertThat(b.refresh().cardinality(), is(BUCKETS / 2));
+        assertThat(a.refresh().cardinality(), is(BUCKETS / 2));
+
+        final BitSet both = a.getHeld();
+        assertThat(both.intersects(b.getHeld()), is(false));
+        both.or(b.getHeld());
+        assertThat(both.cardinality(), is(BUCKETS));
+
+        for (int resolverId = 0; resolverId < 1000; resolverId++) {
+            assertThat(a.owns(resolverId) ^ b.owns(resolverId), is(true));
+            assertThat(a.holds(resolverId), is(a.owns(resolverId)));
+            assertThat(b.holds(resolverId), is(b.owns(resolverId)));
+        }
+    }
+
+    @Test
+    public void testBucketsOfGoneInstanceAreTakenOver() throws InterruptedException {
+        final ResolverPartitioner a = new ResolverPartitioner(leases, "a", BUCKETS, 1);
+        final ResolverPartitioner b = new ResolverPartitioner(leases, "b", BUCKETS, 300);
+
+        a.refresh();
+        b.refresh();
+        a.refresh();
+        assertThat(b.refresh().cardinality(), is(BUCKETS / 2));
+
+        // a stops refreshing, its heartbeat and leases expire
+        Thread.sleep(2500);
+        assertThat(b.refresh().cardinality(), is(BUCKETS));
+        for (int resolverId = 0; resolverId < 100; resolverId++) {
+            assertThat(a.holds(resolverId), is(false));
+            assertThat(b.holds(resolverId), is(true));
+        }
+    }
+}
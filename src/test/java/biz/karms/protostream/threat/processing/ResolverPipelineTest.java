@@ -0,0 +1,47 @@
+package biz.karms.protostream.threat.processing;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ResolverPipeline}
+ */
+public class ResolverPipelineTest {
+
+    @Test
+    public void testRecordSlotsBoundComputation() throws Exception {
+        final ResolverPipeline pipeline = new ResolverPipeline(1, 1, 2);
+        pipeline.acquireRecord();
+        pipeline.acquireRecord();
+        assertThat(pipeline.getAvailableRecords(), is(0));
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread next = new Thread(() -> {
+            pipeline.acquireRecord();
+            acquired.countDown();
+        });
+        next.start();
+        assertThat(acquired.await(100, TimeUnit.MILLISECONDS), is(false));
+
+        pipeline.releaseRecord();
+        assertThat(acquired.await(5, TimeUnit.SECONDS), is(true));
+        next.join();
+        assertThat(pipeline.getAvailableRecords(), is(0));
+    }
+
+    @Test
+    public void testStagesRunOnTheirOwnThreads() {
+        final ResolverPipeline pipeline = new ResolverPipeline(1, 1, 1);
+        final String threads = CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), pipeline.getEncodeExecutor())
+                .thenApplyAsync(encodeThread -> encodeThread + ' ' + Thread.currentThread().getName(), pipeline.getExportExecutor())
+                .join();
+        assertThat(threads, startsWith("resolver-encode-0 resolver-export-0"));
+    }
+}
@@ -1,6 +1,8 @@
 package biz.karms.protostream.threat.processing;
 
+import biz.karms.protostream.GuardedRun;
 import biz.karms.protostream.ioc.IoCKeeper;
+import biz.karms.protostream.threat.domain.ResolverRecord;
 import biz.karms.protostream.threat.exception.ResolverProcessingException;
 import biz.karms.protostream.threat.task.ResolverCacheExportTask;
 import biz.karms.protostream.threat.task.ResolverProcessingTask;
@@ -19,7 +21,6 @@ import org.mockito.Spy;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
@@ -28,6 +29,7 @@ import java.util.logging.Logger;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.*;
 import static org.mockito.hamcrest.MockitoHamcrest.argThat;
 
@@ -54,7 +56,7 @@ public class ResolverThreatsProcessorTest {
     @Before
     public void setUp() throws NoSuchFieldException, IllegalAccessException {
         MockitoAnnotations.initMocks(this);
-        this.processor = spy(new ResolverThreatsProcessor(remoteCacheManagerForIndexedCaches, 20, null, null, null, IoCKeeper.getIoCKeeper(remoteCacheManager)));
+        this.processor = spy(new ResolverThreatsProcessor(remoteCacheManagerForIndexedCaches, 20, null, ResolverWorkQueue.Lane.SWEEP, null, IoCKeeper.getIoCKeeper(remoteCacheManager)));
 
         // replace final logger
         final Field loggerField = ResolverThreatsProcessor.class.getDeclaredField("logger");
@@ -68,7 +70,7 @@ public class ResolverThreatsProcessorTest {
     @Test
     public void testSetResolverCacheExportTask() throws NoSuchFieldException, IllegalAccessException {
         // preparation
-        final ResolverCacheExportTask<ByteBuffer> exportTask = mock(ResolverCacheExportTask.class);
+        final ResolverCacheExportTask<ResolverRecord> exportTask = mock(ResolverCacheExportTask.class);
         final Field resolverCacheExportTaskField = ResolverThreatsProcessor.class.getDeclaredField("resolverCacheExportTask");
         resolverCacheExportTaskField.setAccessible(true);
 
@@ -154,6 +156,31 @@ public class ResolverThreatsProcessorTest {
         assertThat(context.getEndUserRecords().iterator().next(), is(endUserConfiguration));
     }
 
+    @Test
+    public void testFetchEndUserConfigurationsIncremental() {
+        // preparation
+        final RemoteCache<String, EndUserConfiguration> remoteCache = mock(RemoteCache.class);
+        doReturn(remoteCache).when(remoteCacheManagerForIndexedCaches).getCache(SinkitCacheName.end_user_configuration.name());
+        final ResolverConfiguration otherResolverConfiguration = mock(ResolverConfiguration.class);
+        doReturn(7).when(resolverConfiguration).getClientId();
+        doReturn(7).when(otherResolverConfiguration).getClientId();
+        this.processingContext.setResolverConfigurations(Arrays.asList(resolverConfiguration, otherResolverConfiguration));
+        this.processingContext.setIncremental(true);
+        final EndUserConfiguration endUserConfiguration = new EndUserConfiguration();
+        endUserConfiguration.setClientId(7);
+        doReturn(Collections.singletonList(endUserConfiguration)).when(this.processor)
+                .queryEndUserConfigurations(remoteCache, Collections.singleton(7));
+
+        // call tested method
+        final ProcessingContext context = this.processor.fetchEndUserConfigurations(this.processingContext);
+
+        // verification, no pass over the whole cache
+        verify(remoteCache, never()).keySet();
+        verify(remoteCache, never()).getAll(any());
+        assertThat(context.getEndUserRecords(), contains(endUserConfiguration));
+        assertThat(context.getEndUserRecords(7), contains(endUserConfiguration));
+    }
+
     @Test
     @Ignore("Not implemented")
     public void testFetchBlacklistedRecord() {
@@ -218,4 +245,105 @@ public class ResolverThreatsProcessorTest {
         verify(this.processor, times(3)).processResolversBatch(any(), eq(processingContext));
     }
 
+    @Test
+    public void testProcessTakesChangedResolversFromWorkQueue() {
+        // preparation
+        final ResolverWorkQueue workQueue = new ResolverWorkQueue();
+        workQueue.offerAll(Arrays.asList(1, 2, 3), ResolverWorkQueue.Lane.SWEEP);
+        for (int i = 100; i < 125; i++) {
+            workQueue.offer(i, ResolverWorkQueue.Lane.CHANGED);
+        }
+        final ResolverThreatsProcessor queueProcessor = spy(new ResolverThreatsProcessor(remoteCacheManagerForIndexedCaches, 20, workQueue,
+                ResolverWorkQueue.Lane.CHANGED, null, IoCKeeper.getIoCKeeper(remoteCacheManager)));
+        doNothing().when(queueProcessor).queueResolvers();
+        doReturn(processingContext).when(queueProcessor).fetchResolverConfigurations(any(), any());
+        doReturn(processingContext).when(queueProcessor).fetchEndUserConfigurations(any());
+        doReturn(processingContext).when(queueProcessor).fetchBlacklistedRecord(any());
+        doReturn(true).when(queueProcessor).processResolvers(any());
+
+        // call tested method
+        final boolean result = queueProcessor.process();
+
+        // verification, changed resolvers in batches, the sweep is left to the full sweep
+        assertThat(result, is(true));
+        verify(queueProcessor, times(2)).fetchResolverConfigurations(any(), any());
+        verify(queueProcessor).fetchResolverConfigurations(any(), (Set<Integer>) argThat(hasSize(20)));
+        verify(queueProcessor).fetchResolverConfigurations(any(), (Set<Integer>) argThat(hasSize(5)));
+        assertThat(workQueue.getDepth(ResolverWorkQueue.Lane.CHANGED), is(0));
+        assertThat(workQueue.getDepth(ResolverWorkQueue.Lane.SWEEP), is(3));
+        assertThat(workQueue.getInFlight(), is(0));
+    }
+
+    @Test
+    public void testProcessStopsAtDeadline() {
+        // preparation, the deadline has passed already
+        final ResolverWorkQueue workQueue = new ResolverWorkQueue();
+        workQueue.offerAll(Arrays.asList(1, 2, 3), ResolverWorkQueue.Lane.SWEEP);
+        workQueue.offer(100, ResolverWorkQueue.Lane.CHANGED);
+        final ResolverThreatsProcessor queueProcessor = spy(new ResolverThreatsProcessor(remoteCacheManagerForIndexedCaches, 20, workQueue,
+                ResolverWorkQueue.Lane.SWEEP, null, IoCKeeper.getIoCKeeper(remoteCacheManager)));
+        queueProcessor.setDeadline(new GuardedRun.Deadline(0, GuardedRun.OverrunPolicy.SKIP, () -> 0));
+        doNothing().when(queueProcessor).queueResolvers();
+
+        // call tested method
+        final boolean result = queueProcessor.process();
+
+        // verification, nothing processed, the sweep is dropped, changed resolvers wait for the next run
+        assertThat(result, is(false));
+        verify(queueProcessor, never()).fetchResolverConfigurations(any(), any());
+        assertThat(workQueue.getDepth(ResolverWorkQueue.Lane.SWEEP), is(0));
+        assertThat(workQueue.getDepth(ResolverWorkQueue.Lane.CHANGED), is(1));
+    }
+
+    @Test
+    public void testQueueResolversResumesSweep() {
+        // preparation, a sweep left over by the previous run
+        final ResolverWorkQueue workQueue = new ResolverWorkQueue();
+        workQueue.offerAll(Arrays.asList(2, 3), ResolverWorkQueue.Lane.SWEEP);
+        final RemoteCache<Integer, ResolverConfiguration> resolverCache = mock(RemoteCache.class);
+        when(remoteCacheManagerForIndexedCaches.<Integer, ResolverConfiguration>getCache(SinkitCacheName.resolver_configuration.name())).thenReturn(resolverCache);
+        when(resolverCache.keySet()).thenReturn(new HashSet<>(Arrays.asList(1, 2, 3)));
+        final ResolverThreatsProcessor queueProcessor = new ResolverThreatsProcessor(remoteCacheManagerForIndexedCaches, 20, workQueue,
+                ResolverWorkQueue.Lane.SWEEP, null, IoCKeeper.getIoCKeeper(remoteCacheManager));
+
+        // call tested method
+        queueProcessor.setDeadline(new GuardedRun.Deadline(100, GuardedRun.OverrunPolicy.RESUME, () -> 0));
+        queueProcessor.queueResolvers();
+
+        // verification, resolver 1 has been exported already
+        verify(resolverCache, never()).keySet();
+        assertThat(workQueue.take(20, ResolverWorkQueue.Lane.SWEEP), contains(2, 3));
+
+        // call tested method, the sweep has finished
+        queueProcessor.queueResolvers();
+        assertThat(workQueue.getDepth(ResolverWorkQueue.Lane.SWEEP), is(3));
+    }
+
+    @Test
+    public void testPublishSkipsResolverOfForeignBucket() {
+        // preparation, the bucket of the resolver has moved to another instance
+        final ResolverPartitioner partitioner = mock(ResolverPartitioner.class);
+        when(partitioner.holds(anyInt())).thenReturn(false);
+        when(resolverConfiguration.getResolverId()).thenReturn(7);
+        this.processor.setPartitioner(partitioner);
+        final AtomicBoolean published = new AtomicBoolean();
+        final ResolverCacheExportTask.Encoded encoded = notificationExecutor -> {
+            published.set(true);
+            return true;
+        };
+
+        // call tested method
+        final ResolverThreatsProcessor.Publication publication = this.processor.publish(resolverConfiguration, encoded);
+
+        // verification, neither exported nor unchanged
+        assertThat(publication, is(ResolverThreatsProcessor.Publication.FOREIGN));
+        assertThat(published.get(), is(false));
+        assertThat(this.processor.getSkippedForeignResolvers(), is(1));
+
+        // the bucket is back
+        when(partitioner.holds(7)).thenReturn(true);
+        assertThat(this.processor.publish(resolverConfiguration, encoded), is(ResolverThreatsProcessor.Publication.PUBLISHED));
+        assertThat(published.get(), is(true));
+        assertThat(this.processor.getSkippedForeignResolvers(), is(1));
+    }
 }
@@ -0,0 +1,72 @@
+package biz.karms.protostream.threat.processing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static biz.karms.protostream.threat.processing.ResolverWorkQueue.Lane.CHANGED;
+import static biz.karms.protostream.threat.processing.ResolverWorkQueue.Lane.SWEEP;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ResolverWorkQueue}
+ */
+public class ResolverWorkQueueTest {
+
+    @Test
+    public void testChangedJumpAheadOfSweep() {
+        final ResolverWorkQueue queue = new ResolverWorkQueue();
+        assertThat(queue.offerAll(Arrays.asList(1, 2, 3, 4, 5), SWEEP), is(5));
+
+        // repeated events coalesce, a queued resolver moves up to the changed lane
+        assertThat(queue.offer(4, CHANGED), is(false));
+        assertThat(queue.offer(4, CHANGED), is(false));
+        assertThat(queue.offer(6, CHANGED), is(true));
+        assertThat(queue.offer(6, SWEEP), is(false));
+        assertThat(queue.getDepth(), is(6));
+        assertThat(queue.getDepth(CHANGED), is(2));
+        assertThat(queue.getDepth(SWEEP), is(4));
+
+        assertThat(queue.take(3, CHANGED), contains(4, 6));
+        assertThat(queue.take(3, SWEEP), contains(1, 2, 3));
+        assertThat(queue.getInFlight(), is(5));
+        assertThat(queue.take(3, CHANGED), is(empty()));
+        assertThat(queue.hasWork(CHANGED), is(false));
+        assertThat(queue.hasWork(SWEEP), is(true));
+    }
+
+    @Test
+    public void testInFlightResolverIsNotTakenTwice() {
+        final ResolverWorkQueue queue = new ResolverWorkQueue();
+        queue.offer(1, SWEEP);
+        assertThat(queue.take(10, SWEEP), contains(1));
+
+        // changed while being processed, waits until it is done
+        assertThat(queue.offer(1, CHANGED), is(true));
+        queue.offer(2, CHANGED);
+        assertThat(queue.take(10, SWEEP), contains(2));
+        assertThat(queue.getDepth(CHANGED), is(1));
+
+        queue.done(Arrays.asList(1, 2));
+        assertThat(queue.take(10, CHANGED), contains(1));
+        queue.done(Collections.singletonList(1));
+        assertThat(queue.getDepth(), is(0));
+        assertThat(queue.getInFlight(), is(0));
+    }
+
+    @Test
+    public void testDrainClients() {
+        final ResolverWorkQueue queue = new ResolverWorkQueue();
+        queue.offerClient(7);
+        queue.offerClient(7);
+        queue.offerClient(8);
+        assertThat(queue.hasWork(CHANGED), is(true));
+        assertThat(queue.drainClients(), contains(7, 8));
+        assertThat(queue.drainClients(), is(empty()));
+        assertThat(queue.hasWork(SWEEP), is(false));
+    }
+}
@@ -0,0 +1,69 @@
+package biz.karms.protostream.threat.task;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ExportFingerprintIndex}
+ */
+public class ExportFingerprintIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReloadCompactsJournal() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final ExportFingerprintIndex index = new ExportFingerprintIndex(directory);
+        assertThat(index.isPublished("1_resolver_cache.bin", "aa", 10), is(false));
+
+        assertThat(index.published("1_resolver_cache.bin", "aa", 10), is(1L));
+        assertThat(index.published("1_resolver_cache.bin", "bb", 12), is(2L));
+        assertThat(index.published("2_resolver_cache.bin", "cc", 14), is(1L));
+        index.invalidate("2_resolver_cache.bin");
+        assertThat(index.isPublished("1_resolver_cache.bin", "bb", 12), is(true));
+        assertThat(index.isPublished("1_resolver_cache.bin", "bb", 11), is(false));
+        assertThat(index.isPublished("2_resolver_cache.bin", "cc", 14), is(false));
+
+        final Path journal = directory.resolve(ExportFingerprintIndex.FILE_NAME);
+        Files.write(journal, "malformed\n".getBytes(), StandardOpenOption.APPEND);
+        assertThat(Files.readAllLines(journal), hasSize(5));
+
+        final ExportFingerprintIndex reloaded = new ExportFingerprintIndex(directory);
+        assertThat(Files.readAllLines(journal), hasSize(2));
+        assertThat(reloaded.isPublished("1_resolver_cache.bin", "aa", 10), is(false));
+        assertThat(reloaded.isPublished("1_resolver_cache.bin", "bb", 12), is(true));
+        assertThat(reloaded.isPublished("2_resolver_cache.bin", "cc", 14), is(false));
+        assertThat(reloaded.getGeneration("1_resolver_cache.bin"), is(2L));
+        assertThat(reloaded.getGeneration("2_resolver_cache.bin"), is(1L));
+        assertThat(reloaded.published("2_resolver_cache.bin", "cc", 14), is(2L));
+    }
+
+    @Test
+    public void testJournalIsCompactedWhileRunning() throws IOException {
+        final Path directory = folder.getRoot().toPath();
+        final Path journal = directory.resolve(ExportFingerprintIndex.FILE_NAME);
+        final ExportFingerprintIndex index = new ExportFingerprintIndex(directory);
+
+        for (int i = 1; i <= 100; i++) {
+            index.published("1_resolver_cache.bin", "md5" + i, i);
+            index.published("2_resolver_cache.bin", "md5" + i, i);
+            assertThat(Files.readAllLines(journal).size(), lessThanOrEqualTo(4));
+        }
+
+        final ExportFingerprintIndex reloaded = new ExportFingerprintIndex(directory);
+        assertThat(reloaded.isPublished("1_resolver_cache.bin", "md5100", 100), is(true));
+        assertThat(reloaded.getGeneration("2_resolver_cache.bin"), is(100L));
+    }
+}
@@ -4,16 +4,24 @@ import biz.karms.protostream.threat.domain.*;
 import biz.karms.sinkit.resolver.ResolverConfiguration;
 import biz.karms.sinkit.resolver.StrategyType;
 import org.hamcrest.Matchers;
+import org.infinispan.protostream.RawProtoStreamReader;
+import org.infinispan.protostream.impl.RawProtoStreamReaderImpl;
+import org.infinispan.protostream.impl.WireFormat;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import static org.junit.Assert.assertThat;
 
@@ -27,9 +35,9 @@ public class ProtostreamTransformerTaskTest {
     public void setUp() throws UnknownHostException {
         transformerTask = new ProtostreamTransformerTask(Mockito.mock(ResolverConfiguration.class));
 
-        final Threat threat = new Threat(new BigInteger("2315137971279604471"));
-        threat.setSlot0(Flag.blacklist);
-        threat.setSlot2(Flag.whitelist);
+        final Threat threat = new Threat(2315137971279604471L);
+        threat.setSlot(0, Flag.blacklist);
+        threat.setSlot(2, Flag.whitelist);
         final List<Threat> threats = Arrays.asList(threat);
 
 
@@ -63,4 +71,70 @@ public class ProtostreamTransformerTaskTest {
         assertThat(buffer, Matchers.notNullValue());
     }
 
+    @Test
+    public void testWriteProtobufMatchesByteBuffer() throws IOException {
+        final Threat threat = new Threat(-1L);
+        threat.setAccuracy(80);
+        threat.setSlot(11, Flag.drop);
+        resolverRecord.setThreats(Arrays.asList(resolverRecord.getThreats().get(0), threat));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transformerTask.writeProtobuf(this.resolverRecord, out);
+
+        final ByteBuffer buffer = transformerTask.transformToProtobuf(this.resolverRecord);
+        final byte[] expected = new byte[buffer.remaining()];
+        buffer.get(expected);
+        assertThat(out.toByteArray(), Matchers.is(expected));
+    }
+
+
+    @Test
+    public void testWriteProtobufV2() throws IOException {
+        final Threat threat = new Threat(-1L);
+        threat.setAccuracy(80);
+        threat.setSlot(11, Flag.audit);
+        threat.setSlot(1, Flag.none);
+        resolverRecord.setThreats(Arrays.asList(resolverRecord.getThreats().get(0), threat));
+
+        final ByteArrayOutputStream v1 = new ByteArrayOutputStream();
+        transformerTask.writeProtobuf(this.resolverRecord, v1);
+        final ByteArrayOutputStream v2 = new ByteArrayOutputStream();
+        transformerTask.writeProtobufV2(this.resolverRecord, v2);
+
+        final Map<Integer, List<Object>> v1Fields = fields(v1.toByteArray());
+        final Map<Integer, List<Object>> v2Fields = fields(v2.toByteArray());
+        // messages other than threats are the same, threats are columns of fields 5 to 7
+        assertThat(v2Fields.keySet(), Matchers.contains(1, 3, 4, 5, 6, 7));
+        for (int field : new int[]{1, 3, 4}) {
+            assertThat(v2Fields.get(field).size(), Matchers.is(1));
+            assertThat((byte[]) v2Fields.get(field).get(0), Matchers.is(v1Fields.get(field).get(0)));
+        }
+        // deltas of the ascending crc64s
+        assertThat(v2Fields.get(5), Matchers.contains(2315137971279604471L, -1L - 2315137971279604471L));
+        assertThat(v2Fields.get(6), Matchers.contains(0L, 80L));
+        assertThat(v2Fields.get(7), Matchers.contains(2L | 4L << 10, 16L << 55));
+        assertThat(v2.size(), Matchers.lessThan(v1.size()));
+    }
+
+    /**
+     * @return byte arrays of length delimited fields, longs of packed varint fields
+     */
+    private static Map<Integer, List<Object>> fields(byte[] bytes) throws IOException {
+        final Map<Integer, List<Object>> fields = new TreeMap<>();
+        final RawProtoStreamReader reader = RawProtoStreamReaderImpl.newInstance(bytes);
+        for (int tag = reader.readTag(); tag != 0; tag = reader.readTag()) {
+            final int field = WireFormat.getTagFieldNumber(tag);
+            final List<Object> values = fields.computeIfAbsent(field, f -> new ArrayList<>());
+            if (field < 5) {
+                values.add(reader.readByteArray());
+            } else {
+                final int limit = reader.pushLimit(reader.readRawVarint32());
+                while (((RawProtoStreamReaderImpl) reader).getDelegate().getBytesUntilLimit() > 0) {
+                    values.add(reader.readRawVarint64());
+                }
+                reader.popLimit(limit);
+            }
+        }
+        return fields;
+    }
 }
@@ -0,0 +1,104 @@
+package biz.karms.protostream.threat.task;
+
+import biz.karms.protostream.threat.domain.Flag;
+import biz.karms.protostream.threat.domain.Threat;
+import biz.karms.protostream.threat.policy.CompiledPolicies;
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import biz.karms.sinkit.ioc.IoCClassificationType;
+import biz.karms.sinkit.resolver.Policy;
+import biz.karms.sinkit.resolver.StrategyType;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Stream based reference implementation of the matching rules, which {@link ResolverThreatTask} used before
+ * {@link CompiledPolicies}. Compiled matching is checked against it in tests and benchmarks.
+ */
+public class ReferencePolicyMatcher {
+
+    /**
+     * Method which add Flag into threat's slot
+     *
+     * @param threat  the threat to be updated
+     * @param slotIdx slot idx to be updated
+     * @param policy  policy holds configuration
+     */
+    void addFlagToThreatSlot(Threat threat, BlacklistedRecord record, int slotIdx, Policy policy) {
+        final StrategyType strategyType = policy.getStrategy().getStrategyType();
+        // if strategy is accuracy, then must match ioc type and accuracy feed AND must be in accuracy range (bigger or equal to strategy audit threshold
+        if (strategyType != StrategyType.accuracy || shouldBeSetAccuracySlot(threat, record, policy)) {
+            threat.setSlot(slotIdx, Flag.valueOf(strategyType.name()));
+        }
+
+        // if record's feed match to blacklist - update slot
+        if (matchBlacklistedRecordByBlacklistFeed(record, policy)) {
+            threat.setSlot(slotIdx, Flag.blacklist);
+        }
+    }
+
+    /**
+     * Method checks if the threat(accuracy)'s slot should be updated or not
+     *
+     * @param threat
+     * @param record
+     * @param policy
+     * @return true if threat(accuracy)'s should be upd
+     */
+    boolean shouldBeSetAccuracySlot(Threat threat, BlacklistedRecord record, Policy policy) {
+        return matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy) && isThreatInAccuraccyRange(threat, policy);
+    }
+
+
+    /**
+     * Methods checks if the given record matches according to the type and accuracy feed rules
+     *
+     * @param record record to be tested
+     * @param policy policy from which is obtained configuration
+     * @return true / false
+     */
+    boolean matchBlacklistedRecordByTypeAndAccuracyFeed(BlacklistedRecord record, Policy policy) {
+        return record.getSources().entrySet().stream()
+                // check if blacklistedRecord.source.type is present in the policy.strategy.params.types
+                .filter(sourceEntry -> {
+                    final Set<IoCClassificationType> ioCClassificationTypes = policy.getStrategy().getStrategyParams().getTypes();
+                    return ioCClassificationTypes == null || ioCClassificationTypes.isEmpty() || ioCClassificationTypes.stream()
+                            .anyMatch(iocType -> iocType.getLabel().equals(sourceEntry.getValue().getLeft()));
+                })
+                // if yes, check if feed is present in the policy.accuracy_feeds
+                .anyMatch(sourceEntry -> {
+                    final Set<String> feeds = policy.getAccuracyFeeds();
+                    return feeds == null || feeds.isEmpty() || feeds.stream().anyMatch(feed -> feed.equals(sourceEntry.getKey()));
+                });
+    }
+
+    /**
+     * Method checks if the given threat's accuracy value is at least bigger or equal to strategy audit
+     *
+     * @param threat threat to be checked
+     * @param policy policy from which is obtained configuration
+     * @return true / false
+     */
+    boolean isThreatInAccuraccyRange(Threat threat, Policy policy) {
+        return threat.getAccuracy() >= policy.getStrategy().getStrategyParams().getAudit();
+    }
+
+    /**
+     * Method checks if the given record matches to the blacklists rules
+     *
+     * @param record record to be tested
+     * @param policy policy from which is obtained configuration
+     * @return true / false
+     */
+    boolean matchBlacklistedRecordByBlacklistFeed(BlacklistedRecord record, Policy policy) {
+        return record.getSources().entrySet().stream()
+                // check if feed is present in the policy.blacklisted_feeds
+                .anyMatch(sourceEntry -> {
+                    final Set<String> feeds = policy.getBlacklistedFeeds();
+                    return Optional.ofNullable(feeds).map(Collection::stream).orElse(Stream.empty())
+                            .anyMatch(feed -> feed.equals(sourceEntry.getKey()));
+                });
+    }
+}
@@ -0,0 +1,87 @@
+package biz.karms.protostream.threat.task;
+
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.protostream.ioc.IoCSnapshotStore;
+import biz.karms.protostream.threat.domain.ThreatMap;
+import biz.karms.protostream.threat.processing.ProcessingContext;
+import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
+import biz.karms.sinkit.ioc.IoCClassificationType;
+import biz.karms.sinkit.resolver.Policy;
+import biz.karms.sinkit.resolver.ResolverConfiguration;
+import biz.karms.sinkit.resolver.StrategyType;
+import org.junit.Test;
+
+import java.util.*;
+
+import static biz.karms.protostream.threat.task.ResolverThreatTaskTest.policy;
+import static biz.karms.protostream.threat.task.ResolverThreatTaskTest.samplePolicies;
+import static biz.karms.protostream.threat.task.ResolverThreatTaskTest.sampleRecords;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link ResolverBatchThreatTask}
+ */
+public class ResolverBatchThreatTaskTest {
+
+    private static ResolverConfiguration configuration(int resolverId, List<Policy> policies) {
+        final ResolverConfiguration configuration = new ResolverConfiguration();
+        configuration.setResolverId(resolverId);
+        configuration.setPolicies(policies);
+        return configuration;
+    }
+
+    private static List<ResolverConfiguration> configurations() {
+        return Arrays.asList(
+                configuration(1, samplePolicies()),
+                configuration(2, Collections.singletonList(policy(StrategyType.accuracy, 40, EnumSet.of(IoCClassificationType.malware), Collections.singleton("urlhaus"), Collections.singleton("mfsk")))),
+                configuration(3, Arrays.asList(policy(StrategyType.drop, null, null, null, null), policy(StrategyType.accuracy, 0, null, null, null))));
+    }
+
+    private static void assertSameThreats(List<ResolverConfiguration> configurations, ProcessingContext context) {
+        final List<ThreatMap> batch = new ResolverBatchThreatTask(configurations, context).processData();
+
+        assertThat(batch, hasSize(configurations.size()));
+        for (int i = 0; i < configurations.size(); i++) {
+            final ThreatMap expected = new ResolverThreatTask(configurations.get(i), context).processData();
+            assertThat(expected.size(), greaterThan(0));
+            assertThat(batch.get(i).sortedValues().toString(), is(expected.sortedValues().toString()));
+        }
+    }
+
+    @Test
+    public void testProcessDataRecords() {
+        final ProcessingContext context = new ProcessingContext();
+        context.setBlacklistedRecords(sampleRecords());
+
+        assertSameThreats(configurations(), context);
+    }
+
+    @Test
+    public void testProcessDataSnapshot() {
+        final List<BlacklistedRecord> records = sampleRecords();
+        final IoCSnapshot.Builder builder = IoCSnapshotStore.columnar.newBuilder(records.size());
+        records.forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        final ProcessingContext context = new ProcessingContext();
+        context.setIoCSnapshot(builder.build());
+
+        assertSameThreats(configurations(), context);
+    }
+
+    @Test
+    public void testFailedPassIsReportedForWholeBatch() {
+        final List<BlacklistedRecord> records = new ArrayList<>(sampleRecords());
+        // no crc64, the shared pass fails on it whichever resolver matches
+        records.add(new BlacklistedRecord("broken", null, Calendar.getInstance(), new HashMap<>(), new HashMap<>(), false));
+        final ProcessingContext context = new ProcessingContext();
+        context.setBlacklistedRecords(records);
+
+        try {
+            new ResolverBatchThreatTask(configurations(), context).processData();
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), containsString("[1, 2, 3]"));
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package biz.karms.protostream.threat.task;
 
 import biz.karms.crc64java.CRC64;
+import biz.karms.protostream.ioc.IoCSnapshot;
+import biz.karms.protostream.ioc.IoCSnapshotStore;
 import biz.karms.protostream.threat.domain.Flag;
 import biz.karms.protostream.threat.domain.Threat;
+import biz.karms.protostream.threat.domain.ThreatMap;
+import biz.karms.protostream.threat.policy.CompiledPolicies;
+import biz.karms.protostream.threat.policy.PolicyMatcher;
 import biz.karms.protostream.threat.processing.ProcessingContext;
 import biz.karms.sinkit.ejb.cache.pojo.BlacklistedRecord;
 import biz.karms.sinkit.ioc.IoCClassificationType;
 import biz.karms.sinkit.resolver.*;
 import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.*;
@@ -20,6 +24,7 @@ import java.util.*;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
@@ -30,6 +35,8 @@ public class ResolverThreatTaskTest {
 
     private ResolverThreatTask resolverThreatTask;
 
+    private ReferencePolicyMatcher referenceMatcher;
+
     private ProcessingContext context;
 
     @Mock
@@ -39,7 +46,7 @@ public class ResolverThreatTaskTest {
     private ResolverConfiguration mockConfiguration;
 
     @Mock
-    private HashMap<BigInteger, Threat> mockThreats;
+    private ThreatMap mockThreats;
 
     @Before
     public void setUp() throws IOException, ClassNotFoundException {
@@ -47,12 +54,13 @@ public class ResolverThreatTaskTest {
 
         context = new ProcessingContext();
         this.resolverThreatTask = Mockito.spy(new ResolverThreatTask(mockConfiguration, context));
+        this.referenceMatcher = Mockito.spy(new ReferencePolicyMatcher());
     }
 
     @Test
     public void testIsThreatInAccuraccyRange() {
         // global preparation
-        final Threat threat = new Threat(new BigInteger("666"));
+        final Threat threat = new Threat(666L);
         final Policy policy = new Policy();
         final Strategy strategy = new Strategy();
         final StrategyParams params = new StrategyParams();
@@ -65,35 +73,35 @@ public class ResolverThreatTaskTest {
         // preparation tc1
         threat.setAccuracy(30);
         // call tested method
-        boolean result = this.resolverThreatTask.isThreatInAccuraccyRange(threat, policy);
+        boolean result = this.referenceMatcher.isThreatInAccuraccyRange(threat, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc2
         threat.setAccuracy(15);
         // call tested method
-        result = this.resolverThreatTask.isThreatInAccuraccyRange(threat, policy);
+        result = this.referenceMatcher.isThreatInAccuraccyRange(threat, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc3
         threat.setAccuracy(14);
         // call tested method
-        result = this.resolverThreatTask.isThreatInAccuraccyRange(threat, policy);
+        result = this.referenceMatcher.isThreatInAccuraccyRange(threat, policy);
         // verification
         assertThat(result, is(false));
 
         // preparation tc4
         threat.setAccuracy(50);
         // call tested method
-        result = this.resolverThreatTask.isThreatInAccuraccyRange(threat, policy);
+        result = this.referenceMatcher.isThreatInAccuraccyRange(threat, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc5
         threat.setAccuracy(51);
         // call tested method
-        result = this.resolverThreatTask.isThreatInAccuraccyRange(threat, policy);
+        result = this.referenceMatcher.isThreatInAccuraccyRange(threat, policy);
         // verification
         assertThat(result, is(true));
     }
@@ -120,7 +128,7 @@ public class ResolverThreatTaskTest {
         accuracyFeeds.add("phishtank");
         accuracyFeeds.add("mfcr");
         // calling tested method
-        boolean result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        boolean result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(true));
 
@@ -129,14 +137,14 @@ public class ResolverThreatTaskTest {
         params.setTypes(new HashSet<>(Arrays.asList(IoCClassificationType.cc, IoCClassificationType.content, IoCClassificationType.phishing)));
         accuracyFeeds.clear(); // empty means all
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc3
         policy.setAccuracyFeeds(null); // null means all
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(true));
 
@@ -146,7 +154,7 @@ public class ResolverThreatTaskTest {
         accuracyFeeds.add("phishtank");
         accuracyFeeds.add("mfcr");
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(false));
 
@@ -155,7 +163,7 @@ public class ResolverThreatTaskTest {
         accuracyFeeds.clear();
         accuracyFeeds.add("mfcr"); // record is not from this source
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(false));
 
@@ -163,14 +171,14 @@ public class ResolverThreatTaskTest {
         params.setTypes(null); // null means all
         accuracyFeeds.add("phishtank");
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc7
         params.setTypes(new HashSet<>()); //empty means all
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByTypeAndAccuracyFeed(record, policy);
         // verification
         assertThat(result, is(true));
 
@@ -190,21 +198,21 @@ public class ResolverThreatTaskTest {
         // preparation tc1
         blackFeed.add("mfsk");
         // calling tested method
-        boolean result = this.resolverThreatTask.matchBlacklistedRecordByBlacklistFeed(record, policy);
+        boolean result = this.referenceMatcher.matchBlacklistedRecordByBlacklistFeed(record, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc2
         policy.setBlacklistedFeeds(null);
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByBlacklistFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByBlacklistFeed(record, policy);
         // verification
         assertThat(result, is(false));
 
         // preparation tc3
         policy.setBlacklistedFeeds(new HashSet<>());
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByBlacklistFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByBlacklistFeed(record, policy);
         // verification
         assertThat(result, is(false));
 
@@ -213,7 +221,7 @@ public class ResolverThreatTaskTest {
         blackFeed.clear();
         blackFeed.add("mfcr");
         // calling tested method
-        result = this.resolverThreatTask.matchBlacklistedRecordByBlacklistFeed(record, policy);
+        result = this.referenceMatcher.matchBlacklistedRecordByBlacklistFeed(record, policy);
         // verification
         assertThat(result, is(false));
     }
@@ -234,7 +242,7 @@ public class ResolverThreatTaskTest {
 
         // preparation tc1
         // calling tested method
-        Integer result = this.resolverThreatTask.computeMaxAccuracy(record);
+        Integer result = IoCSnapshot.computeMaxAccuracy(record);
         // verification
         assertThat(result, is(48));
 
@@ -242,7 +250,7 @@ public class ResolverThreatTaskTest {
         map2.put("g", -7);
         map2.put("h", 30);
         // calling tested method
-        result = this.resolverThreatTask.computeMaxAccuracy(record);
+        result = IoCSnapshot.computeMaxAccuracy(record);
         // verification
         assertThat(result, is(50));
 
@@ -250,14 +258,14 @@ public class ResolverThreatTaskTest {
         // preparation tc3
         record.getAccuracy().clear();
         // calling tested method
-        result = this.resolverThreatTask.computeMaxAccuracy(record);
+        result = IoCSnapshot.computeMaxAccuracy(record);
         // verification
         assertThat(result, is(0));
 
         // preparation tc4
         record.setAccuracy(null);
         // calling tested method
-        result = this.resolverThreatTask.computeMaxAccuracy(record);
+        result = IoCSnapshot.computeMaxAccuracy(record);
         // verification
         assertThat(result, is(0));
     }
@@ -269,31 +277,31 @@ public class ResolverThreatTaskTest {
         final Threat threat = Mockito.mock(Threat.class);
 
         // preparation tc1
-        doReturn(true).when(this.resolverThreatTask).matchBlacklistedRecordByTypeAndAccuracyFeed(mockRecord, policy);
-        doReturn(true).when(this.resolverThreatTask).isThreatInAccuraccyRange(threat, policy);
+        doReturn(true).when(this.referenceMatcher).matchBlacklistedRecordByTypeAndAccuracyFeed(mockRecord, policy);
+        doReturn(true).when(this.referenceMatcher).isThreatInAccuraccyRange(threat, policy);
         // calling tested method
-        boolean result = this.resolverThreatTask.shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        boolean result = this.referenceMatcher.shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // verification
         assertThat(result, is(true));
 
         // preparation tc2
-        doReturn(false).when(this.resolverThreatTask).isThreatInAccuraccyRange(threat, policy);
+        doReturn(false).when(this.referenceMatcher).isThreatInAccuraccyRange(threat, policy);
         // calling tested method
-        result = this.resolverThreatTask.shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        result = this.referenceMatcher.shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // verification
         assertThat(result, is(false));
 
         // preparation tc3
-        doReturn(false).when(this.resolverThreatTask).matchBlacklistedRecordByTypeAndAccuracyFeed(mockRecord, policy);
+        doReturn(false).when(this.referenceMatcher).matchBlacklistedRecordByTypeAndAccuracyFeed(mockRecord, policy);
         // calling tested method
-        result = this.resolverThreatTask.shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        result = this.referenceMatcher.shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // verification
         assertThat(result, is(false));
 
         // preparation tc4
-        doReturn(true).when(this.resolverThreatTask).isThreatInAccuraccyRange(threat, policy);
+        doReturn(true).when(this.referenceMatcher).isThreatInAccuraccyRange(threat, policy);
         // calling tested method
-        result = this.resolverThreatTask.shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        result = this.referenceMatcher.shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // verification
         assertThat(result, is(false));
     }
@@ -304,43 +312,43 @@ public class ResolverThreatTaskTest {
         final Threat threat = Mockito.mock(Threat.class);
         final int slotIdx = 0;
 
-        doReturn(false).when(this.resolverThreatTask).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
+        doReturn(false).when(this.referenceMatcher).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
 
         // preparation tc1
         when(policy.getStrategy().getStrategyType()).thenReturn(StrategyType.blacklist);
-        doReturn(true).when(this.resolverThreatTask).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        doReturn(true).when(this.referenceMatcher).shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // calling tested method
-        this.resolverThreatTask.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
+        this.referenceMatcher.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
         // verification
         verify(threat).setSlot(slotIdx, Flag.blacklist);
-        verify(this.resolverThreatTask, never()).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        verify(this.referenceMatcher, never()).shouldBeSetAccuracySlot(threat, mockRecord, policy);
 
         // preparation tc2
         when(policy.getStrategy().getStrategyType()).thenReturn(StrategyType.blacklist);
-        doReturn(false).when(this.resolverThreatTask).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        doReturn(false).when(this.referenceMatcher).shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // calling tested method
-        this.resolverThreatTask.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
+        this.referenceMatcher.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
         // verification
         verify(threat, times(2)).setSlot(slotIdx, Flag.blacklist);
-        verify(this.resolverThreatTask, never()).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        verify(this.referenceMatcher, never()).shouldBeSetAccuracySlot(threat, mockRecord, policy);
 
         // preparation tc3
         when(policy.getStrategy().getStrategyType()).thenReturn(StrategyType.accuracy);
-        doReturn(false).when(this.resolverThreatTask).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        doReturn(false).when(this.referenceMatcher).shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // calling tested method
-        this.resolverThreatTask.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
+        this.referenceMatcher.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
         // verification
         verify(threat, never()).setSlot(slotIdx, Flag.accuracy);
-        verify(this.resolverThreatTask).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        verify(this.referenceMatcher).shouldBeSetAccuracySlot(threat, mockRecord, policy);
 
         // preparation tc4
         when(policy.getStrategy().getStrategyType()).thenReturn(StrategyType.accuracy);
-        doReturn(true).when(this.resolverThreatTask).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        doReturn(true).when(this.referenceMatcher).shouldBeSetAccuracySlot(threat, mockRecord, policy);
         // calling tested method
-        this.resolverThreatTask.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
+        this.referenceMatcher.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
         // verification
         verify(threat).setSlot(slotIdx, Flag.accuracy);
-        verify(this.resolverThreatTask, times(2)).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        verify(this.referenceMatcher, times(2)).shouldBeSetAccuracySlot(threat, mockRecord, policy);
     }
 
     @Test
@@ -350,23 +358,23 @@ public class ResolverThreatTaskTest {
         final int slotIdx = 0;
 
         when(policy.getStrategy().getStrategyType()).thenReturn(StrategyType.accuracy);
-        doReturn(false).when(this.resolverThreatTask).shouldBeSetAccuracySlot(threat, mockRecord, policy);
+        doReturn(false).when(this.referenceMatcher).shouldBeSetAccuracySlot(threat, mockRecord, policy);
 
         // preparation tc1
-        doReturn(false).when(this.resolverThreatTask).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
+        doReturn(false).when(this.referenceMatcher).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
         // calling tested method
-        this.resolverThreatTask.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
+        this.referenceMatcher.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
         // verification
         verify(threat, never()).setSlot(slotIdx, Flag.blacklist);
-        verify(this.resolverThreatTask).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
+        verify(this.referenceMatcher).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
 
         // preparation tc1
-        doReturn(true).when(this.resolverThreatTask).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
+        doReturn(true).when(this.referenceMatcher).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
         // calling tested method
-        this.resolverThreatTask.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
+        this.referenceMatcher.addFlagToThreatSlot(threat, mockRecord, slotIdx, policy);
         // verification
         verify(threat).setSlot(slotIdx, Flag.blacklist);
-        verify(this.resolverThreatTask, times(2)).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
+        verify(this.referenceMatcher, times(2)).matchBlacklistedRecordByBlacklistFeed(mockRecord, policy);
     }
 
     @Test
@@ -375,7 +383,7 @@ public class ResolverThreatTaskTest {
         this.context.setBlacklistedRecords(Collections.singleton(mockRecord));
         final int accuracyValue = 123;
         final BigInteger domainCrc64 = CRC64.getInstance().crc64BigInteger("whalebone.com".getBytes());
-        doReturn(accuracyValue).when(this.resolverThreatTask).computeMaxAccuracy(mockRecord);
+        doReturn(accuracy(accuracyValue)).when(mockRecord).getAccuracy();
 
         final Policy policy = Mockito.mock(Policy.class, Mockito.RETURNS_DEEP_STUBS);
         doReturn(Collections.singletonList(policy)).when(mockConfiguration).getPolicies();
@@ -384,21 +392,17 @@ public class ResolverThreatTaskTest {
 
 
         // calling tested method
-        final Map<BigInteger, Threat> threats = this.resolverThreatTask.processData();
-
-        ArgumentCaptor<Threat> threatCaptor = ArgumentCaptor.forClass(Threat.class);
+        final ThreatMap threats = this.resolverThreatTask.processData();
 
         // verification
-        verify(this.resolverThreatTask).addFlagToThreatSlot(threatCaptor.capture(), eq(mockRecord), eq(0), eq(policy));
-        final Threat threat = threatCaptor.getValue();
+        assertThat(threats, notNullValue());
+        assertThat(threats.size(), is(1));
+        final Threat threat = threats.get(domainCrc64.longValue());
         assertThat(threat, notNullValue());
         assertThat(threat.getAccuracy(), is(accuracyValue));
-        assertThat(threat.getCrc64(), is(domainCrc64));
+        assertThat(threat.getCrc64(), is(domainCrc64.longValue()));
         assertThat(threat.isSet(), is(true));
-
-        assertThat(threats, notNullValue());
-        assertThat(threats, aMapWithSize(1));
-        assertThat(threats, Matchers.hasEntry(threat.getCrc64(), threat));
+        assertThat(threat.getSlot(0), is(Flag.blacklist));
     }
 
     @Test
@@ -409,7 +413,7 @@ public class ResolverThreatTaskTest {
         final int accuracyValue = 234;
         final String domain = "whalebone.com";
         final BigInteger crc64Domain = CRC64.getInstance().crc64BigInteger(domain.getBytes());
-        doReturn(accuracyValue).when(this.resolverThreatTask).computeMaxAccuracy(mockRecord);
+        doReturn(accuracy(accuracyValue)).when(mockRecord).getAccuracy();
 
         final Policy policy = Mockito.mock(Policy.class, Mockito.RETURNS_DEEP_STUBS);
         doReturn(Collections.singletonList(policy)).when(mockConfiguration).getPolicies();
@@ -417,19 +421,11 @@ public class ResolverThreatTaskTest {
         when(policy.getStrategy().getStrategyType()).thenReturn(StrategyType.accuracy);
 
         // calling tested method
-        final Map<BigInteger, Threat> threats = this.resolverThreatTask.processData();
-
-        final ArgumentCaptor<Threat> threatCaptor = ArgumentCaptor.forClass(Threat.class);
+        final ThreatMap threats = this.resolverThreatTask.processData();
 
         // verification
-        verify(this.resolverThreatTask).addFlagToThreatSlot(threatCaptor.capture(), eq(mockRecord), eq(0), eq(policy));
-        final Threat threat = threatCaptor.getValue();
-        assertThat(threat, notNullValue());
-        assertThat(threat.getAccuracy(), is(accuracyValue));
-        assertThat(threat.getCrc64(), is(crc64Domain));
-        assertThat(threat.isSet(), is(false));
-
-        assertThat(threats, aMapWithSize(0));
+        verify(mockRecord, atLeastOnce()).getAccuracy();
+        assertThat(threats.size(), is(0));
     }
 
     @Test
@@ -437,25 +433,25 @@ public class ResolverThreatTaskTest {
 
         // preparing
         final String domain = "whalebone.org";
-        final BigInteger crc64 = CRC64.getInstance().crc64BigInteger(domain.getBytes());
+        final long crc64 = CRC64.getInstance().crc64Long(domain.getBytes());
         doReturn(crc64).when(this.resolverThreatTask).getCrc64(domain);
         final Set<String> domains = Collections.singleton(domain);
         final int idx = 0;
         final Flag flag = Flag.whitelist;
 
-        final Map<BigInteger, Threat> threatMap = new HashMap<>();
+        final ThreatMap threatMap = new ThreatMap();
         final Threat existingThreat = new Threat(crc64);
-        existingThreat.setSlot0(Flag.blacklist);
+        existingThreat.setSlot(0, Flag.blacklist);
         threatMap.put(crc64, existingThreat);
 
         // calling tested method
         this.resolverThreatTask.handleCustomLists(domains, flag, idx, () -> threatMap);
 
         // verification
-        assertThat(threatMap, aMapWithSize(1));
+        assertThat(threatMap.size(), is(1));
         final Threat updatedThreat = threatMap.get(crc64);
         assertThat(updatedThreat, notNullValue());
-        assertThat(updatedThreat.getSlot0(), is(Flag.whitelist));
+        assertThat(updatedThreat.getSlot(0), is(Flag.whitelist));
     }
 
     @Test
@@ -464,8 +460,8 @@ public class ResolverThreatTaskTest {
         final CRC64 crc64Hasher = CRC64.getInstance();
         final String domain = "whalebone.org";
         final String existingDomain = "existingDomain";
-        final BigInteger crc64 = crc64Hasher.crc64BigInteger(domain.getBytes());
-        final BigInteger crc64ExistingDomain = crc64Hasher.crc64BigInteger(existingDomain.getBytes());
+        final long crc64 = crc64Hasher.crc64Long(domain.getBytes());
+        final long crc64ExistingDomain = crc64Hasher.crc64Long(existingDomain.getBytes());
         doReturn(crc64).when(this.resolverThreatTask).getCrc64(domain);
         doReturn(crc64ExistingDomain).when(this.resolverThreatTask).getCrc64(existingDomain);
 
@@ -473,22 +469,22 @@ public class ResolverThreatTaskTest {
         final int idx = 0;
         final Flag flag = Flag.whitelist;
 
-        final Map<BigInteger, Threat> threatMap = new HashMap<>();
+        final ThreatMap threatMap = new ThreatMap();
         Threat existingThreat = new Threat(crc64ExistingDomain);
-        existingThreat.setSlot0(Flag.blacklist);
+        existingThreat.setSlot(0, Flag.blacklist);
         threatMap.put(crc64ExistingDomain, existingThreat);
 
         // calling tested method
         this.resolverThreatTask.handleCustomLists(domains, flag, idx, () -> threatMap);
 
         // verification
-        assertThat(threatMap, aMapWithSize(2));
+        assertThat(threatMap.size(), is(2));
         existingThreat = threatMap.get(crc64ExistingDomain);
         assertThat(existingThreat, notNullValue());
-        assertThat(existingThreat.getSlot0(), is(Flag.blacklist));
+        assertThat(existingThreat.getSlot(0), is(Flag.blacklist));
         final Threat newThreat = threatMap.get(crc64);
         assertThat(newThreat, notNullValue());
-        assertThat(newThreat.getSlot0(), is(Flag.whitelist));
+        assertThat(newThreat.getSlot(0), is(Flag.whitelist));
     }
 
     @Test
@@ -502,10 +498,10 @@ public class ResolverThreatTaskTest {
         final Set<String> blackList = Collections.singleton("black");
         final Set<String> dropList = Collections.singleton("drop");
         final Set<String> whiteList = Collections.singleton("white");
-        doReturn(new BigInteger("1073251900497484785")).when(this.resolverThreatTask).getCrc64("audit");
-        doReturn(new BigInteger("12863298021156289100")).when(this.resolverThreatTask).getCrc64("black");
-        doReturn(new BigInteger("16292570364802992800")).when(this.resolverThreatTask).getCrc64("drop");
-        doReturn(new BigInteger("15764284370007174481")).when(this.resolverThreatTask).getCrc64("white");
+        doReturn(Long.parseUnsignedLong("1073251900497484785")).when(this.resolverThreatTask).getCrc64("audit");
+        doReturn(Long.parseUnsignedLong("12863298021156289100")).when(this.resolverThreatTask).getCrc64("black");
+        doReturn(Long.parseUnsignedLong("16292570364802992800")).when(this.resolverThreatTask).getCrc64("drop");
+        doReturn(Long.parseUnsignedLong("15764284370007174481")).when(this.resolverThreatTask).getCrc64("white");
 
         final int idx = 0;
 
@@ -516,7 +512,7 @@ public class ResolverThreatTaskTest {
         policy.setCustomlists(customLists);
 
         doReturn(Collections.singletonList(policy)).when(mockConfiguration).getPolicies();
-        doReturn(threat).when(mockThreats).computeIfAbsent(any(), any());
+        doReturn(threat).when(mockThreats).computeIfAbsent(anyLong(), any());
 
         this.resolverThreatTask.postProcessData(mockThreats);
 
@@ -555,10 +551,10 @@ public class ResolverThreatTaskTest {
         final Policy policy = new Policy();
         final PolicyCustomList customLists = new PolicyCustomList();
         final Set<String> audits = Collections.singleton("audit");
-        doReturn(new BigInteger("1073251900497484785")).when(this.resolverThreatTask).getCrc64("audit");
+        doReturn(Long.parseUnsignedLong("1073251900497484785")).when(this.resolverThreatTask).getCrc64("audit");
 
         final Set<String> whiteList = Collections.singleton("white");
-        doReturn(new BigInteger("15764284370007174481")).when(this.resolverThreatTask).getCrc64("white");
+        doReturn(Long.parseUnsignedLong("15764284370007174481")).when(this.resolverThreatTask).getCrc64("white");
         final Threat threat = Mockito.mock(Threat.class);
         final int idx = 0;
 
@@ -570,7 +566,7 @@ public class ResolverThreatTaskTest {
         policy.setCustomlists(customLists);
 
         doReturn(Collections.singletonList(policy)).when(mockConfiguration).getPolicies();
-        doReturn(threat).when(mockThreats).computeIfAbsent(any(), any());
+        doReturn(threat).when(mockThreats).computeIfAbsent(anyLong(), any());
 
         this.resolverThreatTask.postProcessData(mockThreats);
 
@@ -584,4 +580,128 @@ public class ResolverThreatTaskTest {
 
     }
 
+    private static HashMap<String, HashMap<String, Integer>> accuracy(final int value) {
+        final HashMap<String, HashMap<String, Integer>> accuracy = new HashMap<>();
+        accuracy.put("feed", new HashMap<>(Collections.singletonMap("accuracy", value)));
+        return accuracy;
+    }
+
+    static Policy policy(StrategyType strategyType, Integer audit, Set<IoCClassificationType> types, Set<String> accuracyFeeds, Set<String> blacklistedFeeds) {
+        final StrategyParams params = new StrategyParams();
+        params.setAudit(audit);
+        params.setTypes(types);
+        final Strategy strategy = new Strategy();
+        strategy.setStrategyType(strategyType);
+        strategy.setStrategyParams(params);
+        final Policy policy = new Policy();
+        policy.setStrategy(strategy);
+        policy.setAccuracyFeeds(accuracyFeeds);
+        policy.setBlacklistedFeeds(blacklistedFeeds);
+        return policy;
+    }
+
+    static List<BlacklistedRecord> sampleRecords() {
+        final List<BlacklistedRecord> records = new ArrayList<>();
+        final String[][] sources = {{"phishtank", "phishing"}, {"mfsk", "content"}, {"urlhaus", "malware"}, {"hybrid", "cc"}};
+        for (int i = 0; i < 64; i++) {
+            final HashMap<String, ImmutablePair<String, String>> recordSources = new HashMap<>();
+            final HashMap<String, HashMap<String, Integer>> accuracy = new HashMap<>();
+            for (int s = 0; s < sources.length; s++) {
+                if ((i >> s & 1) == 1) {
+                    recordSources.put(sources[s][0], new ImmutablePair<>(sources[s][1], "id" + i));
+                    final HashMap<String, Integer> feedAccuracy = new HashMap<>();
+                    feedAccuracy.put("feed", (i * 7 + s * 13) % 100);
+                    accuracy.put(sources[s][0], feedAccuracy);
+                }
+            }
+            records.add(new BlacklistedRecord("domain" + i, CRC64.getInstance().crc64BigInteger(("domain" + i).getBytes()),
+                    Calendar.getInstance(), recordSources, accuracy, i % 5 == 0));
+        }
+        return records;
+    }
+
+    static List<Policy> samplePolicies() {
+        return Arrays.asList(
+                policy(StrategyType.accuracy, 30, null, null, null),
+                policy(StrategyType.accuracy, 50, new HashSet<>(Arrays.asList(IoCClassificationType.phishing, IoCClassificationType.cc)), null, null),
+                policy(StrategyType.accuracy, 10, null, new HashSet<>(Arrays.asList("mfsk", "nonexistent")), new HashSet<>(Collections.singletonList("hybrid"))),
+                policy(StrategyType.accuracy, 10, new HashSet<>(Collections.singletonList(IoCClassificationType.unknown)), null, null),
+                policy(StrategyType.blacklist, null, null, null, null),
+                policy(StrategyType.whitelist, null, null, null, new HashSet<>(Collections.singletonList("urlhaus"))),
+                policy(StrategyType.drop, null, null, null, Collections.emptySet()));
+    }
+
+    @Test
+    public void testProcessSnapshotMatchesRecords() {
+        final List<BlacklistedRecord> records = sampleRecords();
+        final ResolverConfiguration configuration = new ResolverConfiguration();
+        configuration.setPolicies(samplePolicies());
+
+        final ProcessingContext recordsContext = new ProcessingContext();
+        recordsContext.setBlacklistedRecords(records);
+        final ThreatMap expected = new ResolverThreatTask(configuration, recordsContext).processData();
+
+        final IoCSnapshot.Builder builder = IoCSnapshotStore.columnar.newBuilder(records.size());
+        records.forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        final ProcessingContext columnarContext = new ProcessingContext();
+        columnarContext.setIoCSnapshot(builder.build());
+        final ThreatMap actual = new ResolverThreatTask(configuration, columnarContext).processData();
+
+        assertThat(expected.size(), greaterThan(0));
+        assertThat(actual.sortedValues().toString(), is(expected.sortedValues().toString()));
+    }
+
+    @Test
+    public void testNoThreatForMatchBeyondSlots() {
+        final List<Policy> policies = new ArrayList<>();
+        for (int i = 0; i < Threat.SLOTS; i++) {
+            policies.add(policy(StrategyType.accuracy, 10, null, new HashSet<>(Collections.singletonList("nonexistent")), null));
+        }
+        // only the policy without a slot matches
+        policies.add(policy(StrategyType.blacklist, null, null, null, null));
+        final ResolverConfiguration configuration = new ResolverConfiguration();
+        configuration.setPolicies(policies);
+        final List<BlacklistedRecord> records = sampleRecords();
+
+        final ProcessingContext recordsContext = new ProcessingContext();
+        recordsContext.setBlacklistedRecords(records);
+        assertThat(new ResolverThreatTask(configuration, recordsContext).processData().size(), is(0));
+
+        final IoCSnapshot.Builder builder = IoCSnapshotStore.columnar.newBuilder(records.size());
+        records.forEach(r -> builder.add(r.getBlackListedDomainOrIP(), r));
+        final ProcessingContext columnarContext = new ProcessingContext();
+        columnarContext.setIoCSnapshot(builder.build());
+        assertThat(new ResolverThreatTask(configuration, columnarContext).processData().size(), is(0));
+    }
+
+    @Test
+    public void testCompiledPoliciesMatchReference() {
+        final Set<String> manyFeeds = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            manyFeeds.add("feed" + i);
+        }
+        manyFeeds.add("urlhaus");
+        final List<Policy> policies = new ArrayList<>(samplePolicies());
+        policies.add(policy(StrategyType.accuracy, 20, new HashSet<>(Collections.singletonList(IoCClassificationType.malware)), manyFeeds, null));
+        policies.add(policy(StrategyType.drop, null, null, null, manyFeeds));
+        final List<BlacklistedRecord> records = sampleRecords();
+
+        final PolicyMatcher matcher = CompiledPolicies.compile(policies).matcher();
+        final Flag[] slots = new Flag[policies.size()];
+        int matched = 0;
+        for (BlacklistedRecord record : records) {
+            final Threat expected = new Threat(record.getCrc64Hash().longValue());
+            expected.setAccuracy(IoCSnapshot.computeMaxAccuracy(record));
+            for (int policyIdx = 0; policyIdx < policies.size(); policyIdx++) {
+                referenceMatcher.addFlagToThreatSlot(expected, record, policyIdx, policies.get(policyIdx));
+            }
+
+            assertThat(matcher.match(record, expected.getAccuracy(), slots), is(expected.isSet()));
+            for (int policyIdx = 0; policyIdx < policies.size(); policyIdx++) {
+                assertThat(slots[policyIdx], is(expected.getSlots().get(policyIdx)));
+            }
+            matched += expected.isSet() ? 1 : 0;
+        }
+        assertThat(matched, greaterThan(0));
+    }
 }
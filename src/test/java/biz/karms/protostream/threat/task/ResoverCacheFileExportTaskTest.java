@@ -0,0 +1,63 @@
+package biz.karms.protostream.threat.task;
+
+import biz.karms.protostream.threat.domain.Flag;
+import biz.karms.protostream.threat.domain.ResolverRecord;
+import biz.karms.protostream.threat.domain.Threat;
+import biz.karms.sinkit.resolver.ResolverConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class for {@link ResoverCacheFileExportTask}
+ */
+public class ResoverCacheFileExportTaskTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUnchangedExportIsSkipped() throws Exception {
+        final ExportFingerprintIndex index = new ExportFingerprintIndex(folder.getRoot().toPath());
+        final ResoverCacheFileExportTask exportTask = new ResoverCacheFileExportTask(folder.getRoot().getPath(), null, index);
+        final ResolverConfiguration resolverConfiguration = new ResolverConfiguration();
+        resolverConfiguration.setResolverId(5);
+        final File file = new File(folder.getRoot(), "5_resolver_cache.bin");
+
+        assertThat(exportTask.export(resolverConfiguration, resolverRecord(Flag.blacklist), null), is(true));
+        assertThat(index.getGeneration(file.getName()), is(1L));
+        final long modified = file.lastModified();
+
+        assertThat(exportTask.export(resolverConfiguration, resolverRecord(Flag.blacklist), null), is(false));
+        assertThat(index.getGeneration(file.getName()), is(1L));
+        assertThat(file.lastModified(), is(modified));
+        assertThat(new File(folder.getRoot(), "5_resolver_cache.bin.tmp").exists(), is(false));
+
+        // a removed file is written again even if its content did not change
+        Files.delete(file.toPath());
+        assertThat(exportTask.export(resolverConfiguration, resolverRecord(Flag.blacklist), null), is(true));
+        assertThat(index.getGeneration(file.getName()), is(2L));
+
+        assertThat(exportTask.export(resolverConfiguration, resolverRecord(Flag.whitelist), null), is(true));
+        assertThat(index.getGeneration(file.getName()), is(3L));
+    }
+
+    private static ResolverRecord resolverRecord(final Flag flag) {
+        final Threat threat = new Threat(2315137971279604471L);
+        threat.setSlot(0, flag);
+        final ResolverRecord record = new ResolverRecord();
+        record.setResolverId(5);
+        record.setThreats(Collections.singletonList(threat));
+        record.setPolicyRecords(Collections.emptyList());
+        record.setIpRangesRecords(Collections.emptyList());
+        record.setCustomListRecords(Collections.emptyList());
+        return record;
+    }
+}